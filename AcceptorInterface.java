@@ -10,19 +10,57 @@ public interface AcceptorInterface extends Remote {
   /**
    * Prepares the acceptor to receive a proposal with a given proposal ID.
    *
+   * @param instance The number of the key's instance the proposal is for.
    * @param proposalId The unique ID of the proposal.
-   * @return A response indicating the status or decision related to the proposal.
+   * @return A response indicating the status or decision related to the proposal. A rejection carries
+   *         the instance the acceptor is in, which is later than the given one if that one is decided.
    * @throws RemoteException If a remote communication error occurs.
    */
-  ProposalResponse prepare(String key, int proposalId) throws RemoteException;
+  ProposalResponse prepare(String key, long instance, long proposalId) throws RemoteException;
 
   /**
    * Accepts or rejects a proposal with the given proposal ID and value.
    *
+   * @param instance The number of the key's instance the proposal is for.
    * @param proposalId The unique ID of the proposal.
    * @param proposalValue The value of the proposal.
    * @return A boolean indicating whether the proposal was accepted (true) or rejected (false).
    * @throws RemoteException If a remote communication error occurs.
    */
-  boolean accept(String key, int proposalId, Object proposalValue) throws RemoteException;
+  boolean accept(String key, long instance, long proposalId, Object proposalValue) throws RemoteException;
+
+  /**
+   * Multi-Paxos Phase 1: promises the given ballot for every log slot at or after the given slot.
+   *
+   * @param ballot The ballot of the server trying to become the leader.
+   * @param fromSlot The first slot the prospective leader has not applied yet.
+   * @return The promise with the values accepted at or after fromSlot, or a rejection.
+   * @throws RemoteException If a remote communication error occurs.
+   */
+  LogPromise prepareLog(long ballot, long fromSlot) throws RemoteException;
+
+  /**
+   * Multi-Paxos Phase 2: accepts or rejects an operation for a single log slot.
+   *
+   * @param slot The log slot.
+   * @param ballot The ballot of the leader.
+   * @param operation The operation proposed for the slot.
+   * @param commitIndex The slot up to which the leader chose every slot it proposed with the ballot. Slots
+   *        up to it that the acceptor accepted with the same ballot are chosen, and its server decides them.
+   * @return A boolean indicating whether the operation was accepted (true) or rejected (false).
+   * @throws RemoteException If a remote communication error occurs.
+   */
+  boolean acceptSlot(long slot, long ballot, Operation operation, long commitIndex) throws RemoteException;
+
+  /**
+   * Multi-Paxos heartbeat of the leader. It renews the leader lease, during which the acceptor promises
+   * no other server, and tells the acceptor's server how far the log is committed.
+   *
+   * @param ballot The ballot of the leader.
+   * @param commitIndex The slot up to which the leader chose every slot it proposed with the ballot, all of
+   *        which is chosen.
+   * @return The ballot promised by the acceptor; equal to the given ballot if the lease was granted.
+   * @throws RemoteException If a remote communication error occurs.
+   */
+  long heartbeat(long ballot, long commitIndex) throws RemoteException;
 }
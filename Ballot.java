@@ -0,0 +1,93 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generator of the 64-bit ballots (proposal IDs) of one server. A ballot is laid out as
+ * [sign: 0][epoch: 15 bits][counter: 32 bits][node: 16 bits], so ballots order by epoch, then counter,
+ * and ballots of different servers never collide. The epoch and counter together form the round; a
+ * counter overflow carries into the epoch. A server starts a new epoch when it restarts from its log,
+ * which puts its ballots above any it issued before.
+ * Every ballot the server sees, whether promised by its own acceptor or reported in a rejection, is
+ * observed, and the next ballot is taken from a round above all of them. A proposer that lost a round
+ * therefore jumps ahead of the winner in one step instead of counting up to it.
+ * @author ZHANG Mao
+ *
+ */
+public final class Ballot {
+
+	static final int NODE_BITS = 16;
+	static final int COUNTER_BITS = 32;
+	static final int MAX_NODES = 1 << NODE_BITS;
+	private static final long NODE_MASK = MAX_NODES - 1;
+	private static final long COUNTER_MASK = (1L << COUNTER_BITS) - 1;
+
+	private final int node;
+	// The highest round issued or observed
+	private final AtomicLong round;
+
+	/**
+	 * @param node The ID of the server, below {@link #MAX_NODES}.
+	 */
+	public Ballot(int node) {
+		if (node < 0 || node >= MAX_NODES) {
+			throw new IllegalArgumentException("Node ID out of range: " + node);
+		}
+		this.node = node;
+		this.round = new AtomicLong();
+	}
+
+	/**
+	 * @return A ballot above every ballot issued or observed so far.
+	 */
+	public long next() {
+		return of(round.incrementAndGet(), node);
+	}
+
+	/**
+	 * Makes sure the following ballots are above the given one.
+	 * @param ballot A ballot seen from any server, or a negative sentinel, which is ignored.
+	 */
+	public void observe(long ballot) {
+		if (ballot > 0) {
+			round.accumulateAndGet(roundOf(ballot), Math::max);
+		}
+	}
+
+	/**
+	 * Moves to the epoch after the one of the given ballot, resetting the counter. Called on restart with
+	 * the highest ballot found in the log.
+	 */
+	public void startEpochAfter(long ballot) {
+		long epoch = ballot > 0 ? epoch(ballot) + 1 : 0;
+		round.accumulateAndGet(epoch << COUNTER_BITS, Math::max);
+	}
+
+	private static long of(long round, int node) {
+		return round << NODE_BITS | node;
+	}
+
+	private static long roundOf(long ballot) {
+		return ballot >>> NODE_BITS;
+	}
+
+	/**
+	 * @return The ID of the server that issued the ballot.
+	 */
+	public static int node(long ballot) {
+		return (int) (ballot & NODE_MASK);
+	}
+
+	public static long counter(long ballot) {
+		return (ballot >>> NODE_BITS) & COUNTER_MASK;
+	}
+
+	public static long epoch(long ballot) {
+		return ballot >>> (NODE_BITS + COUNTER_BITS);
+	}
+
+	/**
+	 * @return The ballot in a readable form, epoch.counter.node.
+	 */
+	public static String toString(long ballot) {
+		return ballot < 0 ? String.valueOf(ballot) : epoch(ballot) + "." + counter(ballot) + "." + node(ballot);
+	}
+}
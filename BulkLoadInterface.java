@@ -0,0 +1,29 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * The BulkLoadInterface represents a remote interface for the initial
+ * load of a replica. Entries are written straight into the key-value
+ * store, without consensus, so the loader sends every entry to every
+ * replica. Ingestion is only accepted before the replica applies its
+ * first write agreed on through consensus.
+ */
+public interface BulkLoadInterface extends Remote {
+  /**
+   * Writes the entries of a block of lines of the form key=value, as read by
+   * {@link BulkLoader}. Lines without '=' are skipped.
+   *
+   * @param lines The lines, UTF-8 encoded and separated by '\n'.
+   * @throws RemoteException If a remote invocation error occurs, or ingestion was closed.
+   * @return The number of entries written.
+   */
+  int ingest(byte[] lines) throws RemoteException;
+
+  /**
+   * Closes ingestion and makes the ingested entries durable with a snapshot if the replica has a
+   * write-ahead log.
+   *
+   * @throws RemoteException If a remote invocation error occurs.
+   */
+  void finishIngest() throws RemoteException;
+}
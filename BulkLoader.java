@@ -0,0 +1,425 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads a file of key=value lines, like KeyValuePairs.txt, into the cluster. The file is memory-mapped in
+ * chunks that end at line boundaries, and parser threads turn chunks into batches in parallel. A bounded
+ * queue hands the batches to a fixed number of sender threads, which is the number of requests in flight:
+ * when the cluster falls behind, the queue fills up and the parsers wait. Progress and throughput are
+ * printed periodically.
+ * By default every batch is written with one multiPut, agreed on through consensus, sent to the servers in
+ * turn. With --ingest the replicas are loaded directly instead: each batch is the raw bytes of its lines,
+ * parsed on the servers without a String per line on the client, and is sent to every server, which writes
+ * it into its store without consensus. Ingestion is meant for the initial load of an empty cluster; the
+ * servers refuse it once they have applied a write agreed on through consensus.
+ * Lines are loaded in parallel, so for a key appearing more than once it is not defined which value wins.
+ * Usage: java BulkLoader <host> <basePort> --load=FILE [--name=value ...], options are listed in {@link #USAGE}.
+ * @author ZHANG Mao
+ *
+ */
+public class BulkLoader {
+
+	static final String USAGE = "Usage: BulkLoader <host> <basePort> --load=FILE"
+			+ " [--servers=5] [--parsers=<cores>] [--in-flight=8] [--batch-size=1000] [--chunk-mb=64]"
+			+ " [--report-interval-s=1] [--transport=rmi|nio] [--ingest]";
+
+	private static final int MAX_ATTEMPTS = 3;
+	private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Receives the bounds of the trimmed key and value of a line.
+	 */
+	@FunctionalInterface
+	interface LineVisitor {
+		void visit(ByteBuffer buffer, int keyStart, int keyEnd, int valueStart, int valueEnd) throws IOException;
+	}
+
+	/**
+	 * A batch of writes: the entries for multiPut, or the raw lines for ingestion.
+	 */
+	private static final class Batch {
+		final Map<String, String> entries;
+		final byte[] lines;
+		final int lineCount;
+		final long bytes;
+
+		Batch(Map<String, String> entries, byte[] lines, int lineCount, long bytes) {
+			this.entries = entries;
+			this.lines = lines;
+			this.lineCount = lineCount;
+			this.bytes = bytes;
+		}
+	}
+
+	// Tells the senders that all chunks were parsed
+	private static final Batch END = new Batch(null, null, 0, 0);
+
+	private final String host;
+	private final int basePort;
+	private final Path path;
+	private final int servers;
+	private final int parsers;
+	private final int inFlight;
+	private final int batchSize;
+	private final long chunkSize;
+	private final int reportIntervalSeconds;
+	private final boolean nio;
+	private final boolean ingest;
+
+	private final BlockingQueue<Batch> queue;
+	private final AtomicLong loadedLines = new AtomicLong();
+	private final AtomicLong loadedBytes = new AtomicLong();
+	private final AtomicLong failedBatches = new AtomicLong();
+	private final AtomicInteger nextServer = new AtomicInteger();
+
+	BulkLoader(String host, int basePort, Map<String, String> options) {
+		this.host = host;
+		this.basePort = basePort;
+		this.path = Paths.get(options.get("load"));
+		this.servers = Integer.parseInt(options.getOrDefault("servers", "5"));
+		this.parsers = Integer.parseInt(options.getOrDefault("parsers", String.valueOf(Runtime.getRuntime().availableProcessors())));
+		this.inFlight = Integer.parseInt(options.getOrDefault("in-flight", "8"));
+		this.batchSize = Integer.parseInt(options.getOrDefault("batch-size", "1000"));
+		this.chunkSize = Long.parseLong(options.getOrDefault("chunk-mb", "64")) << 20;
+		this.reportIntervalSeconds = Integer.parseInt(options.getOrDefault("report-interval-s", "1"));
+		this.nio = options.getOrDefault("transport", "rmi").equalsIgnoreCase("nio");
+		this.ingest = options.containsKey("ingest");
+		this.queue = new ArrayBlockingQueue<>(2 * inFlight);
+	}
+
+	public static void main(String[] args) {
+		Map<String, String> options = new HashMap<>();
+		for (int i = 2; i < args.length; i++) {
+			if (args[i].startsWith("--")) {
+				String[] parts = args[i].substring(2).split("=", 2);
+				options.put(parts[0], parts.length == 2 ? parts[1] : "true");
+			}
+		}
+		if (args.length < 2 || !options.containsKey("load")) {
+			System.out.println(USAGE);
+			return;
+		}
+		try {
+			new BulkLoader(args[0], Integer.parseInt(args[1]), options).run();
+		} catch (Exception e) {
+			System.err.println("Bulk loader exception: " + e);
+			e.printStackTrace();
+		}
+		System.exit(0);
+	}
+
+	private Remote connect(int server) throws Exception {
+		int port = basePort + server;
+		if (nio) {
+			return new NioPeer(host, port + PaxosServerCreator.NIO_PORT_OFFSET);
+		}
+		Registry registry = LocateRegistry.getRegistry(host, port);
+		return registry.lookup("KVServer" + port);
+	}
+
+	void run() throws Exception {
+		List<Remote> stores = new ArrayList<>();
+		for (int i = 0; i < servers; i++) {
+			stores.add(connect(i));
+		}
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			List<long[]> chunks = split(channel, size);
+			System.out.println((ingest ? "Ingesting " : "Loading ") + size + " bytes in " + chunks.size() + " chunks with "
+					+ parsers + " parsers and " + inFlight + " batches in flight into " + servers + " servers");
+
+			long start = System.nanoTime();
+			ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+			System.out.println("time_s,lines,lines_per_s,mb_per_s,progress_pct,failed_batches");
+			long[] last = { start, 0, 0 };
+			reporter.scheduleAtFixedRate(() -> {
+				long now = System.nanoTime();
+				long lines = loadedLines.get();
+				long bytes = loadedBytes.get();
+				double seconds = (now - last[0]) / 1e9;
+				System.out.println(String.format("%d,%d,%.0f,%.2f,%.1f,%d", Math.round((now - start) / 1e9), lines,
+						(lines - last[1]) / seconds, (bytes - last[2]) / seconds / (1 << 20),
+						size == 0 ? 100.0 : 100.0 * bytes / size, failedBatches.get()));
+				last[0] = now;
+				last[1] = lines;
+				last[2] = bytes;
+			}, reportIntervalSeconds, reportIntervalSeconds, TimeUnit.SECONDS);
+
+			List<Thread> senders = new ArrayList<>();
+			for (int i = 0; i < inFlight; i++) {
+				Thread sender = new Thread(() -> send(stores), "bulk-sender-" + i);
+				senders.add(sender);
+				sender.start();
+			}
+			ExecutorService parserPool = Executors.newFixedThreadPool(parsers);
+			AtomicInteger nextChunk = new AtomicInteger();
+			List<Future<?>> parsed = new ArrayList<>();
+			for (int i = 0; i < parsers; i++) {
+				parsed.add(parserPool.submit(() -> {
+					for (int chunk = nextChunk.getAndIncrement(); chunk < chunks.size(); chunk = nextChunk.getAndIncrement()) {
+						long[] bounds = chunks.get(chunk);
+						parse(channel.map(FileChannel.MapMode.READ_ONLY, bounds[0], bounds[1] - bounds[0]));
+					}
+					return null;
+				}));
+			}
+			try {
+				for (Future<?> future : parsed) {
+					future.get();
+				}
+			} finally {
+				parserPool.shutdown();
+				queue.put(END);
+				for (Thread sender : senders) {
+					sender.join();
+				}
+				reporter.shutdownNow();
+			}
+			if (ingest) {
+				for (int i = 0; i < servers; i++) {
+					((BulkLoadInterface) stores.get(i)).finishIngest();
+				}
+			}
+
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.println("summary,lines,lines_per_s,mb_per_s,seconds,failed_batches");
+			System.out.println(String.format("summary,%d,%.0f,%.2f,%.1f,%d", loadedLines.get(), loadedLines.get() / seconds,
+					loadedBytes.get() / seconds / (1 << 20), seconds, failedBatches.get()));
+		}
+	}
+
+	/**
+	 * @return The [start, end) offsets of the chunks, each about chunkSize bytes and ending after a line break
+	 *         or at the end of the file.
+	 */
+	private List<long[]> split(FileChannel channel, long size) throws IOException {
+		List<long[]> chunks = new ArrayList<>();
+		ByteBuffer scan = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+		for (long start = 0; start < size; ) {
+			long end = Math.min(size, start + chunkSize);
+			if (end < size) {
+				end = nextLineStart(channel, end - 1, size, scan);
+			}
+			if (end - start > Integer.MAX_VALUE) {
+				throw new IOException("Line longer than 2 GB at offset " + start);
+			}
+			chunks.add(new long[] { start, end });
+			start = end;
+		}
+		return chunks;
+	}
+
+	/**
+	 * @return The offset after the first line break at or after the given position, or the size of the file.
+	 */
+	private static long nextLineStart(FileChannel channel, long position, long size, ByteBuffer scan) throws IOException {
+		while (position < size) {
+			scan.clear();
+			int read = channel.read(scan, position);
+			if (read <= 0) {
+				break;
+			}
+			for (int i = 0; i < read; i++) {
+				if (scan.get(i) == '\n') {
+					return position + i + 1;
+				}
+			}
+			position += read;
+		}
+		return size;
+	}
+
+	/**
+	 * Turns a chunk into batches of at most batchSize lines and queues them, waiting while the queue is full.
+	 */
+	private void parse(MappedByteBuffer chunk) throws IOException, InterruptedException {
+		int length = chunk.limit();
+		if (ingest) {
+			// Batches are runs of whole lines, copied as they are and parsed by the servers
+			int batchStart = 0;
+			int lines = 0;
+			for (int i = 0; i < length; i++) {
+				if (chunk.get(i) == '\n' && ++lines == batchSize) {
+					queue.put(rawBatch(chunk, batchStart, i + 1, lines));
+					batchStart = i + 1;
+					lines = 0;
+				}
+			}
+			if (batchStart < length) {
+				queue.put(rawBatch(chunk, batchStart, length, lines + 1));
+			}
+			return;
+		}
+		EntryBatcher batcher = new EntryBatcher();
+		forEachLine(chunk, 0, length, batcher);
+		batcher.flush(length);
+	}
+
+	/**
+	 * Groups the entries of a chunk into multiPut batches.
+	 */
+	private final class EntryBatcher implements LineVisitor {
+		private Map<String, String> entries = new LinkedHashMap<>();
+		// Offset in the chunk where the bytes of the current batch start
+		private int batchStart;
+
+		@Override
+		public void visit(ByteBuffer buffer, int keyStart, int keyEnd, int valueStart, int valueEnd) throws IOException {
+			entries.put(string(buffer, keyStart, keyEnd), string(buffer, valueStart, valueEnd));
+			if (entries.size() == batchSize) {
+				flush(valueEnd);
+			}
+		}
+
+		void flush(int end) throws IOException {
+			if (entries.isEmpty()) {
+				// Only skipped lines or the rest of the last line, nothing to send
+				loadedBytes.addAndGet(end - batchStart);
+			} else {
+				enqueue(new Batch(entries, null, entries.size(), end - batchStart));
+				entries = new LinkedHashMap<>();
+			}
+			batchStart = end;
+		}
+	}
+
+	private void enqueue(Batch batch) throws IOException {
+		try {
+			queue.put(batch);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the senders", e);
+		}
+	}
+
+	private static Batch rawBatch(ByteBuffer chunk, int start, int end, int lines) {
+		byte[] bytes = new byte[end - start];
+		chunk.get(start, bytes);
+		return new Batch(null, bytes, lines, bytes.length);
+	}
+
+	/**
+	 * Takes batches off the queue and sends them until the end marker.
+	 */
+	private void send(List<Remote> stores) {
+		try {
+			for (Batch batch = queue.take(); batch != END; batch = queue.take()) {
+				boolean sent = true;
+				if (ingest) {
+					// Every replica gets every entry
+					for (Remote store : stores) {
+						sent &= attempt(store, batch);
+					}
+				} else {
+					sent = attempt(stores.get(Math.floorMod(nextServer.getAndIncrement(), stores.size())), batch);
+				}
+				if (sent) {
+					loadedLines.addAndGet(batch.lineCount);
+					loadedBytes.addAndGet(batch.bytes);
+				} else {
+					failedBatches.incrementAndGet();
+				}
+			}
+			queue.put(END);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private boolean attempt(Remote store, Batch batch) {
+		for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+			try {
+				if (ingest) {
+					((BulkLoadInterface) store).ingest(batch.lines);
+					return true;
+				}
+				if (((KVStoreInterface) store).multiPut(batch.entries) != null) {
+					return true;
+				}
+			} catch (RemoteException e) {
+				if (attempt == MAX_ATTEMPTS) {
+					System.err.println("Batch of " + batch.lineCount + " lines failed: " + e.getMessage());
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Finds the lines of the form key=value in the given range, splitting each at its first '=' and trimming
+	 * the key and value like String.trim. Lines without '=' are skipped. Nothing is allocated.
+	 * @param buffer The buffer holding the lines.
+	 * @param from The offset of the first line.
+	 * @param to The offset after the last line.
+	 * @param visitor Called once per line with the bounds of its key and value.
+	 * @throws IOException If the visitor fails.
+	 */
+	static void forEachLine(ByteBuffer buffer, int from, int to, LineVisitor visitor) throws IOException {
+		int lineStart = from;
+		while (lineStart < to) {
+			int lineEnd = lineStart;
+			int equals = -1;
+			for (byte b; lineEnd < to && (b = buffer.get(lineEnd)) != '\n'; lineEnd++) {
+				if (b == '=' && equals < 0) {
+					equals = lineEnd;
+				}
+			}
+			if (equals >= 0) {
+				int keyStart = trimStart(buffer, lineStart, equals);
+				int valueStart = trimStart(buffer, equals + 1, lineEnd);
+				visitor.visit(buffer, keyStart, trimEnd(buffer, keyStart, equals), valueStart, trimEnd(buffer, valueStart, lineEnd));
+			}
+			lineStart = lineEnd + 1;
+		}
+	}
+
+	private static int trimStart(ByteBuffer buffer, int start, int end) {
+		while (start < end && (buffer.get(start) & 0xff) <= ' ') {
+			start++;
+		}
+		return start;
+	}
+
+	private static int trimEnd(ByteBuffer buffer, int start, int end) {
+		while (end > start && (buffer.get(end - 1) & 0xff) <= ' ') {
+			end--;
+		}
+		return end;
+	}
+
+	/**
+	 * @return The UTF-8 string in the given range of the buffer.
+	 */
+	static String string(ByteBuffer buffer, int start, int end) {
+		if (buffer.hasArray()) {
+			return new String(buffer.array(), buffer.arrayOffset() + start, end - start, StandardCharsets.UTF_8);
+		}
+		byte[] bytes = new byte[end - start];
+		buffer.get(start, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
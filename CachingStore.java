@@ -0,0 +1,267 @@
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A client-side cache in front of one server. get and multiGet are answered from a local {@link ReadCache}
+ * when they can be, and absent keys are cached too. Every other call goes to the server.
+ * The cache is kept current by a {@link ChangeStream} of every write the server applies: a write drops its
+ * key from the cache, and if the stream lost changes, everything is dropped. The stream is a lease granted
+ * by the server. Each watch call that returns vouches for every write applied before the call was sent, and
+ * cached entries are only served for leaseMillis after that. If the server cannot be reached for longer,
+ * gets go to the server again until the stream has caught up. A cached value is thus never older than the
+ * server's state at most leaseMillis ago, and is usually replaced as soon as the write is applied.
+ * A miss that races with a write of its key is not cached: the key is marked before the read goes to the
+ * server, and the value is only cached if no write of the key arrived in the meantime.
+ * @author ZHANG Mao
+ *
+ */
+public class CachingStore implements KVStoreInterface, AutoCloseable {
+
+	private final KVStoreInterface store;
+	private final ReadCache<Optional<String>> cache;
+	private final long leaseNanos;
+	private final long startNanos;
+	private final ChangeStream changes;
+	// Keys read from the server right now, with a token per read; a write of the key removes its token
+	private final ConcurrentHashMap<String, Object> loading = new ConcurrentHashMap<>();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	// Lookups of cached keys that went to the server because the lease had run out
+	private final LongAdder leaseMisses = new LongAdder();
+	private final LongAdder invalidations = new LongAdder();
+	private final LongAdder clears = new LongAdder();
+
+	/**
+	 * @param store The server.
+	 * @param server The same server, whose writes invalidate the cache.
+	 * @param maximumSize The maximum number of cached keys.
+	 * @param policy The eviction policy.
+	 * @param leaseMillis How long entries are served without hearing from the server.
+	 * @throws RemoteException If the change stream cannot be started.
+	 */
+	public CachingStore(KVStoreInterface store, WatchInterface server, int maximumSize, ReadCache.Policy policy,
+			long leaseMillis) throws RemoteException {
+		this.store = store;
+		this.cache = new ReadCache<>(maximumSize, policy);
+		this.leaseNanos = TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+		this.startNanos = System.nanoTime();
+		// Start from the server's position now, so that no write applied after this is missed
+		WatchCursor cursor = server.watch("", true, null, 0, 0).getCursor();
+		this.changes = new ChangeStream(server, "", true, cursor, leaseMillis / 2, this::onChanges);
+	}
+
+	private void onChanges(List<Change> changed, boolean missedChanges) {
+		if (missedChanges) {
+			synchronized (cache) {
+				loading.clear();
+				cache.clear();
+			}
+			clears.increment();
+		}
+		for (Change change : changed) {
+			invalidate(change.getKey());
+		}
+	}
+
+	private void invalidate(String key) {
+		synchronized (cache) {
+			loading.remove(key);
+			cache.invalidate(key);
+		}
+		invalidations.increment();
+	}
+
+	private boolean holdsLease() {
+		long synced = changes.hasSynced() ? changes.getLastSyncNanos() : startNanos;
+		return System.nanoTime() - synced < leaseNanos;
+	}
+
+	/**
+	 * @return The cached value, or null if the key has to be read from the server.
+	 */
+	private Optional<String> lookup(String key) {
+		Optional<String> cached = cache.get(key);
+		if (cached != null && holdsLease()) {
+			hits.increment();
+			return cached;
+		}
+		if (cached != null) {
+			leaseMisses.increment();
+		}
+		misses.increment();
+		return null;
+	}
+
+	private void fill(String key, Object token, String value) {
+		synchronized (cache) {
+			if (loading.remove(key, token)) {
+				cache.put(key, Optional.ofNullable(value));
+			}
+		}
+	}
+
+	@Override
+	public String get(String key) throws RemoteException {
+		Optional<String> cached = lookup(key);
+		if (cached != null) {
+			return cached.orElse(null);
+		}
+		Object token = new Object();
+		loading.put(key, token);
+		String value;
+		try {
+			value = store.get(key);
+		} catch (RemoteException e) {
+			loading.remove(key, token);
+			throw e;
+		}
+		fill(key, token, value);
+		return value;
+	}
+
+	@Override
+	public Map<String, String> multiGet(List<String> keys) throws RemoteException {
+		Map<String, String> results = new LinkedHashMap<>();
+		List<String> missing = new ArrayList<>();
+		Map<String, Object> tokens = new LinkedHashMap<>();
+		for (String key : keys) {
+			Optional<String> cached = lookup(key);
+			if (cached != null) {
+				results.put(key, cached.orElse(null));
+			} else {
+				results.put(key, null);
+				missing.add(key);
+				Object token = new Object();
+				tokens.put(key, token);
+				loading.put(key, token);
+			}
+		}
+		if (!missing.isEmpty()) {
+			Map<String, String> values;
+			try {
+				values = store.multiGet(missing);
+			} catch (RemoteException e) {
+				tokens.forEach(loading::remove);
+				throw e;
+			}
+			for (String key : missing) {
+				String value = values.get(key);
+				results.put(key, value);
+				fill(key, tokens.get(key), value);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Reads the key from the server's linearizable path, bypassing the cache.
+	 */
+	@Override
+	public String linearizableGet(String key) throws RemoteException {
+		return store.linearizableGet(key);
+	}
+
+	/**
+	 * Reads the key from the server, bypassing the cache, whose staleness bound is the lease instead.
+	 */
+	@Override
+	public String boundedGet(String key, long maxStalenessMillis) throws RemoteException {
+		return store.boundedGet(key, maxStalenessMillis);
+	}
+
+	// Writes go to the server and drop their keys right away, so this client reads its own writes
+
+	@Override
+	public String put(String key, String value) throws RemoteException {
+		try {
+			return store.put(key, value);
+		} finally {
+			invalidate(key);
+		}
+	}
+
+	@Override
+	public String delete(String key) throws RemoteException {
+		try {
+			return store.delete(key);
+		} finally {
+			invalidate(key);
+		}
+	}
+
+	@Override
+	public Map<String, String> multiPut(Map<String, String> entries) throws RemoteException {
+		try {
+			return store.multiPut(entries);
+		} finally {
+			entries.keySet().forEach(this::invalidate);
+		}
+	}
+
+	@Override
+	public Map<String, String> multiDelete(List<String> keys) throws RemoteException {
+		try {
+			return store.multiDelete(keys);
+		} finally {
+			keys.forEach(this::invalidate);
+		}
+	}
+
+	@Override
+	public boolean compareAndSet(String key, String expectedValue, String newValue) throws RemoteException {
+		try {
+			return store.compareAndSet(key, expectedValue, newValue);
+		} finally {
+			invalidate(key);
+		}
+	}
+
+	@Override
+	public boolean transact(Map<String, String> guards, Map<String, String> writes) throws RemoteException {
+		try {
+			return store.transact(guards, writes);
+		} finally {
+			writes.keySet().forEach(this::invalidate);
+		}
+	}
+
+	/**
+	 * @return The share of lookups answered from the cache, between 0 and 1.
+	 */
+	public double getHitRate() {
+		long hitCount = hits.sum();
+		long total = hitCount + misses.sum();
+		return total == 0 ? 0 : (double) hitCount / total;
+	}
+
+	/**
+	 * @return The counters of the cache by name.
+	 */
+	public Map<String, Long> getCacheMetrics() {
+		Map<String, Long> metrics = new LinkedHashMap<>();
+		metrics.put("cache.hits", hits.sum());
+		metrics.put("cache.misses", misses.sum());
+		metrics.put("cache.lease_misses", leaseMisses.sum());
+		metrics.put("cache.invalidations", invalidations.sum());
+		metrics.put("cache.clears", clears.sum());
+		metrics.put("cache.evictions", cache.getEvictions());
+		metrics.put("cache.size", (long) cache.size());
+		return metrics;
+	}
+
+	/**
+	 * Stops the change stream. The wrapped store is not closed.
+	 */
+	@Override
+	public void close() {
+		changes.close();
+	}
+}
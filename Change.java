@@ -0,0 +1,53 @@
+import java.io.Serializable;
+
+/**
+ * A write applied to the key-value store of a server, as delivered by {@link WatchInterface}.
+ * @author ZHANG Mao
+ *
+ */
+public class Change implements Serializable {
+	private static final long serialVersionUID = 5407013297284518364L;
+	
+	private final long position;
+	private final String type;
+	private final String key;
+	private final String value;
+	
+	public Change(long position, String type, String key, String value) {
+		this.position = position;
+		this.type = type;
+		this.key = key;
+		this.value = value;
+	}
+	
+	/**
+	 * @return The position of the change in the change log of its server (or partition). Positions of
+	 *         one log grow by one per applied write.
+	 */
+	public long getPosition() {
+		return position;
+	}
+	
+	/**
+	 * @return "PUT" or "DELETE".
+	 */
+	public String getType() {
+		return type;
+	}
+	
+	public String getKey() {
+		return key;
+	}
+	
+	/**
+	 * @return The value written by a PUT, or null for a DELETE.
+	 */
+	public String getValue() {
+		return value;
+	}
+	
+	@Override
+	public String toString() {
+		return position + " " + type + " " + key + (value != null ? "=" + value : "");
+	}
+}
@@ -0,0 +1,44 @@
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * A batch of changes delivered by {@link WatchInterface}, with the cursor to resume after it.
+ * @author ZHANG Mao
+ *
+ */
+public class ChangeBatch implements Serializable {
+	private static final long serialVersionUID = 1948342874152308170L;
+	
+	private final List<Change> changes;
+	private final WatchCursor cursor;
+	private final boolean missedChanges;
+	
+	public ChangeBatch(List<Change> changes, WatchCursor cursor, boolean missedChanges) {
+		this.changes = changes;
+		this.cursor = cursor;
+		this.missedChanges = missedChanges;
+	}
+	
+	/**
+	 * @return The matching changes in the order they were applied; per partition, which covers every key.
+	 */
+	public List<Change> getChanges() {
+		return changes;
+	}
+	
+	/**
+	 * @return The cursor to pass to the next call.
+	 */
+	public WatchCursor getCursor() {
+		return cursor;
+	}
+	
+	/**
+	 * @return Whether changes were lost between the given cursor and this batch, because the subscriber
+	 *         fell further behind than the server retains, or the server restarted. The subscriber should
+	 *         re-read the keys it watches.
+	 */
+	public boolean hasMissedChanges() {
+		return missedChanges;
+	}
+}
@@ -0,0 +1,126 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The recent writes applied by one server, in the order it applied them, for {@link WatchInterface}.
+ * Changes are kept in a ring of fixed capacity, so recording one costs a store into an array under a
+ * short lock and memory stays bounded: subscribers further behind than the ring lose changes and are told
+ * so, but never slow down the server. Reads scan the ring without the lock; a change overwritten while it
+ * is read is recognized by its position. Positions start at 0 whenever the server starts, and the log gets a
+ * new random stream ID then, so a cursor of an earlier run is recognized as stale.
+ * @author ZHANG Mao
+ *
+ */
+public class ChangeLog {
+
+	// Upper bound on the changes examined by one read, so a filtered watch of a busy store returns promptly
+	private static final int MAX_SCAN = 16384;
+
+	private final Change[] ring;
+	private final long streamId = ThreadLocalRandom.current().nextLong();
+	// Written under the lock of this, after the change it publishes
+	private volatile long nextPosition;
+	private volatile Runnable listener;
+
+	/**
+	 * @param capacity The number of changes retained.
+	 */
+	public ChangeLog(int capacity) {
+		this.ring = new Change[capacity];
+	}
+
+	public long getStreamId() {
+		return streamId;
+	}
+
+	public long getNextPosition() {
+		return nextPosition;
+	}
+
+	/**
+	 * Sets a callback run after every change, e.g. to wake up watchers of several logs at once.
+	 */
+	public void setListener(Runnable listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Records an applied PUT or DELETE.
+	 */
+	public void append(Operation operation) {
+		synchronized (this) {
+			ring[(int) (nextPosition % ring.length)] = new Change(nextPosition, operation.getType(), operation.getKey(), operation.getValue());
+			nextPosition++;
+			notifyAll();
+		}
+		Runnable current = listener;
+		if (current != null) {
+			current.run();
+		}
+	}
+
+	/**
+	 * Returns the matching changes from a position on without waiting.
+	 * @param key The key, or the prefix.
+	 * @param prefix Whether key is a prefix.
+	 * @param streamId The stream ID of the cursor.
+	 * @param fromPosition The position of the cursor, or -1 to start with the next change.
+	 * @param maxChanges The maximum number of changes returned.
+	 * @return The changes and the single-partition cursor after them.
+	 */
+	public ChangeBatch read(String key, boolean prefix, long streamId, long fromPosition, int maxChanges) {
+		long next = nextPosition;
+		long position = fromPosition < 0 ? next : fromPosition;
+		boolean missed = false;
+		if (fromPosition >= 0 && (streamId != this.streamId || fromPosition < oldest(next) || fromPosition > next)) {
+			// Resume with what is left
+			position = oldest(next);
+			missed = true;
+		}
+		List<Change> changes = new ArrayList<>();
+		long end = Math.min(next, position + MAX_SCAN);
+		for (; position < end && changes.size() < maxChanges; position++) {
+			Change change = ring[(int) (position % ring.length)];
+			if (change.getPosition() != position) {
+				// Overwritten since nextPosition was read: the reader fell behind the ring
+				changes.clear();
+				position = oldest(nextPosition) - 1;
+				missed = true;
+			} else if (prefix ? change.getKey().startsWith(key) : change.getKey().equals(key)) {
+				changes.add(change);
+			}
+		}
+		return new ChangeBatch(changes, new WatchCursor(new long[] { this.streamId }, new long[] { position }), missed);
+	}
+
+	private long oldest(long next) {
+		return Math.max(0, next - ring.length);
+	}
+
+	/**
+	 * Returns the matching changes from a position on, waiting until there is at least one.
+	 * @param timeoutMillis How long to wait at most.
+	 * @see #read(String, boolean, long, long, int)
+	 */
+	public ChangeBatch watch(String key, boolean prefix, long streamId, long fromPosition, int maxChanges, long timeoutMillis)
+			throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		ChangeBatch batch = read(key, prefix, streamId, fromPosition, maxChanges);
+		while (batch.getChanges().isEmpty() && !batch.hasMissedChanges()) {
+			long next = batch.getCursor().getPosition(0);
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				break;
+			}
+			synchronized (this) {
+				if (next >= nextPosition) {
+					TimeUnit.NANOSECONDS.timedWait(this, remaining);
+				}
+			}
+			batch = read(key, prefix, this.streamId, next, maxChanges);
+		}
+		return batch;
+	}
+}
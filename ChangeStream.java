@@ -0,0 +1,130 @@
+import java.rmi.RemoteException;
+import java.util.List;
+
+/**
+ * Client side of {@link WatchInterface}: a thread that keeps a watch open on a server and hands every batch
+ * of changes to a listener. The listener runs on that thread and the next batch is only requested once it
+ * returns, so a slow listener is never sent more than it can take; changes it falls behind on pile up in the
+ * server's bounded change log, not in the client. After a failed call the stream backs off and resumes from
+ * the last cursor, so no change is delivered twice or skipped unless the listener is told so.
+ * @author ZHANG Mao
+ *
+ */
+public class ChangeStream implements AutoCloseable {
+
+	private static final int MAX_BATCH = 1000;
+	private static final long WAIT_MILLIS = 10000;
+	private static final long MIN_BACKOFF = 100;
+	private static final long MAX_BACKOFF = 5000;
+
+	/**
+	 * Receives the changes of a stream.
+	 */
+	public interface Listener {
+		/**
+		 * @param changes The changes, in the order they were applied within each partition.
+		 * @param missedChanges Whether changes before these were lost, e.g. because the listener fell behind
+		 *        the server's change history or the server restarted.
+		 */
+		void onChanges(List<Change> changes, boolean missedChanges);
+	}
+
+	private final WatchInterface server;
+	private final String key;
+	private final boolean prefix;
+	private final Listener listener;
+	private final long maxWaitMillis;
+	private final Thread thread;
+	private volatile WatchCursor cursor;
+	private volatile boolean synced;
+	private volatile long lastSyncNanos;
+	private volatile boolean running = true;
+
+	/**
+	 * Starts watching.
+	 * @param server The server.
+	 * @param key The key, or the prefix.
+	 * @param prefix Whether key is a prefix; "" watches the whole store.
+	 * @param cursor The cursor to resume from, or null to start with the next write.
+	 * @param listener The listener.
+	 */
+	public ChangeStream(WatchInterface server, String key, boolean prefix, WatchCursor cursor, Listener listener) {
+		this(server, key, prefix, cursor, WAIT_MILLIS, listener);
+	}
+
+	/**
+	 * Starts watching.
+	 * @param maxWaitMillis How long one watch call waits for changes, and so the longest time between calls.
+	 * @see #ChangeStream(WatchInterface, String, boolean, WatchCursor, Listener)
+	 */
+	public ChangeStream(WatchInterface server, String key, boolean prefix, WatchCursor cursor, long maxWaitMillis,
+			Listener listener) {
+		this.server = server;
+		this.maxWaitMillis = maxWaitMillis;
+		this.key = key;
+		this.prefix = prefix;
+		this.cursor = cursor;
+		this.listener = listener;
+		this.thread = new Thread(this::run, "change-stream-" + key);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * @return The cursor after the last batch delivered, to resume from with a new stream.
+	 */
+	public WatchCursor getCursor() {
+		return cursor;
+	}
+
+	/**
+	 * @return Whether a watch call has returned yet.
+	 */
+	public boolean hasSynced() {
+		return synced;
+	}
+
+	/**
+	 * @return The System.nanoTime() at which the last watch call that returned was sent, once
+	 *         {@link #hasSynced()}. Every change the server applied before then has been handed to the listener.
+	 */
+	public long getLastSyncNanos() {
+		return lastSyncNanos;
+	}
+
+	private void run() {
+		long backoff = MIN_BACKOFF;
+		while (running) {
+			try {
+				long sent = System.nanoTime();
+				ChangeBatch batch = server.watch(key, prefix, cursor, MAX_BATCH, maxWaitMillis);
+				backoff = MIN_BACKOFF;
+				if (!batch.getChanges().isEmpty() || batch.hasMissedChanges()) {
+					listener.onChanges(batch.getChanges(), batch.hasMissedChanges());
+				}
+				cursor = batch.getCursor();
+				if (batch.getChanges().size() < MAX_BATCH) {
+					// A full batch may have left changes for the next call
+					lastSyncNanos = sent;
+					synced = true;
+				}
+			} catch (RemoteException e) {
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException interrupted) {
+					return;
+				}
+				backoff = Math.min(backoff * 2, MAX_BACKOFF);
+			}
+		}
+	}
+
+	/**
+	 * Stops the stream. A call in progress is abandoned.
+	 */
+	@Override
+	public void close() {
+		running = false;
+		thread.interrupt();
+	}
+}
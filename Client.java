@@ -4,6 +4,8 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * The client
@@ -12,34 +14,97 @@ import java.rmi.registry.Registry;
  */
 public class Client {
 	
+    // Number of key-value pairs sent in one multiPut request
+    private static final int PUT_BATCH_SIZE = 1000;
+	
     private Client() {}
     
-    // Read from the .txt file to get the pre-populated key-value pair then make the PUT request
+    // Read from the .txt file to get the pre-populated key-value pairs then send them in multiPut requests
     public static void readAndPut(String filePath, KVStoreInterface dict, Logger logger) {
         try (BufferedReader reader = Files.newBufferedReader(Paths.get(filePath))) {
+            Map<String, String> batch = new LinkedHashMap<>();
             String line;
             while ((line = reader.readLine()) != null) {
                 String[] parts = line.split("=", 2); // split by the first "=" occurrence
                 if (parts.length == 2) {
-                    String key = parts[0].trim();
-                    String value = parts[1].trim();
-                    dict.put(key, value);
-                    logger.log("Client sent request: put <"+key+", "+value+"> to the dictionary");
+                    batch.put(parts[0].trim(), parts[1].trim());
+                    if (batch.size() == PUT_BATCH_SIZE) {
+                        sendBatch(batch, dict, logger);
+                    }
                 } else {
                 	continue;
                 }
             }
+            if (!batch.isEmpty()) {
+                sendBatch(batch, dict, logger);
+            }
         } catch (IOException e) {
             logger.log("Failed to read the file: " + e.getMessage());
         }
     }
 
+    // Send the pairs in one multiPut request, then clear the batch
+    private static void sendBatch(Map<String, String> batch, KVStoreInterface dict, Logger logger) throws IOException {
+        Map<String, String> result = dict.multiPut(batch);
+        logger.log("Client sent request: multiPut of " + batch.size() + " pairs to the dictionary"
+                + (result == null ? " failed" : ""));
+        batch.clear();
+    }
+
+    // Print every change of the keys with the prefix until Enter is pressed
+    private static void watch(String host, int port, String prefix, boolean nio) {
+        try {
+            WatchInterface server;
+            if (nio) {
+                server = new NioPeer(host, port + PaxosServerCreator.NIO_PORT_OFFSET);
+            } else {
+                server = (WatchInterface) LocateRegistry.getRegistry(host, port).lookup("KVServer" + port);
+            }
+            ChangeStream stream = new ChangeStream(server, prefix, true, null, (changes, missedChanges) -> {
+                if (missedChanges) {
+                    System.out.println("(changes missed)");
+                }
+                for (Change change : changes) {
+                    System.out.println(change);
+                }
+            });
+            try {
+                System.out.println("Watching keys starting with \"" + prefix + "\". Press Enter to exit.");
+                System.in.read();
+            } finally {
+                stream.close();
+            }
+        } catch (Exception e) {
+            System.err.println("Watch failed: " + e);
+        }
+    }
+
     public static void main(String[] args) {
     	
-    	if (args.length != 2) {
-			System.out.println("Need to provide IP of the server and the port.");
+    	if (args.length < 2) {
+			System.out.println("Need to provide IP of the server and the port, optionally followed by the transport (rmi or nio).");
 			return;
 		}
+
+    	// --load=FILE runs the bulk loader, --watch=PREFIX prints the changes of the keys with the prefix, other
+    	// options of the form --name=value run the load generator instead of the scripted requests
+    	for (String arg : args) {
+    		if (arg.startsWith("--load=")) {
+    			BulkLoader.main(args);
+    			return;
+    		}
+    		if (arg.startsWith("--watch=")) {
+    			watch(args[0], Integer.parseInt(args[1]), arg.substring("--watch=".length()),
+    					args.length > 2 && args[2].equalsIgnoreCase("nio"));
+    			return;
+    		}
+    	}
+    	for (String arg : args) {
+    		if (arg.startsWith("--")) {
+    			LoadGenerator.main(args);
+    			return;
+    		}
+    	}
     	
     	Logger logger = new Logger("Client-log.txt");
     	
@@ -49,9 +114,15 @@ public class Client {
         
         try {
             // Get remote object reference
-            Registry registry = LocateRegistry.getRegistry(host, port);
-            KVStoreInterface stub = (KVStoreInterface) registry.lookup("KVServer"+port);
-            logger.log("Client registered to remote object '"+"ServerService"+port+"' at " + "<" + host + ":" + port + ">");
+            KVStoreInterface stub;
+            if (args.length > 2 && args[2].equalsIgnoreCase("nio")) {
+                stub = new NioPeer(host, port + PaxosServerCreator.NIO_PORT_OFFSET);
+                logger.log("Client connects over NIO to " + "<" + host + ":" + (port + PaxosServerCreator.NIO_PORT_OFFSET) + ">");
+            } else {
+                Registry registry = LocateRegistry.getRegistry(host, port);
+                stub = (KVStoreInterface) registry.lookup("KVServer"+port);
+                logger.log("Client registered to remote object '"+"ServerService"+port+"' at " + "<" + host + ":" + port + ">");
+            }
 
             // Pre-populate key value pairs from a txt file
             readAndPut("KeyValuePairs.txt", stub, logger);
@@ -77,6 +148,10 @@ public class Client {
             // Get an nonexistent key-value pair
             logger.log("Client sent request: get value of key 6 : " + stub.get("6"));
             
+            // Test conditional writes: the second compare-and-set finds the value already changed
+            logger.log("Client sent request: compareAndSet key 12 from msg10 to msg12 : " + stub.compareAndSet("12", "msg10", "msg12"));
+            logger.log("Client sent request: compareAndSet key 12 from msg10 to msg12 : " + stub.compareAndSet("12", "msg10", "msg12"));
+            
             // Test DELETE request
             logger.log("Client sent request: delete value of key 1 : " + stub.delete("1"));
             logger.log("Client sent request: delete value of key 2 : " + stub.delete("2"));
@@ -0,0 +1,526 @@
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * Deterministic simulation of a basic Paxos cluster on virtual time. N real Server instances act as the
+ * acceptors and learners, with their own failure simulation turned off. Their prepare, accept and learn
+ * handlers are called directly on the simulation thread, without the executors and timeouts of the remote
+ * entry points, so wall-clock time never decides an outcome. Every message between them goes
+ * through a simulated network that draws delay, loss and reordering from a single seeded random
+ * generator, and nodes are paused at random for a while, during which their messages and timers wait.
+ * The proposer side of each instance runs as an event-driven state machine on one thread: an event queue
+ * ordered by virtual time stands in for threads, sleeps and timeouts, so a run takes no longer than the
+ * acceptor calls it makes and a run is reproduced exactly by its seed.
+ * Closed-loop clients write random keys through random nodes. A proposer whose instance chose another
+ * proposer's value, or which lost a phase, retries its own value after a randomized exponential backoff
+ * until the give-up deadline. Once the run is over the network drains, and the replicas are compared.
+ * Usage: java ClusterSimulator [--name=value ...], options are listed in {@link #USAGE}. List options take
+ * comma-separated values, and every combination is simulated in turn.
+ * @author ZHANG Mao
+ *
+ */
+public class ClusterSimulator {
+
+	static final String USAGE = "Usage: ClusterSimulator [--nodes=3,5,7] [--loss=0,0.01,0.05] [--seed=1]"
+			+ " [--duration-s=10] [--clients=16] [--keys=1000]"
+			+ " [--delay=exp:1] [--reorder=0] [--reorder-delay=uniform:0:20]"
+			+ " [--pause-rate=0 (pauses per node per s)] [--pause=exp:200] [--service=const:0.02]"
+			+ " [--timeout-ms=1200] [--backoff-ms=5] [--give-up-ms=10000]";
+
+	// Virtual time is counted in microseconds
+	private static final long MICROS_PER_MILLI = 1000;
+	private static final long MICROS_PER_SECOND = 1_000_000;
+	// Longest time the network is given to drain after the run
+	private static final long DRAIN_TIME = 60 * MICROS_PER_SECOND;
+	private static final int MAX_BACKOFF_DOUBLINGS = 6;
+
+	/**
+	 * A random variable in milliseconds, drawn from the generator of the simulation.
+	 */
+	@FunctionalInterface
+	interface Distribution {
+		double sample(Random random);
+
+		/**
+		 * @param spec "const:X", "uniform:MIN:MAX", "exp:MEAN" or "lognormal:MEDIAN:SIGMA", in milliseconds.
+		 */
+		static Distribution parse(String spec) {
+			String[] parts = spec.split(":");
+			switch (parts[0].toLowerCase()) {
+				case "const": {
+					double value = Double.parseDouble(parts[1]);
+					return random -> value;
+				}
+				case "uniform": {
+					double min = Double.parseDouble(parts[1]);
+					double max = Double.parseDouble(parts[2]);
+					return random -> min + (max - min) * random.nextDouble();
+				}
+				case "exp": {
+					double mean = Double.parseDouble(parts[1]);
+					return random -> -mean * Math.log(1 - random.nextDouble());
+				}
+				case "lognormal": {
+					double mu = Math.log(Double.parseDouble(parts[1]));
+					double sigma = Double.parseDouble(parts[2]);
+					return random -> Math.exp(mu + sigma * random.nextGaussian());
+				}
+				default:
+					throw new IllegalArgumentException("Unknown distribution: " + spec);
+			}
+		}
+	}
+
+	/**
+	 * An action due at a point of virtual time. Events due at the same time run in the order they were
+	 * scheduled. An event owned by a node waits while the node is paused.
+	 */
+	private static final class Event implements Comparable<Event> {
+		final long time;
+		final long sequence;
+		final int node;
+		final Runnable action;
+
+		Event(long time, long sequence, int node, Runnable action) {
+			this.time = time;
+			this.sequence = sequence;
+			this.node = node;
+			this.action = action;
+		}
+
+		@Override
+		public int compareTo(Event other) {
+			int byTime = Long.compare(time, other.time);
+			return byTime != 0 ? byTime : Long.compare(sequence, other.sequence);
+		}
+	}
+
+	/**
+	 * A request sent by an acceptor or learner call.
+	 */
+	@FunctionalInterface
+	private interface Call {
+		Object call(Server server) throws RemoteException;
+	}
+
+	/**
+	 * A client write, driven through as many Paxos instances as it takes to choose it.
+	 */
+	private final class Proposal {
+		final int client;
+		final int node;
+		final String key;
+		final Operation operation;
+		final long submitted;
+		int attempt;
+		long instance;
+		long proposalId;
+		int phase;
+		int granted;
+		int rejected;
+		boolean behind;
+		ProposalResponse highest;
+
+		Proposal(int client, int node, String key, Operation operation) {
+			this.client = client;
+			this.node = node;
+			this.key = key;
+			this.operation = operation;
+			this.submitted = now;
+		}
+	}
+
+	private static final int PREPARING = 1;
+	private static final int ACCEPTING = 2;
+	private static final int LEARNING = 3;
+
+	private final int nodes;
+	private final double loss;
+	private final long seed;
+	private final long duration;
+	private final int clients;
+	private final int keys;
+	private final Distribution delay;
+	private final double reorder;
+	private final Distribution reorderDelay;
+	private final double pauseRate;
+	private final Distribution pauseLength;
+	private final Distribution serviceTime;
+	private final long timeout;
+	private final long backoff;
+	private final long giveUp;
+
+	private final Random random;
+	private final PriorityQueue<Event> events = new PriorityQueue<>();
+	private long sequence;
+	private long now;
+	private boolean running = true;
+
+	private Server[] servers;
+	private final long[] pausedUntil;
+	private final long[] busyUntil;
+	// The proposal IDs of each node, as issued by Server
+	private final Ballot[] ballots;
+
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private long committed;
+	private long failed;
+	private long rounds;
+	private long retries;
+	private long messages;
+	private long dropped;
+	private long pauses;
+	private long resentNotices;
+	private int divergentKeys;
+
+	ClusterSimulator(int nodes, double loss, Map<String, String> options) {
+		this.nodes = nodes;
+		this.loss = loss;
+		this.seed = Long.parseLong(options.getOrDefault("seed", "1"));
+		this.duration = Long.parseLong(options.getOrDefault("duration-s", "10")) * MICROS_PER_SECOND;
+		this.clients = Integer.parseInt(options.getOrDefault("clients", "16"));
+		this.keys = Integer.parseInt(options.getOrDefault("keys", "1000"));
+		this.delay = Distribution.parse(options.getOrDefault("delay", "exp:1"));
+		this.reorder = Double.parseDouble(options.getOrDefault("reorder", "0"));
+		this.reorderDelay = Distribution.parse(options.getOrDefault("reorder-delay", "uniform:0:20"));
+		this.pauseRate = Double.parseDouble(options.getOrDefault("pause-rate", "0"));
+		this.pauseLength = Distribution.parse(options.getOrDefault("pause", "exp:200"));
+		this.serviceTime = Distribution.parse(options.getOrDefault("service", "const:0.02"));
+		this.timeout = Long.parseLong(options.getOrDefault("timeout-ms", "1200")) * MICROS_PER_MILLI;
+		this.backoff = Long.parseLong(options.getOrDefault("backoff-ms", "5")) * MICROS_PER_MILLI;
+		this.giveUp = Long.parseLong(options.getOrDefault("give-up-ms", "10000")) * MICROS_PER_MILLI;
+		this.random = new Random(seed);
+		this.pausedUntil = new long[nodes];
+		this.busyUntil = new long[nodes];
+		this.ballots = new Ballot[nodes];
+		for (int node = 0; node < nodes; node++) {
+			ballots[node] = new Ballot(node);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<>();
+		for (String arg : args) {
+			if (!arg.startsWith("--")) {
+				System.out.println(USAGE);
+				return;
+			}
+			String[] parts = arg.substring(2).split("=", 2);
+			options.put(parts[0], parts.length == 2 ? parts[1] : "true");
+		}
+		System.setProperty("logger.stdout", "false");
+		System.setProperty("logger.level", "WARN");
+
+		System.out.println("nodes,loss,seed,committed,failed,ops_per_s,p50_ms,p99_ms,max_ms,rounds,retries,"
+				+ "messages,dropped,resent_notices,pauses,divergent_keys,real_s,rounds_per_real_s");
+		for (String nodes : options.getOrDefault("nodes", "5").split(",")) {
+			for (String loss : options.getOrDefault("loss", "0").split(",")) {
+				new ClusterSimulator(Integer.parseInt(nodes.trim()), Double.parseDouble(loss.trim()), options).run();
+			}
+		}
+		System.exit(0);
+	}
+
+	void run() throws RemoteException {
+		long realStart = System.nanoTime();
+		String outcome = simulate();
+		double realSeconds = (System.nanoTime() - realStart) / 1e9;
+		System.out.println(outcome + String.format(",%.2f,%.0f", realSeconds, rounds / realSeconds));
+	}
+
+	/**
+	 * Runs the simulation once. A simulator is good for a single run.
+	 * @return The columns of the result up to divergent_keys, which depend only on the options and the seed.
+	 */
+	String simulate() throws RemoteException {
+		servers = new Server[nodes];
+		for (int i = 0; i < nodes; i++) {
+			servers[i] = new Server(i, nodes, false);
+			servers[i].setFailureProbability(0);
+		}
+		for (int client = 0; client < clients; client++) {
+			submit(client);
+		}
+		if (pauseRate > 0) {
+			for (int node = 0; node < nodes; node++) {
+				schedulePause(node);
+			}
+		}
+		// Run the workload, then let the messages in flight arrive
+		dispatch(duration);
+		running = false;
+		dispatch(duration + DRAIN_TIME);
+
+		divergentKeys = countDivergentKeys();
+		for (Server server : servers) {
+			server.close();
+		}
+		return String.format("%d,%s,%d,%d,%d,%.1f,%.3f,%.3f,%.3f,%d,%d,%d,%d,%d,%d,%d", nodes, loss, seed, committed,
+				failed, committed * (double) MICROS_PER_SECOND / duration, latency.getValueAtPercentile(50) / 1e6,
+				latency.getValueAtPercentile(99) / 1e6, latency.getMax() / 1e6, rounds, retries, messages, dropped,
+				resentNotices, pauses, divergentKeys);
+	}
+
+	private void dispatch(long until) {
+		while (!events.isEmpty() && events.peek().time <= until) {
+			Event event = events.poll();
+			now = event.time;
+			if (event.node >= 0 && pausedUntil[event.node] > now) {
+				schedule(pausedUntil[event.node] - now, event.node, event.action);
+				continue;
+			}
+			event.action.run();
+		}
+	}
+
+	private void schedule(long delayMicros, int node, Runnable action) {
+		events.add(new Event(now + delayMicros, sequence++, node, action));
+	}
+
+	private long sample(Distribution distribution) {
+		return Math.max(0, (long) (distribution.sample(random) * MICROS_PER_MILLI));
+	}
+
+	private void schedulePause(int node) {
+		long gap = (long) (-Math.log(1 - random.nextDouble()) / pauseRate * MICROS_PER_SECOND);
+		schedule(gap, -1, () -> {
+			if (!running) {
+				return;
+			}
+			pauses++;
+			pausedUntil[node] = Math.max(pausedUntil[node], now + sample(pauseLength));
+			schedulePause(node);
+		});
+	}
+
+	/**
+	 * Delivers a message from one node to another after a network delay, unless it is lost. A node
+	 * reaches itself through a local call, which is neither delayed nor lost.
+	 */
+	private void send(int from, int to, Runnable delivery) {
+		messages++;
+		if (from == to) {
+			schedule(0, to, delivery);
+			return;
+		}
+		if (random.nextDouble() < loss) {
+			dropped++;
+			return;
+		}
+		long messageDelay = sample(delay);
+		if (reorder > 0 && random.nextDouble() < reorder) {
+			messageDelay += sample(reorderDelay); // held back, so later messages overtake it
+		}
+		schedule(messageDelay, to, delivery);
+	}
+
+	/**
+	 * Sends a request to a server, which handles requests one at a time, and its reply back.
+	 * @param onReply Receives the reply on the sender, or null if no reply is expected.
+	 */
+	private void request(int from, int to, Call call, Consumer<Object> onReply) {
+		send(from, to, () -> {
+			long start = Math.max(now, busyUntil[to]);
+			busyUntil[to] = start + sample(serviceTime);
+			schedule(busyUntil[to] - now, to, () -> {
+				Object reply;
+				try {
+					reply = call.call(servers[to]);
+				} catch (RemoteException e) {
+					return;
+				}
+				if (onReply != null) {
+					send(to, from, () -> onReply.accept(reply));
+				}
+			});
+		});
+	}
+
+	private void submit(int client) {
+		if (!running) {
+			return;
+		}
+		int node = random.nextInt(nodes);
+		String key = "key" + random.nextInt(keys);
+		Operation operation = new Operation("PUT", key, "value" + client + "_" + random.nextInt(Integer.MAX_VALUE));
+		startAttempt(new Proposal(client, node, key, operation));
+	}
+
+	private void startAttempt(Proposal proposal) {
+		rounds++;
+		proposal.attempt++;
+		long proposalId = ballots[proposal.node].next();
+		proposal.instance = servers[proposal.node].learnedInstances(proposal.key);
+		proposal.proposalId = proposalId;
+		proposal.phase = PREPARING;
+		proposal.granted = 0;
+		proposal.rejected = 0;
+		proposal.behind = false;
+		proposal.highest = null;
+		for (int acceptor = 0; acceptor < nodes; acceptor++) {
+			int node = acceptor;
+			request(proposal.node, acceptor, server -> {
+				ballots[node].observe(proposalId); // as Server.prepare does before handlePrepare
+				return server.handlePrepare(proposal.key, proposal.instance, proposalId);
+			},
+					reply -> onPromise(proposal, proposalId, (ProposalResponse) reply));
+		}
+		schedule(timeout, proposal.node, () -> {
+			if (proposal.proposalId == proposalId && proposal.phase != LEARNING) {
+				retry(proposal);
+			}
+		});
+	}
+
+	private void onPromise(Proposal proposal, long proposalId, ProposalResponse response) {
+		if (proposal.proposalId != proposalId || proposal.phase != PREPARING) {
+			return;
+		}
+		if (!response.isPromise()) {
+			ballots[proposal.node].observe(response.getPromisedId());
+			if (response.getInstance() > proposal.instance && !proposal.behind) {
+				proposal.behind = true;
+				catchUp(proposal);
+			}
+			if (++proposal.rejected > nodes - quorum()) {
+				retry(proposal);
+			}
+			return;
+		}
+		if (proposal.highest == null || response.getLastAcceptedId() > proposal.highest.getLastAcceptedId()) {
+			proposal.highest = response;
+		}
+		if (++proposal.granted == quorum()) {
+			proposal.phase = ACCEPTING;
+			proposal.granted = 0;
+			proposal.rejected = 0;
+			Object value = proposal.highest.getLastAcceptedId() == -1 ? proposal.operation
+					: proposal.highest.getLastAcceptedValue();
+			for (int acceptor = 0; acceptor < nodes; acceptor++) {
+				long instance = proposal.instance;
+				request(proposal.node, acceptor, server -> server.handleAccept(proposal.key, instance, proposalId, value),
+						reply -> onAccepted(proposal, proposalId, value, (Boolean) reply));
+			}
+		}
+	}
+
+	private void onAccepted(Proposal proposal, long proposalId, Object value, boolean accepted) {
+		if (proposal.proposalId != proposalId || proposal.phase != ACCEPTING) {
+			return;
+		}
+		if (!accepted) {
+			if (++proposal.rejected > nodes - quorum()) {
+				retry(proposal);
+			}
+			return;
+		}
+		if (++proposal.granted == quorum()) {
+			proposal.phase = LEARNING;
+			request(proposal.node, proposal.node, server -> server.handleLearn(proposal.key, proposal.instance, value),
+					reply -> onLearned(proposal, value));
+			for (int learner = 0; learner < nodes; learner++) {
+				if (learner != proposal.node) {
+					notifyLearner(proposal.node, learner, proposal.key, proposal.instance, value);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends the notice of a decided instance to another learner, and sends it again after the timeout until
+	 * the learner acknowledges that it has learned the instance, as Server re-sends the notices that
+	 * failed. A learner that missed earlier instances takes the key's state from the proposer, and
+	 * acknowledges a later copy of the notice once it caught up.
+	 */
+	private void notifyLearner(int proposer, int learner, String key, long instance, Object value) {
+		boolean[] acknowledged = new boolean[1];
+		request(proposer, learner, server -> {
+			server.handleLearn(key, instance, value);
+			if (server.learnedInstances(key) <= instance) {
+				request(learner, proposer, other -> other.learnedState(key),
+						state -> servers[learner].install(key, (KeyState) state));
+				return false;
+			}
+			return true;
+		}, reply -> acknowledged[0] |= (Boolean) reply);
+		schedule(timeout, proposer, () -> {
+			if (!acknowledged[0]) {
+				resentNotices++;
+				notifyLearner(proposer, learner, key, instance, value);
+			}
+		});
+	}
+
+	/**
+	 * The proposer's node is behind on the decided instances of the key, as an acceptor in a later instance
+	 * told it: fetches the key's state from every node and installs any that is ahead, as Server does.
+	 */
+	private void catchUp(Proposal proposal) {
+		for (int learner = 0; learner < nodes; learner++) {
+			request(proposal.node, learner, server -> server.learnedState(proposal.key),
+					reply -> servers[proposal.node].install(proposal.key, (KeyState) reply));
+		}
+	}
+
+	private void onLearned(Proposal proposal, Object value) {
+		if (!Objects.equals(value, proposal.operation)) {
+			retry(proposal); // the instance chose an earlier proposer's value, the own write is still pending
+			return;
+		}
+		if (running) {
+			committed++;
+			latency.record((now - proposal.submitted) * 1000);
+			submit(proposal.client);
+		}
+	}
+
+	private void retry(Proposal proposal) {
+		proposal.phase = 0;
+		if (!running) {
+			return; // writes still pending at the end of the run are abandoned
+		}
+		if (now - proposal.submitted >= giveUp) {
+			failed++;
+			submit(proposal.client);
+			return;
+		}
+		retries++;
+		long maxBackoff = backoff << Math.min(proposal.attempt, MAX_BACKOFF_DOUBLINGS);
+		schedule((long) (random.nextDouble() * maxBackoff), proposal.node, () -> startAttempt(proposal));
+	}
+
+	/**
+	 * @return The number of keys whose replicas disagreed after the network drained, once simulate() returned.
+	 */
+	int getDivergentKeys() {
+		return divergentKeys;
+	}
+
+	private int quorum() {
+		return nodes / 2 + 1;
+	}
+
+	/**
+	 * @return The number of keys whose value is not the same on all replicas.
+	 */
+	private int countDivergentKeys() throws RemoteException {
+		int divergent = 0;
+		for (int i = 0; i < keys; i++) {
+			List<String> values = new ArrayList<>();
+			for (Server server : servers) {
+				values.add(server.get("key" + i));
+			}
+			if (values.stream().distinct().count() > 1) {
+				divergent++;
+			}
+		}
+		return divergent;
+	}
+}
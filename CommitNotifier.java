@@ -0,0 +1,177 @@
+import java.rmi.RemoteException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Tells the other learners of a group about chosen values in the background, so that a proposer replies
+ * to its client as soon as it has applied a value itself instead of after a round trip to every learner.
+ * The notices to a learner are spread over LANES queues by a lane number, e.g. the hash of the key, and
+ * one thread at a time delivers the notices of a lane in order. Notices of one key thus arrive in the
+ * order they were chosen, while up to LANES notices per learner are in flight.
+ * A notice that fails stays at the head of its lane, and delivery resumes with the next call to
+ * {@link #retry()}. At most MAX_PENDING notices are queued per lane; older ones are dropped and the
+ * learner has to catch up: from the replicated log, or in basic mode from the other learners as soon as
+ * the next notice of the key shows that earlier ones are missing.
+ * A learner that is reachable but slow is not left behind: once MAX_LAG notices are queued for it,
+ * proposers wait for it to work them off, which paces writes to the slowest live learner.
+ * @author ZHANG Mao
+ *
+ */
+public class CommitNotifier {
+
+	private static final int LANES = 8;
+	private static final int MAX_PENDING = 100_000 / LANES;
+	private static final int MAX_LAG = 256;
+	private static final long LAG_WAIT_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+	/**
+	 * Delivers one notice to a learner.
+	 */
+	interface Notice {
+		void deliver(LearnerInterface learner) throws RemoteException;
+	}
+
+	private final LearnerInterface[] learners;
+	private final int self;
+	private final Executor executor;
+	private final ServerMetrics metrics;
+	private final Logger logger;
+	// The lanes of learner i are lanes[i * LANES] to lanes[i * LANES + LANES - 1]
+	private final Lane[] lanes;
+	private final AtomicInteger[] pendingCounts;
+
+	/**
+	 * @param learners The learners of the group, indexed by server ID.
+	 * @param self The ID of this server, which applies chosen values itself and is never notified.
+	 * @param executor Runs the calls to the learners.
+	 * @param metrics Counts failed and dropped notices.
+	 * @param logger The server log.
+	 */
+	public CommitNotifier(LearnerInterface[] learners, int self, Executor executor, ServerMetrics metrics, Logger logger) {
+		this.learners = learners;
+		this.self = self;
+		this.executor = executor;
+		this.metrics = metrics;
+		this.logger = logger;
+		this.lanes = new Lane[learners.length * LANES];
+		for (int i = 0; i < lanes.length; i++) {
+			lanes[i] = new Lane();
+		}
+		this.pendingCounts = new AtomicInteger[learners.length];
+		for (int i = 0; i < learners.length; i++) {
+			pendingCounts[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * Queues the notice for every other learner. Waits only while a learner that is not failing lags more
+	 * than MAX_LAG notices behind.
+	 * @param lane Notices with the same lane number are delivered in the order they were queued.
+	 * @param notice The notice.
+	 */
+	public void notifyLearners(int lane, Notice notice) {
+		for (int i = 0; i < learners.length; i++) {
+			if (i != self) {
+				Lane queue = lanes[i * LANES + (lane & (LANES - 1))];
+				queue.pending.add(notice);
+				pendingCounts[i].incrementAndGet();
+				if (queue.pendingCount.incrementAndGet() > MAX_PENDING && queue.pending.poll() != null) {
+					queue.pendingCount.decrementAndGet();
+					pendingCounts[i].decrementAndGet();
+					metrics.commitNoticesDropped.increment();
+				}
+				deliver(i, queue, false);
+			}
+		}
+		for (int i = 0; i < learners.length; i++) {
+			while (pendingCounts[i].get() > MAX_LAG && !isFailing(i) && !Thread.currentThread().isInterrupted()) {
+				LockSupport.parkNanos(LAG_WAIT_NANOS);
+			}
+		}
+	}
+
+	/**
+	 * Resumes delivery on every lane whose last notice failed.
+	 */
+	public void retry() {
+		for (int i = 0; i < lanes.length; i++) {
+			if (lanes[i].failed) {
+				deliver(i / LANES, lanes[i], true);
+			}
+		}
+	}
+
+	/**
+	 * @return The number of notices not delivered yet.
+	 */
+	public long getPendingCount() {
+		long pending = 0;
+		for (AtomicInteger count : pendingCounts) {
+			pending += count.get();
+		}
+		return pending;
+	}
+
+	private boolean isFailing(int learner) {
+		for (int lane = 0; lane < LANES; lane++) {
+			if (lanes[learner * LANES + lane].failed) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Starts a thread delivering the queued notices of a lane, unless one is running.
+	 * @param learner The ID of the learner.
+	 * @param lane The lane.
+	 * @param retry Whether to resume after a failure; otherwise the retry waits for the next tick.
+	 */
+	private void deliver(int learner, Lane lane, boolean retry) {
+		if ((lane.failed && !retry) || !lane.delivering.compareAndSet(false, true)) {
+			return;
+		}
+		executor.execute(() -> {
+			try {
+				Notice notice;
+				while ((notice = lane.pending.peek()) != null) {
+					notice.deliver(learners[learner]);
+					lane.failed = false;
+					if (lane.pending.poll() != null) {
+						lane.pendingCount.decrementAndGet();
+						pendingCounts[learner].decrementAndGet();
+					}
+				}
+			} catch (RemoteException | RuntimeException e) {
+				// A runtime exception comes from a learner in the same process, e.g. one that is shutting down
+				if (!lane.failed) {
+					logger.log("Commit notice to Server_" + learner + " failed, retrying later: " + e.getMessage());
+				}
+				lane.failed = true;
+				metrics.commitNoticeFailures.increment();
+			} finally {
+				lane.delivering.set(false);
+			}
+			// A notice queued while the delivery was ending found it still running
+			if (!lane.failed && !lane.pending.isEmpty()) {
+				deliver(learner, lane, false);
+			}
+		});
+	}
+
+	/**
+	 * Notices queued for one lane of a learner.
+	 */
+	private static final class Lane {
+		final ConcurrentLinkedQueue<Notice> pending = new ConcurrentLinkedQueue<>();
+		final AtomicInteger pendingCount = new AtomicInteger();
+		// Set while a thread delivers the queued notices, so that they are sent once and in order
+		final AtomicBoolean delivering = new AtomicBoolean();
+		// Whether the last delivery failed; delivery then resumes on the next retry tick
+		volatile boolean failed;
+	}
+}
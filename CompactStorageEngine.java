@@ -0,0 +1,561 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Storage engine which keeps keys and values as UTF-8 bytes in large pages, either direct buffers outside
+ * the Java heap or plain byte arrays. A page holds many records and no references, so the garbage collector
+ * never traces the entries, and the heap cost per entry is 12 bytes of index.
+ * An entry is a record [hash][key length][value length][key][value] appended to the current page of its
+ * segment. The segment's index is an open-addressed table of parallel arrays (hash, record address) with
+ * linear probing. A lookup compares the key with the stored bytes in place, so reading allocates nothing
+ * but the returned String.
+ * A value of the same encoded length is overwritten in place. Otherwise the new record is appended and the
+ * old one becomes garbage. Once garbage makes up half of a segment's records, the segment slides its live
+ * records towards the start of its pages and recycles the pages it freed.
+ * Each segment is guarded by a StampedLock. Writes take it exclusively. Reads first run without locking
+ * and only take it if a write intervened.
+ * @author ZHANG Mao
+ *
+ */
+public class CompactStorageEngine implements StorageEngine {
+
+	static final int DEFAULT_SEGMENTS = 64;
+	static final int DEFAULT_PAGE_SIZE = 1 << 20;
+	private static final int HEADER = 12; // hash, key length, value length
+	private static final int INITIAL_CAPACITY = 16;
+	private static final int MAX_FREE_PAGES = 2;
+	private static final int MAX_SCRATCH = 64 * 1024;
+	// Copies values out of direct pages before they are decoded
+	private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[256]);
+
+	private final Segment[] segments;
+	private final int segmentShift;
+	private final int pageSize;
+	private final boolean direct;
+
+	/**
+	 * Creates an engine with {@link #DEFAULT_SEGMENTS} segments of {@link #DEFAULT_PAGE_SIZE} byte pages.
+	 * @param direct Whether pages are direct buffers outside the heap rather than byte arrays.
+	 */
+	public CompactStorageEngine(boolean direct) {
+		this(DEFAULT_SEGMENTS, DEFAULT_PAGE_SIZE, direct);
+	}
+
+	/**
+	 * @param segmentCount The number of independently locked segments, a power of two.
+	 * @param pageSize The size of a page in bytes. Larger records get a page of their own.
+	 * @param direct Whether pages are direct buffers outside the heap rather than byte arrays.
+	 */
+	public CompactStorageEngine(int segmentCount, int pageSize, boolean direct) {
+		if (Integer.bitCount(segmentCount) != 1) {
+			throw new IllegalArgumentException("Segment count must be a power of two: " + segmentCount);
+		}
+		this.segments = new Segment[segmentCount];
+		this.segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCount);
+		this.pageSize = pageSize;
+		this.direct = direct;
+		for (int i = 0; i < segmentCount; i++) {
+			segments[i] = new Segment();
+		}
+	}
+
+	private static int hash(String key) {
+		int h = key.hashCode() * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+
+	private Segment segmentFor(int hash) {
+		// The index probes from the low bits, so the segment is taken from the high ones
+		return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+	}
+
+	@Override
+	public String get(String key) {
+		int hash = hash(key);
+		Segment segment = segmentFor(hash);
+		long stamp = segment.lock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				String value = segment.get(key, hash);
+				if (segment.lock.validate(stamp)) {
+					return value;
+				}
+			} catch (RuntimeException e) {
+				// Read state torn by a concurrent write, read again under the lock
+			}
+		}
+		stamp = segment.lock.readLock();
+		try {
+			return segment.get(key, hash);
+		} finally {
+			segment.lock.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public String put(String key, String value) {
+		Objects.requireNonNull(value);
+		int hash = hash(key);
+		Segment segment = segmentFor(hash);
+		long stamp = segment.lock.writeLock();
+		try {
+			return segment.put(key, hash, value);
+		} finally {
+			segment.lock.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public String remove(String key) {
+		int hash = hash(key);
+		Segment segment = segmentFor(hash);
+		long stamp = segment.lock.writeLock();
+		try {
+			return segment.remove(key, hash);
+		} finally {
+			segment.lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Not synchronized, for reporting only.
+	 */
+	@Override
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			size += segment.size;
+		}
+		return size;
+	}
+
+	/**
+	 * @return The bytes of all pages, including free ones. Not synchronized, for reporting only.
+	 */
+	@Override
+	public long reservedBytes() {
+		long reserved = 0;
+		for (Segment segment : segments) {
+			reserved += segment.reserved;
+		}
+		return reserved;
+	}
+
+	/**
+	 * @return The bytes of the records of the current entries. Not synchronized, for reporting only.
+	 */
+	public long liveBytes() {
+		long live = 0;
+		for (Segment segment : segments) {
+			live += segment.live;
+		}
+		return live;
+	}
+
+	/**
+	 * Visits one segment at a time, holding its read lock.
+	 */
+	@Override
+	public void forEach(EntryVisitor visitor) throws IOException {
+		for (Segment segment : segments) {
+			long stamp = segment.lock.readLock();
+			try {
+				segment.forEach(visitor);
+			} finally {
+				segment.lock.unlockRead(stamp);
+			}
+		}
+	}
+
+	// Addresses are the page index plus one in the high word and the offset in the low word, 0 is no record
+	private static long address(int page, int offset) {
+		return (long) (page + 1) << 32 | offset;
+	}
+
+	private static int pageOf(long address) {
+		return (int) (address >>> 32) - 1;
+	}
+
+	private static int offsetOf(long address) {
+		return (int) address;
+	}
+
+	private static int recordLength(ByteBuffer page, int offset) {
+		return HEADER + page.getInt(offset + 4) + page.getInt(offset + 8);
+	}
+
+	/**
+	 * @return The length of the string in UTF-8. Unpaired surrogates count as one byte, as they are
+	 *         encoded as '?' like String.getBytes does.
+	 */
+	static int utf8Length(String s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				length++;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (!Character.isSurrogate(c)) {
+				length += 3;
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else {
+				length++;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Writes the string in UTF-8 at the given offset, without an intermediate array.
+	 * @return The offset after the string.
+	 */
+	static int encode(String s, ByteBuffer page, int offset) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				page.put(offset++, (byte) c);
+			} else if (c < 0x800) {
+				page.put(offset++, (byte) (0xc0 | c >> 6));
+				page.put(offset++, (byte) (0x80 | c & 0x3f));
+			} else if (!Character.isSurrogate(c)) {
+				page.put(offset++, (byte) (0xe0 | c >> 12));
+				page.put(offset++, (byte) (0x80 | c >> 6 & 0x3f));
+				page.put(offset++, (byte) (0x80 | c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, s.charAt(++i));
+				page.put(offset++, (byte) (0xf0 | codePoint >> 18));
+				page.put(offset++, (byte) (0x80 | codePoint >> 12 & 0x3f));
+				page.put(offset++, (byte) (0x80 | codePoint >> 6 & 0x3f));
+				page.put(offset++, (byte) (0x80 | codePoint & 0x3f));
+			} else {
+				page.put(offset++, (byte) '?');
+			}
+		}
+		return offset;
+	}
+
+	/**
+	 * @return Whether the bytes at the given offset are the string encoded by {@link #encode}.
+	 */
+	static boolean matches(String s, ByteBuffer page, int offset, int length) {
+		int end = offset + length;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				if (offset >= end || page.get(offset++) != (byte) c) {
+					return false;
+				}
+			} else if (c < 0x800) {
+				if (offset + 2 > end
+						|| page.get(offset++) != (byte) (0xc0 | c >> 6)
+						|| page.get(offset++) != (byte) (0x80 | c & 0x3f)) {
+					return false;
+				}
+			} else if (!Character.isSurrogate(c)) {
+				if (offset + 3 > end
+						|| page.get(offset++) != (byte) (0xe0 | c >> 12)
+						|| page.get(offset++) != (byte) (0x80 | c >> 6 & 0x3f)
+						|| page.get(offset++) != (byte) (0x80 | c & 0x3f)) {
+					return false;
+				}
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, s.charAt(++i));
+				if (offset + 4 > end
+						|| page.get(offset++) != (byte) (0xf0 | codePoint >> 18)
+						|| page.get(offset++) != (byte) (0x80 | codePoint >> 12 & 0x3f)
+						|| page.get(offset++) != (byte) (0x80 | codePoint >> 6 & 0x3f)
+						|| page.get(offset++) != (byte) (0x80 | codePoint & 0x3f)) {
+					return false;
+				}
+			} else if (offset >= end || page.get(offset++) != (byte) '?') {
+				return false;
+			}
+		}
+		return offset == end;
+	}
+
+	private static String decode(ByteBuffer page, int offset, int length) {
+		// Checked first: a read racing with a write may see any length
+		Objects.checkFromIndexSize(offset, length, page.capacity());
+		if (page.hasArray()) {
+			return new String(page.array(), page.arrayOffset() + offset, length, StandardCharsets.UTF_8);
+		}
+		byte[] bytes = length <= MAX_SCRATCH ? SCRATCH.get() : new byte[length];
+		if (bytes.length < length) {
+			bytes = new byte[Math.max(length, bytes.length * 2)];
+			SCRATCH.set(bytes);
+		}
+		page.get(offset, bytes, 0, length);
+		return new String(bytes, 0, length, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Copies length bytes within the pages from a later position to an earlier one. Words are read before
+	 * they are overwritten, so the ranges may overlap.
+	 */
+	private static void moveDown(ByteBuffer from, int fromOffset, ByteBuffer to, int toOffset, int length) {
+		int i = 0;
+		for (; i + 8 <= length; i += 8) {
+			to.putLong(toOffset + i, from.getLong(fromOffset + i));
+		}
+		for (; i < length; i++) {
+			to.put(toOffset + i, from.get(fromOffset + i));
+		}
+	}
+
+	/**
+	 * A segment of the index with the pages holding its records. All methods except get require the
+	 * caller to hold the write lock; get may also run unlocked if the caller validates the result.
+	 */
+	private final class Segment {
+		final StampedLock lock = new StampedLock();
+		int[] hashes = new int[INITIAL_CAPACITY];
+		long[] addresses = new long[INITIAL_CAPACITY];
+		int size;
+		ByteBuffer[] pages = new ByteBuffer[4];
+		int[] fills = new int[4];
+		int pageCount;
+		final ArrayDeque<ByteBuffer> freePages = new ArrayDeque<>();
+		// Record bytes of current entries, and bytes lost to overwritten records and page tails
+		long live;
+		long garbage;
+		// Page tails left by the last compaction, which another compaction would not reclaim
+		long garbageAfterCompaction;
+		long reserved;
+
+		int find(String key, int hash) {
+			int[] hashes = this.hashes;
+			long[] addresses = this.addresses;
+			int mask = addresses.length - 1;
+			int slot = hash & mask;
+			// Bounded, as an unlocked read may probe a table being filled
+			for (int probes = 0; probes <= mask && addresses[slot] != 0; probes++) {
+				if (hashes[slot] == hash && keyMatches(addresses[slot], key)) {
+					return slot;
+				}
+				slot = (slot + 1) & mask;
+			}
+			return -1;
+		}
+
+		private boolean keyMatches(long address, String key) {
+			ByteBuffer page = pages[pageOf(address)];
+			int offset = offsetOf(address);
+			return matches(key, page, offset + HEADER, page.getInt(offset + 4));
+		}
+
+		private String valueAt(long address) {
+			ByteBuffer page = pages[pageOf(address)];
+			int offset = offsetOf(address);
+			int keyLength = page.getInt(offset + 4);
+			return decode(page, offset + HEADER + keyLength, page.getInt(offset + 8));
+		}
+
+		String get(String key, int hash) {
+			int slot = find(key, hash);
+			return slot >= 0 ? valueAt(addresses[slot]) : null;
+		}
+
+		String put(String key, int hash, String value) {
+			int valueLength = utf8Length(value);
+			int slot = find(key, hash);
+			if (slot >= 0) {
+				long address = addresses[slot];
+				ByteBuffer page = pages[pageOf(address)];
+				int offset = offsetOf(address);
+				int keyLength = page.getInt(offset + 4);
+				int oldValueLength = page.getInt(offset + 8);
+				String previous = decode(page, offset + HEADER + keyLength, oldValueLength);
+				if (oldValueLength == valueLength) {
+					encode(value, page, offset + HEADER + keyLength);
+					return previous;
+				}
+				int oldLength = HEADER + keyLength + oldValueLength;
+				live -= oldLength;
+				garbage += oldLength;
+				addresses[slot] = append(hash, key, keyLength, value, valueLength);
+				compactIfSparse();
+				return previous;
+			}
+			if ((size + 1) * 4 > addresses.length * 3) {
+				resize(addresses.length * 2);
+			}
+			int mask = addresses.length - 1;
+			slot = hash & mask;
+			while (addresses[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			hashes[slot] = hash;
+			addresses[slot] = append(hash, key, utf8Length(key), value, valueLength);
+			size++;
+			return null;
+		}
+
+		String remove(String key, int hash) {
+			int slot = find(key, hash);
+			if (slot < 0) {
+				return null;
+			}
+			long address = addresses[slot];
+			String previous = valueAt(address);
+			int length = recordLength(pages[pageOf(address)], offsetOf(address));
+			live -= length;
+			garbage += length;
+			int mask = addresses.length - 1;
+			int gap = slot;
+			for (int next = (slot + 1) & mask; addresses[next] != 0; next = (next + 1) & mask) {
+				int home = hashes[next] & mask;
+				// The entry may fill the gap unless its home lies between the gap and its position
+				if (((next - home) & mask) >= ((next - gap) & mask)) {
+					hashes[gap] = hashes[next];
+					addresses[gap] = addresses[next];
+					gap = next;
+				}
+			}
+			addresses[gap] = 0;
+			size--;
+			if (addresses.length > INITIAL_CAPACITY && size * 8 < addresses.length) {
+				resize(addresses.length / 2);
+			}
+			compactIfSparse();
+			return previous;
+		}
+
+		private void resize(int capacity) {
+			int[] oldHashes = hashes;
+			long[] oldAddresses = addresses;
+			int[] newHashes = new int[capacity];
+			long[] newAddresses = new long[capacity];
+			int mask = capacity - 1;
+			for (int i = 0; i < oldAddresses.length; i++) {
+				if (oldAddresses[i] != 0) {
+					int slot = oldHashes[i] & mask;
+					while (newAddresses[slot] != 0) {
+						slot = (slot + 1) & mask;
+					}
+					newHashes[slot] = oldHashes[i];
+					newAddresses[slot] = oldAddresses[i];
+				}
+			}
+			hashes = newHashes;
+			addresses = newAddresses;
+		}
+
+		/**
+		 * Appends a record to the last page, starting a new page if it does not fit.
+		 * @return The address of the record.
+		 */
+		private long append(int hash, String key, int keyLength, String value, int valueLength) {
+			int length = HEADER + keyLength + valueLength;
+			int last = pageCount - 1;
+			if (last < 0 || fills[last] + length > pages[last].capacity()) {
+				if (last >= 0) {
+					garbage += pages[last].capacity() - fills[last];
+				}
+				addPage(length);
+				last++;
+			}
+			ByteBuffer page = pages[last];
+			int offset = fills[last];
+			page.putInt(offset, hash);
+			page.putInt(offset + 4, keyLength);
+			page.putInt(offset + 8, valueLength);
+			encode(value, page, encode(key, page, offset + HEADER));
+			fills[last] = offset + length;
+			live += length;
+			return address(last, offset);
+		}
+
+		private void addPage(int minimumSize) {
+			ByteBuffer page;
+			if (minimumSize <= pageSize && !freePages.isEmpty()) {
+				page = freePages.pop();
+			} else {
+				int capacity = Math.max(pageSize, minimumSize);
+				page = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+				reserved += capacity;
+			}
+			if (pageCount == pages.length) {
+				pages = Arrays.copyOf(pages, pageCount * 2);
+				fills = Arrays.copyOf(fills, pageCount * 2);
+			}
+			pages[pageCount] = page;
+			fills[pageCount] = 0;
+			pageCount++;
+		}
+
+		private void compactIfSparse() {
+			if (garbage - garbageAfterCompaction > pageSize && garbage > live) {
+				compact();
+			}
+		}
+
+		/**
+		 * Slides the live records down over the garbage, in page order, and releases the pages left empty.
+		 * A record is live if the index still points at it, which is found by probing from its stored hash.
+		 */
+		private void compact() {
+			int mask = addresses.length - 1;
+			int toPage = 0;
+			int toOffset = 0;
+			long skipped = 0;
+			for (int fromPage = 0; fromPage < pageCount; fromPage++) {
+				ByteBuffer from = pages[fromPage];
+				for (int fromOffset = 0; fromOffset < fills[fromPage]; ) {
+					int length = recordLength(from, fromOffset);
+					int slot = from.getInt(fromOffset) & mask;
+					long address = address(fromPage, fromOffset);
+					while (addresses[slot] != 0 && addresses[slot] != address) {
+						slot = (slot + 1) & mask;
+					}
+					if (addresses[slot] == address) {
+						// Never passes the record itself, where it fits at its current offset
+						while (toOffset + length > pages[toPage].capacity()) {
+							skipped += pages[toPage].capacity() - toOffset;
+							fills[toPage] = toOffset;
+							toPage++;
+							toOffset = 0;
+						}
+						if (toPage != fromPage || toOffset != fromOffset) {
+							moveDown(from, fromOffset, pages[toPage], toOffset, length);
+							addresses[slot] = address(toPage, toOffset);
+						}
+						toOffset += length;
+					}
+					fromOffset += length;
+				}
+			}
+			fills[toPage] = toOffset;
+			for (int i = toPage + 1; i < pageCount; i++) {
+				if (pages[i].capacity() == pageSize && freePages.size() < MAX_FREE_PAGES) {
+					freePages.push(pages[i]);
+				} else {
+					reserved -= pages[i].capacity();
+				}
+				pages[i] = null;
+			}
+			pageCount = toPage + 1;
+			garbage = skipped;
+			garbageAfterCompaction = skipped;
+		}
+
+		void forEach(EntryVisitor visitor) throws IOException {
+			for (long address : addresses) {
+				if (address != 0) {
+					ByteBuffer page = pages[pageOf(address)];
+					int offset = offsetOf(address);
+					int keyLength = page.getInt(offset + 4);
+					visitor.visit(decode(page, offset + HEADER, keyLength), valueAt(address));
+				}
+			}
+		}
+	}
+}
@@ -1,9 +1,26 @@
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
 
 public interface KVStoreInterface extends Remote {
   String get(String key) throws RemoteException;
+  String linearizableGet(String key) throws RemoteException;
+  String boundedGet(String key, long maxStalenessMillis) throws RemoteException;
   String put(String key, String value) throws RemoteException;
   String delete(String key) throws RemoteException;
+  // Batch variants: in Multi-Paxos mode all writes of a call are agreed on in one log slot, in basic mode
+  // each write in the instances of its key, without atomicity. Each returns the
+  // value (or previous value) of every key, or null if the writes could not be committed.
+  Map<String, String> multiGet(List<String> keys) throws RemoteException;
+  Map<String, String> multiPut(Map<String, String> entries) throws RemoteException;
+  Map<String, String> multiDelete(List<String> keys) throws RemoteException;
+  // Conditional writes: agreed on in one consensus instance and evaluated atomically by every server as it
+  // applies them. An expected value of null requires the key to be absent, a new value of null deletes it.
+  // Each returns whether the guards held and the writes were applied, and throws a RemoteException if the
+  // outcome is unknown because the instance could not be committed. In basic mode, transact is limited
+  // to a single key.
+  boolean compareAndSet(String key, String expectedValue, String newValue) throws RemoteException;
+  boolean transact(Map<String, String> guards, Map<String, String> writes) throws RemoteException;
 }
 
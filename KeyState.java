@@ -0,0 +1,34 @@
+import java.io.Serializable;
+
+/**
+ * State of a key at a learner in basic mode: how many instances of the key it has learned, and the value
+ * they left the key with. A server that missed the decisions of some instances installs the state of a
+ * learner that is further ahead instead of replaying them.
+ * @author ZHANG Mao
+ *
+ */
+public class KeyState implements Serializable {
+	private static final long serialVersionUID = 3170265932816347765L;
+
+	private final long learned;
+	private final String value;
+
+	public KeyState(long learned, String value) {
+		this.learned = learned;
+		this.value = value;
+	}
+
+	/**
+	 * @return The number of instances of the key the learner has applied.
+	 */
+	public long getLearned() {
+		return learned;
+	}
+
+	/**
+	 * @return The value of the key after those instances, or null if it is absent.
+	 */
+	public String getValue() {
+		return value;
+	}
+}
@@ -1,5 +1,6 @@
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 /**
  * The LearnerInterface represents a remote interface that defines
@@ -9,11 +10,44 @@ import java.rmi.RemoteException;
 public interface LearnerInterface extends Remote {
   /**
    * The learn method is used to inform the Learner of an accepted proposal.
+   * The instances of a key are applied in order; a repeated instance is ignored.
    *
-   * @param proposalId The unique identifier for the proposal.
+   * @param instance The number of the key's instance the value was chosen in.
    * @param acceptedValue The value that has been accepted.
    * @throws RemoteException If a remote invocation error occurs.
-   * @return the returned value of the operation
+   * @return the returned value of the operation, or null if it was not applied
    */
-  String learn(String key, int proposalId, Object acceptedValue) throws RemoteException;
+  String learn(String key, long instance, Object acceptedValue) throws RemoteException;
+
+  /**
+   * Returns how many instances of a key the Learner has applied and the value they left the key with,
+   * so that a server that missed some of those instances can catch up.
+   *
+   * @param key The key.
+   * @throws RemoteException If a remote invocation error occurs.
+   * @return The state of the key at the Learner.
+   */
+  KeyState learnedState(String key) throws RemoteException;
+
+  /**
+   * Informs the Learner that an operation was chosen for a slot of the replicated log.
+   * Operations are applied in log order once all earlier slots are known.
+   *
+   * @param slot The log slot.
+   * @param operation The chosen operation.
+   * @throws RemoteException If a remote invocation error occurs.
+   */
+  void learnSlot(long slot, Operation operation) throws RemoteException;
+
+  /**
+   * Returns the operations the Learner applied from a slot on, so that a Learner
+   * that missed the notices of those slots can catch up.
+   *
+   * @param fromSlot The first slot.
+   * @param maxSlots The maximum number of operations returned.
+   * @throws RemoteException If a remote invocation error occurs.
+   * @return The operations of consecutive slots from fromSlot on, or null if fromSlot
+   *         was applied too long ago to be retained.
+   */
+  List<Operation> committedSlots(long fromSlot, int maxSlots) throws RemoteException;
 }
@@ -0,0 +1,400 @@
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load-generating client. Worker threads send a configurable mix of reads and writes to all servers of
+ * the cluster in turn, picking keys from a uniform, zipfian or hotspot distribution. In closed-loop mode
+ * every worker sends its next request as soon as the previous one returned. In open-loop mode requests
+ * are scheduled at a fixed total rate, and each latency is measured from the time the request was
+ * scheduled rather than sent, so a stalled server is charged for the requests queued behind it
+ * (correcting coordinated omission). Throughput and latency percentiles are printed periodically and
+ * as a final summary per request type, optionally followed by the metrics each server reports about itself.
+ * Usage: java LoadGenerator <host> <basePort> [--name=value ...], options are listed in {@link #USAGE}.
+ * @author ZHANG Mao
+ *
+ */
+public class LoadGenerator {
+
+	static final String USAGE = "Usage: LoadGenerator <host> <basePort>"
+			+ " [--servers=5] [--threads=16] [--duration-s=30] [--report-interval-s=5]"
+			+ " [--read-ratio=0.5] [--reads=local|linearizable] [--value-size=100]"
+			+ " [--keys=100000] [--distribution=uniform|zipfian|hotspot] [--zipf-theta=0.99]"
+			+ " [--hotspot-keys=0.2] [--hotspot-ops=0.8]"
+			+ " [--rate=0 (ops/s, 0 for closed loop)] [--transport=rmi|nio] [--preload] [--metrics]"
+			+ " [--cache=0 (keys, 0 for no cache)] [--cache-policy=lru|tinylfu] [--cache-lease-ms=1000]";
+
+	private static final int PRELOAD_BATCH_SIZE = 1000;
+
+	/**
+	 * Picks the index of the next key.
+	 */
+	@FunctionalInterface
+	interface KeyChooser {
+		int next(ThreadLocalRandom random);
+	}
+
+	private final String host;
+	private final int basePort;
+	private final int servers;
+	private final int threads;
+	private final int durationSeconds;
+	private final int reportIntervalSeconds;
+	private final double readRatio;
+	private final boolean linearizableReads;
+	private final int valueSize;
+	private final int keys;
+	private final KeyChooser keyChooser;
+	private final double rate;
+	private final boolean nio;
+	private final boolean preload;
+	private final boolean scrapeMetrics;
+	private final int cacheSize;
+	private final ReadCache.Policy cachePolicy;
+	private final long cacheLeaseMillis;
+
+	private final LatencyHistogram[] readHistograms;
+	private final LatencyHistogram[] writeHistograms;
+	private final AtomicLong errors = new AtomicLong();
+
+	LoadGenerator(String host, int basePort, Map<String, String> options) {
+		this.host = host;
+		this.basePort = basePort;
+		this.servers = Integer.parseInt(options.getOrDefault("servers", "5"));
+		this.threads = Integer.parseInt(options.getOrDefault("threads", "16"));
+		this.durationSeconds = Integer.parseInt(options.getOrDefault("duration-s", "30"));
+		this.reportIntervalSeconds = Integer.parseInt(options.getOrDefault("report-interval-s", "5"));
+		this.readRatio = Double.parseDouble(options.getOrDefault("read-ratio", "0.5"));
+		this.linearizableReads = options.getOrDefault("reads", "local").equalsIgnoreCase("linearizable");
+		this.valueSize = Integer.parseInt(options.getOrDefault("value-size", "100"));
+		this.keys = Integer.parseInt(options.getOrDefault("keys", "100000"));
+		this.rate = Double.parseDouble(options.getOrDefault("rate", "0"));
+		this.nio = options.getOrDefault("transport", "rmi").equalsIgnoreCase("nio");
+		this.preload = options.containsKey("preload");
+		this.scrapeMetrics = options.containsKey("metrics");
+		this.cacheSize = Integer.parseInt(options.getOrDefault("cache", "0"));
+		this.cachePolicy = options.getOrDefault("cache-policy", "lru").equalsIgnoreCase("tinylfu")
+				? ReadCache.Policy.TINY_LFU : ReadCache.Policy.LRU;
+		this.cacheLeaseMillis = Long.parseLong(options.getOrDefault("cache-lease-ms", "1000"));
+		String distribution = options.getOrDefault("distribution", "uniform").toLowerCase();
+		switch (distribution) {
+			case "uniform":
+				this.keyChooser = random -> random.nextInt(keys);
+				break;
+			case "zipfian":
+				this.keyChooser = zipfian(keys, Double.parseDouble(options.getOrDefault("zipf-theta", "0.99")));
+				break;
+			case "hotspot":
+				this.keyChooser = hotspot(keys, Double.parseDouble(options.getOrDefault("hotspot-keys", "0.2")),
+						Double.parseDouble(options.getOrDefault("hotspot-ops", "0.8")));
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown distribution: " + distribution);
+		}
+		this.readHistograms = new LatencyHistogram[threads];
+		this.writeHistograms = new LatencyHistogram[threads];
+		for (int i = 0; i < threads; i++) {
+			readHistograms[i] = new LatencyHistogram();
+			writeHistograms[i] = new LatencyHistogram();
+		}
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.out.println(USAGE);
+			return;
+		}
+		Map<String, String> options = new HashMap<>();
+		for (int i = 2; i < args.length; i++) {
+			if (args[i].startsWith("--")) {
+				String[] parts = args[i].substring(2).split("=", 2);
+				options.put(parts[0], parts.length == 2 ? parts[1] : "true");
+			}
+		}
+		try {
+			new LoadGenerator(args[0], Integer.parseInt(args[1]), options).run();
+		} catch (Exception e) {
+			System.err.println("Load generator exception: " + e);
+			e.printStackTrace();
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Zipfian distribution over [0, n) with skew theta, after Gray et al., "Quickly generating
+	 * billion-record synthetic databases", as used by YCSB. Key 0 is the most popular one.
+	 */
+	static KeyChooser zipfian(int n, double theta) {
+		double zetaN = 0;
+		for (int i = 1; i <= n; i++) {
+			zetaN += 1 / Math.pow(i, theta);
+		}
+		double zeta2 = 1 + 1 / Math.pow(2, theta);
+		double alpha = 1 / (1 - theta);
+		double eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / zetaN);
+		double zetaSum = zetaN;
+		return random -> {
+			double u = random.nextDouble();
+			double uz = u * zetaSum;
+			if (uz < 1) {
+				return 0;
+			}
+			if (uz < zeta2) {
+				return 1;
+			}
+			return (int) Math.min(n - 1, (long) (n * Math.pow(eta * u - eta + 1, alpha)));
+		};
+	}
+
+	/**
+	 * A hot set of the first hotKeys fraction of the keys receives the hotOps fraction of the requests,
+	 * uniformly; the remaining requests go uniformly to the other keys.
+	 */
+	static KeyChooser hotspot(int n, double hotKeys, double hotOps) {
+		int hotSetSize = Math.max(1, Math.min(n, (int) (n * hotKeys)));
+		return random -> {
+			if (hotSetSize == n || random.nextDouble() < hotOps) {
+				return random.nextInt(hotSetSize);
+			}
+			return hotSetSize + random.nextInt(n - hotSetSize);
+		};
+	}
+
+	private KVStoreInterface connect(int server) throws Exception {
+		int port = basePort + server;
+		if (nio) {
+			return new NioPeer(host, port + PaxosServerCreator.NIO_PORT_OFFSET);
+		}
+		Registry registry = LocateRegistry.getRegistry(host, port);
+		return (KVStoreInterface) registry.lookup("KVServer" + port);
+	}
+
+	void run() throws Exception {
+		String value = randomValue(valueSize);
+		if (preload) {
+			KVStoreInterface store = connect(0);
+			Map<String, String> batch = new LinkedHashMap<>();
+			for (int i = 0; i < keys; i++) {
+				batch.put("key" + i, value);
+				if (batch.size() == PRELOAD_BATCH_SIZE || i == keys - 1) {
+					if (store.multiPut(batch) == null) {
+						System.err.println("Preload batch ending at key" + i + " failed");
+					}
+					batch.clear();
+				}
+			}
+			System.out.println("Preloaded " + keys + " keys");
+		}
+
+		System.out.println((rate > 0 ? "Open loop at " + rate + " ops/s" : "Closed loop") + " with " + threads
+				+ " threads against " + servers + " servers for " + durationSeconds + " s");
+		// Every worker has its own connection to every server. With --cache, the workers share one cache
+		// per server instead, which reads through the first worker's connection
+		KVStoreInterface[][] stores = new KVStoreInterface[threads][servers];
+		for (int i = 0; i < threads; i++) {
+			for (int server = 0; server < servers; server++) {
+				stores[i][server] = connect(server);
+			}
+		}
+		CachingStore[] caches = new CachingStore[cacheSize > 0 ? servers : 0];
+		for (int server = 0; server < caches.length; server++) {
+			caches[server] = new CachingStore(stores[0][server], (WatchInterface) stores[0][server], cacheSize,
+					cachePolicy, cacheLeaseMillis);
+		}
+		KVStoreInterface[][] clients = stores;
+		if (caches.length > 0) {
+			clients = new KVStoreInterface[threads][];
+			for (int i = 0; i < threads; i++) {
+				clients[i] = caches;
+			}
+		}
+		KVStoreInterface[][] workerStores = clients;
+		System.out.println("time_s,ops,ops_per_s,errors,p50_ms,p99_ms,p99.9_ms,max_ms");
+		long start = System.nanoTime();
+		long end = start + durationSeconds * 1_000_000_000L;
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			int worker = i;
+			workers[i] = new Thread(() -> work(worker, workerStores[worker], value, start, end), "load-" + i);
+			workers[i].start();
+		}
+
+		LatencyHistogram previous = new LatencyHistogram();
+		long previousErrors = 0;
+		long nextReport = start + reportIntervalSeconds * 1_000_000_000L;
+		while (nextReport < end) {
+			LockSupport.parkNanos(nextReport - System.nanoTime());
+			LatencyHistogram total = merge(readHistograms);
+			total.add(merge(writeHistograms));
+			LatencyHistogram interval = total.copy();
+			interval.subtract(previous);
+			long currentErrors = errors.get();
+			print(String.valueOf((nextReport - start) / 1_000_000_000L), interval, currentErrors - previousErrors,
+					reportIntervalSeconds);
+			previous = total;
+			previousErrors = currentErrors;
+			nextReport += reportIntervalSeconds * 1_000_000_000L;
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+
+		double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+		LatencyHistogram reads = merge(readHistograms);
+		LatencyHistogram writes = merge(writeHistograms);
+		LatencyHistogram all = reads.copy();
+		all.add(writes);
+		System.out.println("summary,ops,ops_per_s,errors,p50_ms,p99_ms,p99.9_ms,max_ms");
+		print("read", reads, -1, elapsedSeconds);
+		print("write", writes, -1, elapsedSeconds);
+		print("all", all, errors.get(), elapsedSeconds);
+		if (caches.length > 0) {
+			printCacheMetrics(caches);
+		}
+		if (scrapeMetrics) {
+			printMetrics(stores[0]);
+		}
+	}
+
+	/**
+	 * Prints the hit rate and counters of the cache of every server as CSV, one column per server.
+	 */
+	private void printCacheMetrics(CachingStore[] caches) {
+		StringBuilder header = new StringBuilder("cache");
+		StringBuilder hitRate = new StringBuilder("cache.hit_rate");
+		for (int server = 0; server < caches.length; server++) {
+			header.append(",server").append(server);
+			hitRate.append(String.format(",%.4f", caches[server].getHitRate()));
+		}
+		System.out.println(header);
+		System.out.println(hitRate);
+		for (String name : caches[0].getCacheMetrics().keySet()) {
+			StringBuilder row = new StringBuilder(name);
+			for (CachingStore cache : caches) {
+				row.append(',').append(cache.getCacheMetrics().get(name));
+			}
+			System.out.println(row);
+		}
+		for (CachingStore cache : caches) {
+			cache.close();
+		}
+	}
+
+	/**
+	 * Prints the metrics of every server as CSV, one row per metric and one column per server.
+	 */
+	private void printMetrics(KVStoreInterface[] stores) {
+		List<Map<String, Long>> metrics = new ArrayList<>();
+		for (int server = 0; server < stores.length; server++) {
+			try {
+				metrics.add(((MetricsInterface) stores[server]).getMetrics());
+			} catch (Exception e) {
+				System.err.println("Failed to read the metrics of server " + server + ": " + e);
+				metrics.add(new HashMap<>());
+			}
+		}
+		StringBuilder header = new StringBuilder("metric");
+		for (int server = 0; server < stores.length; server++) {
+			header.append(",server").append(server);
+		}
+		System.out.println(header);
+		Set<String> names = new LinkedHashSet<>();
+		for (Map<String, Long> serverMetrics : metrics) {
+			names.addAll(serverMetrics.keySet());
+		}
+		for (String name : names) {
+			StringBuilder row = new StringBuilder(name);
+			for (Map<String, Long> serverMetrics : metrics) {
+				Long value = serverMetrics.get(name);
+				row.append(',').append(value == null ? "" : value.toString());
+			}
+			System.out.println(row);
+		}
+	}
+
+	private void work(int worker, KVStoreInterface[] stores, String value, long start, long end) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		// In open loop each worker sends its share of the rate, offset so that the workers interleave
+		long interval = rate > 0 ? (long) (1e9 * threads / rate) : 0;
+		long scheduled = start + interval * worker / threads;
+		int next = worker;
+		while (true) {
+			long intended;
+			if (interval > 0) {
+				intended = scheduled;
+				scheduled += interval;
+				if (intended >= end || System.nanoTime() >= end) {
+					return;
+				}
+				long wait = intended - System.nanoTime();
+				if (wait > 0) {
+					LockSupport.parkNanos(wait);
+				}
+			} else {
+				intended = System.nanoTime();
+				if (intended >= end) {
+					return;
+				}
+			}
+
+			KVStoreInterface store = stores[next++ % stores.length];
+			String key = "key" + keyChooser.next(random);
+			boolean read = random.nextDouble() < readRatio;
+			try {
+				if (read) {
+					if (linearizableReads) {
+						store.linearizableGet(key);
+					} else {
+						store.get(key);
+					}
+				} else if (store.put(key, value) == null && preload) {
+					errors.incrementAndGet(); // every key exists, so only a failed write returns null
+				}
+			} catch (Exception e) {
+				errors.incrementAndGet();
+			}
+			(read ? readHistograms : writeHistograms)[worker].record(System.nanoTime() - intended);
+		}
+	}
+
+	private static LatencyHistogram merge(LatencyHistogram[] histograms) {
+		LatencyHistogram merged = new LatencyHistogram();
+		for (LatencyHistogram histogram : histograms) {
+			merged.add(histogram);
+		}
+		return merged;
+	}
+
+	/**
+	 * Prints a line of the report.
+	 * @param label The first column.
+	 * @param histogram The latencies to report.
+	 * @param errors The number of failed requests, or -1 if not counted separately.
+	 * @param seconds The time the latencies were recorded in.
+	 */
+	private static void print(String label, LatencyHistogram histogram, long errors, double seconds) {
+		long ops = histogram.getTotalCount();
+		System.out.println(String.format("%s,%d,%.1f,%s,%.3f,%.3f,%.3f,%.3f", label, ops, ops / seconds,
+				errors < 0 ? "" : String.valueOf(errors),
+				histogram.getValueAtPercentile(50) / 1e6, histogram.getValueAtPercentile(99) / 1e6,
+				histogram.getValueAtPercentile(99.9) / 1e6, histogram.getMax() / 1e6));
+	}
+
+	private static String randomValue(int size) {
+		StringBuilder value = new StringBuilder(size);
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (int i = 0; i < size; i++) {
+			value.append((char) ('a' + random.nextInt(26)));
+		}
+		return value.toString();
+	}
+}
@@ -0,0 +1,39 @@
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * Response of an acceptor to a Multi-Paxos prepare request, which covers all log slots from a given slot on.
+ * @author ZHANG Mao
+ *
+ */
+public class LogPromise implements Serializable {
+	private static final long serialVersionUID = -2466380915524611838L;
+	
+	private final boolean promised;
+	private final long promisedBallot;
+	private final Map<Long, ProposalResponse> acceptedSlots;
+	
+	public LogPromise(boolean promised, long promisedBallot, Map<Long, ProposalResponse> acceptedSlots) {
+		this.promised = promised;
+		this.promisedBallot = promisedBallot;
+		this.acceptedSlots = acceptedSlots;
+	}
+	
+	public boolean isPromised() {
+		return promised;
+	}
+	
+	/**
+	 * @return The highest ballot the acceptor has promised, which identifies the current leader on rejection.
+	 */
+	public long getPromisedBallot() {
+		return promisedBallot;
+	}
+	
+	/**
+	 * @return The ballot and value the acceptor accepted last for every slot at or after the requested slot.
+	 */
+	public Map<Long, ProposalResponse> getAcceptedSlots() {
+		return acceptedSlots;
+	}
+}
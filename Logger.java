@@ -1,32 +1,298 @@
+import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
 /**
- * Helper class for generating log files
+ * Helper class for generating log files.
+ * Lines are put into a bounded ring buffer and written by a background thread into a single
+ * long-lived buffered file, and echoed to stdout, so callers never wait for I/O. The behaviour is
+ * configured with system properties: logger.level (DEBUG, INFO, WARN, ERROR; default INFO),
+ * logger.stdout (true/false), logger.overflow (BLOCK/DROP), logger.capacity and logger.async (false
+ * writes each line synchronously). {@link #close()} stops the background thread and closes the file;
+ * lines logged afterwards are written synchronously.
  * @author Mao Zhang
  *
  */
 
 public class Logger {
+
+	public enum Level { DEBUG, INFO, WARN, ERROR }
+
+	/**
+	 * What a caller does when the ring buffer is full.
+	 */
+	public enum OverflowPolicy { BLOCK, DROP }
+
+	private static final int DRAIN_SIZE = 256;
+
 	private final String fileName;
+	private final Level level;
+	private final boolean echo;
+	private final boolean async;
+	private final OverflowPolicy overflowPolicy;
+
+	// Ring buffer of pending lines, guarded by lock
+	private final long[] timestamps;
+	private final String[] messages;
+	private int head;
+	private int count;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicInteger unwritten = new AtomicInteger();
+	private boolean closed;
+	private final Thread drainer;
+	private final Thread shutdownHook;
+
 	private final SimpleDateFormat dateFormat;
+	private Writer writer;
+	private long formattedSecond = -1;
+	private String formattedPrefix;
 
 	public Logger(String fileName) {
+		this(fileName,
+				Level.valueOf(System.getProperty("logger.level", "INFO").toUpperCase()),
+				Boolean.parseBoolean(System.getProperty("logger.stdout", "true")),
+				Boolean.parseBoolean(System.getProperty("logger.async", "true")),
+				Integer.getInteger("logger.capacity", 8192),
+				OverflowPolicy.valueOf(System.getProperty("logger.overflow", "BLOCK").toUpperCase()));
+	}
+
+	/**
+	 * @param fileName The file lines are appended to.
+	 * @param level The lowest level that is logged.
+	 * @param echo Whether lines are also printed to stdout.
+	 * @param async Whether lines are written by a background thread; otherwise each line is written immediately.
+	 * @param capacity The number of lines the ring buffer holds.
+	 * @param overflowPolicy What happens to a line logged while the ring buffer is full.
+	 */
+	public Logger(String fileName, Level level, boolean echo, boolean async, int capacity, OverflowPolicy overflowPolicy) {
 		this.fileName = fileName;
-		this.dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+		this.level = level;
+		this.echo = echo;
+		this.async = async;
+		this.overflowPolicy = overflowPolicy;
+		this.timestamps = new long[capacity];
+		this.messages = new String[capacity];
+		this.dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.");
+		if (async) {
+			drainer = new Thread(this::drainLoop, "logger-" + fileName);
+			drainer.setDaemon(true);
+			drainer.start();
+			shutdownHook = new Thread(this::flush);
+			Runtime.getRuntime().addShutdownHook(shutdownHook);
+		} else {
+			drainer = null;
+			shutdownHook = null;
+		}
 	}
 
-	public synchronized void log(String msg) {
-		try {
+	public boolean isEnabled(Level level) {
+		return level.compareTo(this.level) >= 0;
+	}
+
+	public void log(String msg) {
+		log(Level.INFO, msg);
+	}
+
+	/**
+	 * Logs a message whose text is only built if DEBUG is enabled.
+	 * @param msg Supplies the message.
+	 */
+	public void debug(Supplier<String> msg) {
+		if (isEnabled(Level.DEBUG)) {
+			append(msg.get());
+		}
+	}
+
+	public void log(Level level, String msg) {
+		if (isEnabled(level)) {
+			append(msg);
+		}
+	}
+
+	/**
+	 * @return The number of lines dropped because the ring buffer was full.
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	private void append(String msg) {
+		long now = System.currentTimeMillis();
+		if (async) {
+			lock.lock();
+			try {
+				while (count == messages.length && !closed) {
+					if (overflowPolicy == OverflowPolicy.DROP) {
+						dropped.incrementAndGet();
+						return;
+					}
+					notFull.awaitUninterruptibly();
+				}
+				if (!closed) {
+					int tail = (head + count) % messages.length;
+					timestamps[tail] = now;
+					messages[tail] = msg;
+					count++;
+					unwritten.incrementAndGet();
+					notEmpty.signal();
+					return;
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+		writeSynchronously(now, msg);
+	}
+
+	private synchronized void writeSynchronously(long timestamp, String msg) {
+		if (echo) {
 			System.out.println(msg);
-			FileWriter writer = new FileWriter(fileName, true);
-			String timestamp = dateFormat.format(new Date());
-			writer.write(timestamp + " " + msg + "\n");
-			writer.close();
+		}
+		try (FileWriter fileWriter = new FileWriter(fileName, true)) {
+			fileWriter.write(format(timestamp, msg));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void drainLoop() {
+		long[] drainedTimestamps = new long[DRAIN_SIZE];
+		String[] drainedMessages = new String[DRAIN_SIZE];
+		while (true) {
+			int drained = 0;
+			lock.lock();
+			try {
+				while (count == 0) {
+					if (closed) {
+						return;
+					}
+					notEmpty.awaitUninterruptibly();
+				}
+				while (count > 0 && drained < DRAIN_SIZE) {
+					drainedTimestamps[drained] = timestamps[head];
+					drainedMessages[drained] = messages[head];
+					messages[head] = null;
+					head = (head + 1) % messages.length;
+					count--;
+					drained++;
+				}
+				notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			write(drainedTimestamps, drainedMessages, drained);
+		}
+	}
+
+	private synchronized void write(long[] drainedTimestamps, String[] drainedMessages, int drained) {
+		try {
+			if (writer == null) {
+				writer = new BufferedWriter(new FileWriter(fileName, true), 1 << 16);
+			}
+			for (int i = 0; i < drained; i++) {
+				if (echo) {
+					System.out.println(drainedMessages[i]);
+				}
+				writer.write(format(drainedTimestamps[i], drainedMessages[i]));
+				drainedMessages[i] = null;
+			}
+			if (unwritten.addAndGet(-drained) == 0) {
+				writer.flush();
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
+
+	/**
+	 * Waits until all buffered lines are written to the file.
+	 */
+	public void flush() {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (unwritten.get() > 0 && System.nanoTime() < deadline) {
+			Thread.yield();
+		}
+		synchronized (this) {
+			try {
+				if (writer != null) {
+					writer.flush();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Writes the buffered lines, stops the background thread, closes the file and removes the shutdown hook.
+	 */
+	public void close() {
+		if (!async) {
+			return;
+		}
+		lock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			drainer.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			try {
+				if (writer != null) {
+					writer.close();
+					writer = null;
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		} catch (IllegalStateException e) {
+			// The JVM is already shutting down and runs the hook
+		}
+	}
+
+	/**
+	 * Formats a line, reusing the formatted date while it stays within the same second.
+	 */
+	private String format(long timestamp, String msg) {
+		long second = timestamp / 1000;
+		if (second != formattedSecond) {
+			formattedPrefix = dateFormat.format(new Date(second * 1000));
+			formattedSecond = second;
+		}
+		long millis = timestamp % 1000;
+		StringBuilder line = new StringBuilder(formattedPrefix.length() + msg.length() + 5);
+		line.append(formattedPrefix);
+		if (millis < 100) {
+			line.append('0');
+		}
+		if (millis < 10) {
+			line.append('0');
+		}
+		return line.append(millis).append(' ').append(msg).append('\n').toString();
+	}
 }
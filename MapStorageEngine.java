@@ -0,0 +1,46 @@
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The default storage engine: a ConcurrentHashMap of Strings. Every entry costs a map node and two
+ * String objects with their arrays, all of which the garbage collector has to trace.
+ * @author ZHANG Mao
+ *
+ */
+public class MapStorageEngine implements StorageEngine {
+
+	private final ConcurrentHashMap<String, String> map = new ConcurrentHashMap<>();
+
+	@Override
+	public String get(String key) {
+		return map.get(key);
+	}
+
+	@Override
+	public String put(String key, String value) {
+		return map.put(key, value);
+	}
+
+	@Override
+	public String remove(String key) {
+		return map.remove(key);
+	}
+
+	@Override
+	public int size() {
+		return map.size();
+	}
+
+	@Override
+	public long reservedBytes() {
+		return -1;
+	}
+
+	@Override
+	public void forEach(EntryVisitor visitor) throws IOException {
+		for (Map.Entry<String, String> entry : map.entrySet()) {
+			visitor.visit(entry.getKey(), entry.getValue());
+		}
+	}
+}
@@ -0,0 +1,19 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.Map;
+
+/**
+ * The MetricsInterface represents a remote interface through which
+ * the counters and latency percentiles of a server can be scraped
+ * while it is serving requests.
+ */
+public interface MetricsInterface extends Remote {
+  /**
+   * Takes a snapshot of the metrics of the server.
+   *
+   * @throws RemoteException If a remote invocation error occurs.
+   * @return The value of every metric by name, e.g. "accept.p99_us" or "promise.quorum_failures".
+   *         Latencies are in microseconds.
+   */
+  Map<String, Long> getMetrics() throws RemoteException;
+}
@@ -0,0 +1,490 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Binary wire format of the NIO transport, shared by NioServer and NioPeer.
+ * A frame is a length, a correlation ID, a method code (requests) or status (responses) and a payload of
+ * tagged values. Frames are encoded into and decoded from pooled direct buffers. Every type sent over the
+ * transport has an explicit encoding; a frame longer than MAX_FRAME_SIZE, or any length that does not fit in
+ * the frame, is rejected before anything is allocated for it.
+ * @author ZHANG Mao
+ *
+ */
+public final class NioCodec {
+
+	// Method codes
+	static final byte PREPARE = 1;
+	static final byte ACCEPT = 2;
+	static final byte PREPARE_LOG = 3;
+	static final byte ACCEPT_SLOT = 4;
+	static final byte HEARTBEAT = 5;
+	static final byte LEARN = 6;
+	static final byte LEARN_SLOT = 7;
+	static final byte PROPOSE = 8;
+	static final byte SUBMIT = 9;
+	static final byte READ_INDEX = 10;
+	static final byte GET = 11;
+	static final byte LINEARIZABLE_GET = 12;
+	static final byte BOUNDED_GET = 13;
+	static final byte PUT = 14;
+	static final byte DELETE = 15;
+	static final byte MULTI_GET = 16;
+	static final byte MULTI_PUT = 17;
+	static final byte MULTI_DELETE = 18;
+	static final byte GET_METRICS = 19;
+	static final byte INGEST = 20;
+	static final byte FINISH_INGEST = 21;
+	static final byte COMMITTED_SLOTS = 22;
+	static final byte WATCH = 23;
+	static final byte COMPARE_AND_SET = 24;
+	static final byte TRANSACT = 25;
+	static final byte LEARNED_STATE = 26;
+	static final byte SUBMIT_BATCH = 27;
+
+	// Response status
+	static final byte OK = 0;
+	static final byte ERROR = 1;
+
+	// Value tags
+	private static final byte NULL = 0;
+	private static final byte STRING = 1;
+	private static final byte INT = 2;
+	private static final byte LONG = 3;
+	private static final byte BOOLEAN = 4;
+	private static final byte OPERATION = 5;
+	private static final byte PROPOSAL_RESPONSE = 6;
+	private static final byte LOG_PROMISE = 7;
+	private static final byte STRING_MAP = 8;
+	private static final byte STRING_LIST = 9;
+	private static final byte BYTES = 10;
+	private static final byte LONG_MAP = 11;
+	private static final byte OPERATION_LIST = 12;
+	private static final byte WATCH_CURSOR = 13;
+	private static final byte CHANGE_BATCH = 14;
+	private static final byte KEY_STATE = 15;
+
+	static final int BUFFER_SIZE = 64 * 1024;
+	// Largest frame accepted, 64 MB unless set with -Dnio.maxFrameSize=<bytes>
+	static final int MAX_FRAME_SIZE = Integer.getInteger("nio.maxFrameSize", 64 * 1024 * 1024);
+	private static final int MAX_POOLED_BUFFERS = 256;
+	private static final ConcurrentLinkedQueue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+
+	private NioCodec() {}
+
+	/**
+	 * Takes a direct buffer of at least the given size from the pool, or allocates one.
+	 */
+	static ByteBuffer acquire(int size) {
+		if (size <= BUFFER_SIZE) {
+			ByteBuffer buffer = bufferPool.poll();
+			if (buffer != null) {
+				buffer.clear();
+				return buffer;
+			}
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+		return ByteBuffer.allocateDirect(size);
+	}
+
+	static void release(ByteBuffer buffer) {
+		if (buffer.capacity() == BUFFER_SIZE && bufferPool.size() < MAX_POOLED_BUFFERS) {
+			bufferPool.offer(buffer);
+		}
+	}
+
+	/**
+	 * Encodes a frame and writes it to the channel. Callers serialize writes to the same channel.
+	 * @param channel The channel to write to.
+	 * @param correlationId The ID matching a response to its request.
+	 * @param code The method code of a request or the status of a response.
+	 * @param values The payload values.
+	 * @throws IOException If the channel fails.
+	 */
+	static void writeFrame(SocketChannel channel, long correlationId, byte code, Object... values) throws IOException {
+		BufferOutput output = new BufferOutput(acquire(BUFFER_SIZE));
+		try {
+			DataOutputStream out = new DataOutputStream(output);
+			out.writeInt(0); // length, filled in below
+			out.writeLong(correlationId);
+			out.writeByte(code);
+			out.writeByte(values.length);
+			for (Object value : values) {
+				writeValue(out, value);
+			}
+			ByteBuffer frame = output.buffer;
+			if (frame.position() - 4 > MAX_FRAME_SIZE) {
+				throw new IOException("Frame of " + (frame.position() - 4) + " bytes exceeds the maximum of " + MAX_FRAME_SIZE);
+			}
+			frame.putInt(0, frame.position() - 4);
+			frame.flip();
+			while (frame.hasRemaining()) {
+				channel.write(frame);
+			}
+		} finally {
+			release(output.buffer);
+		}
+	}
+
+	/**
+	 * A decoded frame.
+	 */
+	static class Frame {
+		long correlationId;
+		byte code;
+		Object[] values;
+	}
+
+	/**
+	 * Reads and decodes the next frame from the channel.
+	 * @param channel The channel to read from, in blocking mode.
+	 * @param lengthBuffer A 4 byte buffer owned by the reading thread.
+	 * @return The frame.
+	 * @throws IOException If the channel fails or is closed, or the frame is malformed.
+	 */
+	static Frame readFrame(SocketChannel channel, ByteBuffer lengthBuffer) throws IOException {
+		lengthBuffer.clear();
+		readFully(channel, lengthBuffer);
+		int length = lengthBuffer.getInt(0);
+		if (length < 0 || length > MAX_FRAME_SIZE) {
+			throw new IOException("Invalid frame length: " + length);
+		}
+		ByteBuffer body = acquire(length);
+		try {
+			body.limit(length);
+			readFully(channel, body);
+			body.flip();
+			DataInputStream in = new DataInputStream(new BufferInput(body));
+			Frame frame = new Frame();
+			frame.correlationId = in.readLong();
+			frame.code = in.readByte();
+			frame.values = new Object[in.readByte()];
+			for (int i = 0; i < frame.values.length; i++) {
+				frame.values[i] = readValue(in);
+			}
+			return frame;
+		} finally {
+			release(body);
+		}
+	}
+
+	private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new IOException("Connection closed");
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static void writeValue(DataOutputStream out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(NULL);
+		} else if (value instanceof String) {
+			out.writeByte(STRING);
+			Operation.writeString(out, (String) value);
+		} else if (value instanceof Integer) {
+			out.writeByte(INT);
+			out.writeInt((Integer) value);
+		} else if (value instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((Long) value);
+		} else if (value instanceof Boolean) {
+			out.writeByte(BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		} else if (value instanceof Operation) {
+			out.writeByte(OPERATION);
+			((Operation) value).writeTo(out);
+		} else if (value instanceof ProposalResponse) {
+			ProposalResponse response = (ProposalResponse) value;
+			out.writeByte(PROPOSAL_RESPONSE);
+			out.writeLong(response.getLastAcceptedId());
+			writeValue(out, response.getLastAcceptedValue());
+			out.writeLong(response.getPromisedId());
+			out.writeLong(response.getInstance());
+		} else if (value instanceof LogPromise) {
+			LogPromise promise = (LogPromise) value;
+			out.writeByte(LOG_PROMISE);
+			out.writeBoolean(promise.isPromised());
+			out.writeLong(promise.getPromisedBallot());
+			out.writeInt(promise.getAcceptedSlots().size());
+			for (Map.Entry<Long, ProposalResponse> entry : promise.getAcceptedSlots().entrySet()) {
+				out.writeLong(entry.getKey());
+				writeValue(out, entry.getValue());
+			}
+		} else if (value instanceof KeyState) {
+			KeyState state = (KeyState) value;
+			out.writeByte(KEY_STATE);
+			out.writeLong(state.getLearned());
+			Operation.writeString(out, state.getValue());
+		} else if (value instanceof Map && isStringMap((Map<?, ?>) value)) {
+			Map<String, String> map = (Map<String, String>) value;
+			out.writeByte(STRING_MAP);
+			out.writeInt(map.size());
+			for (Map.Entry<String, String> entry : map.entrySet()) {
+				Operation.writeString(out, entry.getKey());
+				Operation.writeString(out, entry.getValue());
+			}
+		} else if (value instanceof List && isStringList((List<?>) value)) {
+			List<String> list = (List<String>) value;
+			out.writeByte(STRING_LIST);
+			out.writeInt(list.size());
+			for (String element : list) {
+				Operation.writeString(out, element);
+			}
+		} else if (value instanceof byte[]) {
+			byte[] bytes = (byte[]) value;
+			out.writeByte(BYTES);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		} else if (value instanceof Map && isLongMap((Map<?, ?>) value)) {
+			Map<String, Long> map = (Map<String, Long>) value;
+			out.writeByte(LONG_MAP);
+			out.writeInt(map.size());
+			for (Map.Entry<String, Long> entry : map.entrySet()) {
+				Operation.writeString(out, entry.getKey());
+				out.writeLong(entry.getValue());
+			}
+		} else if (value instanceof List && isOperationList((List<?>) value)) {
+			List<Operation> list = (List<Operation>) value;
+			out.writeByte(OPERATION_LIST);
+			out.writeInt(list.size());
+			for (Operation operation : list) {
+				operation.writeTo(out);
+			}
+		} else if (value instanceof WatchCursor) {
+			WatchCursor cursor = (WatchCursor) value;
+			out.writeByte(WATCH_CURSOR);
+			out.writeInt(cursor.size());
+			for (int i = 0; i < cursor.size(); i++) {
+				out.writeLong(cursor.getStreamId(i));
+				out.writeLong(cursor.getPosition(i));
+			}
+		} else if (value instanceof ChangeBatch) {
+			ChangeBatch batch = (ChangeBatch) value;
+			out.writeByte(CHANGE_BATCH);
+			out.writeInt(batch.getChanges().size());
+			for (Change change : batch.getChanges()) {
+				out.writeLong(change.getPosition());
+				Operation.writeString(out, change.getType());
+				Operation.writeString(out, change.getKey());
+				Operation.writeString(out, change.getValue());
+			}
+			writeValue(out, batch.getCursor());
+			out.writeBoolean(batch.hasMissedChanges());
+		} else {
+			throw new IOException("Cannot encode " + value.getClass().getName());
+		}
+	}
+
+	static Object readValue(DataInputStream in) throws IOException {
+		byte tag = in.readByte();
+		switch (tag) {
+			case NULL:
+				return null;
+			case STRING:
+				return Operation.readStringFromFrame(in);
+			case INT:
+				return in.readInt();
+			case LONG:
+				return in.readLong();
+			case BOOLEAN:
+				return in.readBoolean();
+			case OPERATION:
+				return Operation.readFromFrame(in);
+			case PROPOSAL_RESPONSE:
+				return new ProposalResponse(in.readLong(), readValue(in), in.readLong(), in.readLong());
+			case LOG_PROMISE: {
+				boolean promised = in.readBoolean();
+				long ballot = in.readLong();
+				int size = readSize(in);
+				TreeMap<Long, ProposalResponse> accepted = new TreeMap<>();
+				for (int i = 0; i < size; i++) {
+					accepted.put(in.readLong(), (ProposalResponse) readValue(in));
+				}
+				return new LogPromise(promised, ballot, accepted);
+			}
+			case KEY_STATE:
+				return new KeyState(in.readLong(), Operation.readStringFromFrame(in));
+			case STRING_MAP: {
+				int size = readSize(in);
+				Map<String, String> map = new LinkedHashMap<>();
+				for (int i = 0; i < size; i++) {
+					map.put(Operation.readStringFromFrame(in), Operation.readStringFromFrame(in));
+				}
+				return map;
+			}
+			case STRING_LIST: {
+				int size = readSize(in);
+				List<String> list = new ArrayList<>(size);
+				for (int i = 0; i < size; i++) {
+					list.add(Operation.readStringFromFrame(in));
+				}
+				return list;
+			}
+			case BYTES: {
+				byte[] bytes = new byte[readSize(in)];
+				in.readFully(bytes);
+				return bytes;
+			}
+			case LONG_MAP: {
+				int size = readSize(in);
+				Map<String, Long> map = new LinkedHashMap<>();
+				for (int i = 0; i < size; i++) {
+					map.put(Operation.readStringFromFrame(in), in.readLong());
+				}
+				return map;
+			}
+			case OPERATION_LIST: {
+				int size = readSize(in);
+				List<Operation> list = new ArrayList<>(size);
+				for (int i = 0; i < size; i++) {
+					list.add(Operation.readFromFrame(in));
+				}
+				return list;
+			}
+			case WATCH_CURSOR: {
+				int size = readSize(in);
+				long[] streamIds = new long[size];
+				long[] positions = new long[size];
+				for (int i = 0; i < size; i++) {
+					streamIds[i] = in.readLong();
+					positions[i] = in.readLong();
+				}
+				return new WatchCursor(streamIds, positions);
+			}
+			case CHANGE_BATCH: {
+				int size = readSize(in);
+				List<Change> changes = new ArrayList<>(size);
+				for (int i = 0; i < size; i++) {
+					changes.add(new Change(in.readLong(), Operation.readStringFromFrame(in), Operation.readStringFromFrame(in), Operation.readStringFromFrame(in)));
+				}
+				WatchCursor cursor = (WatchCursor) readValue(in);
+				return new ChangeBatch(changes, cursor, in.readBoolean());
+			}
+			default:
+				throw new IOException("Unknown value tag: " + tag);
+		}
+	}
+
+	/**
+	 * Reads the element count of a value, which cannot exceed the bytes left in its frame.
+	 */
+	private static int readSize(DataInputStream in) throws IOException {
+		int size = in.readInt();
+		if (size < 0 || size > in.available()) {
+			throw new IOException("Invalid value size: " + size);
+		}
+		return size;
+	}
+
+	private static boolean isStringMap(Map<?, ?> map) {
+		for (Map.Entry<?, ?> entry : map.entrySet()) {
+			if (!(entry.getKey() instanceof String) || (entry.getValue() != null && !(entry.getValue() instanceof String))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isLongMap(Map<?, ?> map) {
+		for (Map.Entry<?, ?> entry : map.entrySet()) {
+			if (!(entry.getKey() instanceof String) || !(entry.getValue() instanceof Long)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isOperationList(List<?> list) {
+		for (Object element : list) {
+			if (!(element instanceof Operation)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isStringList(List<?> list) {
+		for (Object element : list) {
+			if (element != null && !(element instanceof String)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Writes into a direct buffer, moving to a larger one when it is full.
+	 */
+	private static class BufferOutput extends OutputStream {
+		ByteBuffer buffer;
+
+		BufferOutput(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		private void ensure(int size) {
+			if (buffer.remaining() < size) {
+				ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2, buffer.position() + size));
+				buffer.flip();
+				larger.put(buffer);
+				release(buffer);
+				buffer = larger;
+			}
+		}
+
+		@Override
+		public void write(int b) {
+			ensure(1);
+			buffer.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) {
+			ensure(length);
+			buffer.put(bytes, offset, length);
+		}
+	}
+
+	/**
+	 * Reads from a buffer.
+	 */
+	private static class BufferInput extends InputStream {
+		private final ByteBuffer buffer;
+
+		BufferInput(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) {
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			int count = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, count);
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
@@ -0,0 +1,288 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client side of the binary NIO transport: a stand-in for the RMI stub of a remote server.
+ * All calls share one persistent connection. Each request is tagged with a correlation ID and the caller
+ * waits on a future that the reader thread completes when the matching response arrives, so any number
+ * of calls can be in flight at once. A broken connection fails the calls pending on it and is reopened by
+ * the next call; calls already sent on the new connection are not affected.
+ * @author ZHANG Mao
+ *
+ */
+public class NioPeer implements AcceptorInterface, LearnerInterface, ProposerInterface, KVStoreInterface, MetricsInterface, BulkLoadInterface,
+		WatchInterface {
+
+	private static final long CALL_TIMEOUT = 30000;
+
+	private final InetSocketAddress address;
+	private final AtomicLong nextCorrelationId = new AtomicLong();
+	private volatile Connection connection;
+
+	public NioPeer(String host, int port) {
+		this.address = new InetSocketAddress(host, port);
+	}
+
+	/**
+	 * A connection and the calls sent on it that wait for their response.
+	 */
+	private static final class Connection {
+		final SocketChannel channel;
+		final ConcurrentHashMap<Long, CompletableFuture<Object>> pending = new ConcurrentHashMap<>();
+		// Set before the pending calls are failed, so a call registered afterwards fails itself
+		volatile boolean closed;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	public void close() throws IOException {
+		Connection current = connection;
+		if (current != null) {
+			current.channel.close();
+		}
+	}
+
+	private synchronized Connection connect() throws IOException {
+		Connection current = connection;
+		if (current != null && !current.closed && current.channel.isOpen()) {
+			return current;
+		}
+		SocketChannel opened = SocketChannel.open(address);
+		opened.socket().setTcpNoDelay(true);
+		Connection created = new Connection(opened);
+		Thread reader = new Thread(() -> readLoop(created), "nio-peer-" + address);
+		reader.setDaemon(true);
+		reader.start();
+		connection = created;
+		return created;
+	}
+
+	private void readLoop(Connection connection) {
+		ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+		IOException failure;
+		try {
+			while (true) {
+				NioCodec.Frame response = NioCodec.readFrame(connection.channel, lengthBuffer);
+				CompletableFuture<Object> call = connection.pending.remove(response.correlationId);
+				if (call == null) {
+					continue; // the caller timed out
+				}
+				if (response.code == NioCodec.OK) {
+					call.complete(response.values[0]);
+				} else {
+					call.completeExceptionally(new RemoteException((String) response.values[0]));
+				}
+			}
+		} catch (IOException e) {
+			failure = e;
+		}
+		connection.closed = true;
+		try {
+			connection.channel.close();
+		} catch (IOException e) {
+			// Already closed
+		}
+		// Calls sent on this connection will not get a response
+		for (Long correlationId : connection.pending.keySet()) {
+			CompletableFuture<Object> call = connection.pending.remove(correlationId);
+			if (call != null) {
+				call.completeExceptionally(new RemoteException("Connection to " + address + " lost", failure));
+			}
+		}
+	}
+
+	private Object call(byte method, Object... args) throws RemoteException {
+		long correlationId = nextCorrelationId.incrementAndGet();
+		CompletableFuture<Object> result = new CompletableFuture<>();
+		Connection connection = null;
+		try {
+			connection = connect();
+			connection.pending.put(correlationId, result);
+			if (connection.closed) {
+				throw new IOException("Connection closed");
+			}
+			synchronized (connection) {
+				NioCodec.writeFrame(connection.channel, correlationId, method, args);
+			}
+			return result.get(CALL_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (IOException e) {
+			throw new RemoteException("Cannot reach " + address, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RemoteException) {
+				throw (RemoteException) e.getCause();
+			}
+			throw new RemoteException("Call to " + address + " failed", e.getCause());
+		} catch (TimeoutException e) {
+			throw new RemoteException("Call to " + address + " timed out");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RemoteException("Interrupted while calling " + address);
+		} finally {
+			if (connection != null) {
+				connection.pending.remove(correlationId);
+			}
+		}
+	}
+
+	// Acceptor methods
+
+	@Override
+	public ProposalResponse prepare(String key, long instance, long proposalId) throws RemoteException {
+		return (ProposalResponse) call(NioCodec.PREPARE, key, instance, proposalId);
+	}
+
+	@Override
+	public boolean accept(String key, long instance, long proposalId, Object proposalValue) throws RemoteException {
+		return (Boolean) call(NioCodec.ACCEPT, key, instance, proposalId, proposalValue);
+	}
+
+	@Override
+	public LogPromise prepareLog(long ballot, long fromSlot) throws RemoteException {
+		return (LogPromise) call(NioCodec.PREPARE_LOG, ballot, fromSlot);
+	}
+
+	@Override
+	public boolean acceptSlot(long slot, long ballot, Operation operation, long commitIndex) throws RemoteException {
+		return (Boolean) call(NioCodec.ACCEPT_SLOT, slot, ballot, operation, commitIndex);
+	}
+
+	@Override
+	public long heartbeat(long ballot, long commitIndex) throws RemoteException {
+		return (Long) call(NioCodec.HEARTBEAT, ballot, commitIndex);
+	}
+
+	// Learner methods
+
+	@Override
+	public String learn(String key, long instance, Object acceptedValue) throws RemoteException {
+		return (String) call(NioCodec.LEARN, key, instance, acceptedValue);
+	}
+
+	@Override
+	public KeyState learnedState(String key) throws RemoteException {
+		return (KeyState) call(NioCodec.LEARNED_STATE, key);
+	}
+
+	@Override
+	public void learnSlot(long slot, Operation operation) throws RemoteException {
+		call(NioCodec.LEARN_SLOT, slot, operation);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<Operation> committedSlots(long fromSlot, int maxSlots) throws RemoteException {
+		return (List<Operation>) call(NioCodec.COMMITTED_SLOTS, fromSlot, maxSlots);
+	}
+
+	// Proposer methods
+
+	@Override
+	public String propose(String key, long proposalId, Object proposalValue) throws RemoteException {
+		return (String) call(NioCodec.PROPOSE, key, proposalId, proposalValue);
+	}
+
+	@Override
+	public String submit(Operation operation) throws RemoteException {
+		return (String) call(NioCodec.SUBMIT, operation);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<String> submitBatch(Operation batch) throws RemoteException {
+		return (List<String>) call(NioCodec.SUBMIT_BATCH, batch);
+	}
+
+	@Override
+	public long readIndex() throws RemoteException {
+		return (Long) call(NioCodec.READ_INDEX);
+	}
+
+	// Key-value store methods
+
+	@Override
+	public String get(String key) throws RemoteException {
+		return (String) call(NioCodec.GET, key);
+	}
+
+	@Override
+	public String linearizableGet(String key) throws RemoteException {
+		return (String) call(NioCodec.LINEARIZABLE_GET, key);
+	}
+
+	@Override
+	public String boundedGet(String key, long maxStalenessMillis) throws RemoteException {
+		return (String) call(NioCodec.BOUNDED_GET, key, maxStalenessMillis);
+	}
+
+	@Override
+	public String put(String key, String value) throws RemoteException {
+		return (String) call(NioCodec.PUT, key, value);
+	}
+
+	@Override
+	public String delete(String key) throws RemoteException {
+		return (String) call(NioCodec.DELETE, key);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Map<String, String> multiGet(List<String> keys) throws RemoteException {
+		return (Map<String, String>) call(NioCodec.MULTI_GET, keys);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Map<String, String> multiPut(Map<String, String> entries) throws RemoteException {
+		return (Map<String, String>) call(NioCodec.MULTI_PUT, entries);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Map<String, String> multiDelete(List<String> keys) throws RemoteException {
+		return (Map<String, String>) call(NioCodec.MULTI_DELETE, keys);
+	}
+
+	@Override
+	public boolean compareAndSet(String key, String expectedValue, String newValue) throws RemoteException {
+		return (Boolean) call(NioCodec.COMPARE_AND_SET, key, expectedValue, newValue);
+	}
+
+	@Override
+	public boolean transact(Map<String, String> guards, Map<String, String> writes) throws RemoteException {
+		return (Boolean) call(NioCodec.TRANSACT, guards, writes);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Map<String, Long> getMetrics() throws RemoteException {
+		return (Map<String, Long>) call(NioCodec.GET_METRICS);
+	}
+
+	@Override
+	public int ingest(byte[] lines) throws RemoteException {
+		return (Integer) call(NioCodec.INGEST, (Object) lines);
+	}
+
+	@Override
+	public void finishIngest() throws RemoteException {
+		call(NioCodec.FINISH_INGEST);
+	}
+
+	@Override
+	public ChangeBatch watch(String key, boolean prefix, WatchCursor cursor, int maxChanges, long maxWaitMillis) throws RemoteException {
+		return (ChangeBatch) call(NioCodec.WATCH, key, prefix, cursor, maxChanges, maxWaitMillis);
+	}
+}
@@ -0,0 +1,214 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Serves the acceptor, learner, proposer and key-value store methods of a server over the binary NIO
+ * transport. Every connection is persistent and has a reader thread that decodes requests and hands them
+ * to a worker pool, so many requests of one connection are in flight at the same time; responses carry
+ * the correlation ID of their request and are written back in completion order.
+ * @author ZHANG Mao
+ *
+ */
+public class NioServer {
+
+	private final Server server;
+	// Receive the key-value store, metrics, bulk load and watch requests of clients, the server itself unless partitioned
+	private final KVStoreInterface store;
+	private final MetricsInterface metrics;
+	private final BulkLoadInterface loader;
+	private final WatchInterface watch;
+	private final ServerSocketChannel listener;
+	private final ExecutorService workers;
+	private final Set<SocketChannel> connections = ConcurrentHashMap.newKeySet();
+	private final Logger logger;
+	private volatile boolean running = true;
+
+	/**
+	 * Starts listening on the given port.
+	 * @param port The port to listen on.
+	 * @param server The server requests are dispatched to.
+	 * @throws IOException If the port cannot be bound.
+	 */
+	public NioServer(int port, Server server) throws IOException {
+		this(port, server, server, server, server, server);
+	}
+
+	/**
+	 * Starts listening on the given port for the Paxos traffic of one partition of a node.
+	 * @param port The port to listen on.
+	 * @param server The server of the partition, to which Paxos requests are dispatched.
+	 * @param router The node's router, to which client requests are dispatched whatever their partition.
+	 * @throws IOException If the port cannot be bound.
+	 */
+	public NioServer(int port, Server server, PartitionedServer router) throws IOException {
+		this(port, server, router, router, router, router);
+	}
+
+	private NioServer(int port, Server server, KVStoreInterface store, MetricsInterface metrics, BulkLoadInterface loader,
+			WatchInterface watch) throws IOException {
+		this.server = server;
+		this.store = store;
+		this.metrics = metrics;
+		this.loader = loader;
+		this.watch = watch;
+		this.logger = new Logger("NioServer_" + port + ".log");
+		this.workers = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "nio-worker-" + port);
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.listener = ServerSocketChannel.open();
+		this.listener.bind(new InetSocketAddress(port));
+		Thread acceptor = new Thread(this::acceptLoop, "nio-accept-" + port);
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public int getPort() {
+		return listener.socket().getLocalPort();
+	}
+
+	public void close() {
+		running = false;
+		try {
+			listener.close();
+			for (SocketChannel connection : connections) {
+				connection.close();
+			}
+		} catch (IOException e) {
+			logger.log(Logger.Level.WARN, "Exception while closing NIO server: " + e.getMessage());
+		}
+		logger.close();
+		workers.shutdownNow();
+	}
+
+	private void acceptLoop() {
+		while (running) {
+			try {
+				SocketChannel connection = listener.accept();
+				connection.socket().setTcpNoDelay(true);
+				connections.add(connection);
+				Thread reader = new Thread(() -> readLoop(connection), "nio-read-" + connection.getRemoteAddress());
+				reader.setDaemon(true);
+				reader.start();
+			} catch (ClosedChannelException e) {
+				return;
+			} catch (IOException e) {
+				logger.log(Logger.Level.WARN, "Exception while accepting NIO connection: " + e.getMessage());
+			}
+		}
+	}
+
+	private void readLoop(SocketChannel connection) {
+		ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+		try {
+			while (running) {
+				NioCodec.Frame request = NioCodec.readFrame(connection, lengthBuffer);
+				workers.execute(() -> respond(connection, request));
+			}
+		} catch (IOException | RejectedExecutionException e) {
+			// The peer closed the connection or the server is shutting down
+		} finally {
+			connections.remove(connection);
+			try {
+				connection.close();
+			} catch (IOException e) {
+				// Already closed
+			}
+		}
+	}
+
+	private void respond(SocketChannel connection, NioCodec.Frame request) {
+		byte status;
+		Object result;
+		try {
+			result = dispatch(request.code, request.values);
+			status = NioCodec.OK;
+		} catch (Exception e) {
+			result = e.getMessage() != null ? e.getMessage() : e.toString();
+			status = NioCodec.ERROR;
+		}
+		try {
+			synchronized (connection) {
+				NioCodec.writeFrame(connection, request.correlationId, status, result);
+			}
+		} catch (IOException e) {
+			logger.log(Logger.Level.WARN, "Exception while writing NIO response: " + e.getMessage());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private Object dispatch(byte method, Object[] args) throws Exception {
+		switch (method) {
+			case NioCodec.PREPARE:
+				return server.prepare((String) args[0], (Long) args[1], (Long) args[2]);
+			case NioCodec.ACCEPT:
+				return server.accept((String) args[0], (Long) args[1], (Long) args[2], args[3]);
+			case NioCodec.PREPARE_LOG:
+				return server.prepareLog((Long) args[0], (Long) args[1]);
+			case NioCodec.ACCEPT_SLOT:
+				return server.acceptSlot((Long) args[0], (Long) args[1], (Operation) args[2], (Long) args[3]);
+			case NioCodec.HEARTBEAT:
+				return server.heartbeat((Long) args[0], (Long) args[1]);
+			case NioCodec.LEARN:
+				return server.learn((String) args[0], (Long) args[1], args[2]);
+			case NioCodec.LEARNED_STATE:
+				return server.learnedState((String) args[0]);
+			case NioCodec.LEARN_SLOT:
+				server.learnSlot((Long) args[0], (Operation) args[1]);
+				return null;
+			case NioCodec.COMMITTED_SLOTS:
+				return server.committedSlots((Long) args[0], (Integer) args[1]);
+			case NioCodec.PROPOSE:
+				return server.propose((String) args[0], (Long) args[1], args[2]);
+			case NioCodec.SUBMIT:
+				return server.submit((Operation) args[0]);
+			case NioCodec.SUBMIT_BATCH:
+				return server.submitBatch((Operation) args[0]);
+			case NioCodec.READ_INDEX:
+				return server.readIndex();
+			case NioCodec.GET:
+				return store.get((String) args[0]);
+			case NioCodec.LINEARIZABLE_GET:
+				return store.linearizableGet((String) args[0]);
+			case NioCodec.BOUNDED_GET:
+				return store.boundedGet((String) args[0], (Long) args[1]);
+			case NioCodec.PUT:
+				return store.put((String) args[0], (String) args[1]);
+			case NioCodec.DELETE:
+				return store.delete((String) args[0]);
+			case NioCodec.MULTI_GET:
+				return store.multiGet((List<String>) args[0]);
+			case NioCodec.MULTI_PUT:
+				return store.multiPut((Map<String, String>) args[0]);
+			case NioCodec.MULTI_DELETE:
+				return store.multiDelete((List<String>) args[0]);
+			case NioCodec.COMPARE_AND_SET:
+				return store.compareAndSet((String) args[0], (String) args[1], (String) args[2]);
+			case NioCodec.TRANSACT:
+				return store.transact((Map<String, String>) args[0], (Map<String, String>) args[1]);
+			case NioCodec.GET_METRICS:
+				return metrics.getMetrics();
+			case NioCodec.INGEST:
+				return loader.ingest((byte[]) args[0]);
+			case NioCodec.FINISH_INGEST:
+				loader.finishIngest();
+				return null;
+			case NioCodec.WATCH:
+				return watch.watch((String) args[0], (Boolean) args[1], (WatchCursor) args[2], (Integer) args[3], (Long) args[4]);
+			default:
+				throw new IllegalArgumentException("Unknown method code: " + method);
+		}
+	}
+}
@@ -0,0 +1,225 @@
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * An operation on the key-value store. It is the value agreed on by a Paxos instance,
+ * or by a slot of the replicated log in Multi-Paxos mode.
+ */
+public class Operation implements Serializable {
+	private static final long serialVersionUID = 3127719862146604387L;
+	
+	// Results of a transaction
+	public static final String COMMITTED = "COMMITTED";
+	public static final String ABORTED = "ABORTED";
+	
+	// The three string lengths and the element count of an operation with no strings and no elements
+	private static final int MIN_ENCODED_SIZE = 16;
+	
+	private final String type;
+	private final String key;
+	private final String value;
+	private final List<Operation> operations;
+	
+	public Operation(String type, String key, String value) {
+		this(type, key, value, null);
+	}
+	
+	private Operation(String type, String key, String value, List<Operation> operations) {
+		this.type = type;
+		this.key = key;
+		this.value = value;
+		this.operations = operations;
+	}
+	
+	/**
+	 * Creates an operation which leaves the key-value store unchanged. A new leader uses it
+	 * to fill the log slots for which no value was accepted.
+	 * @return A no-op operation.
+	 */
+	public static Operation noop() {
+		return new Operation("NOOP", null, null);
+	}
+	
+	/**
+	 * Creates an operation which applies several operations atomically and in order.
+	 * @param batchId A unique name of the batch. It is used as the key of the batch.
+	 * @param operations The operations in the batch.
+	 * @return The batch operation.
+	 */
+	public static Operation batch(String batchId, List<Operation> operations) {
+		return new Operation("BATCH", batchId, null, operations);
+	}
+	
+	/**
+	 * Creates a guard of a transaction.
+	 * @param key The key.
+	 * @param expectedValue The value the key must have, or null if it must be absent.
+	 * @return The guard.
+	 */
+	public static Operation check(String key, String expectedValue) {
+		return new Operation("CHECK", key, expectedValue);
+	}
+	
+	/**
+	 * Creates an operation which applies its writes atomically if all of its guards hold, and nothing
+	 * otherwise. It is evaluated when it is applied, so every server comes to the same outcome.
+	 * @param key The key of the transaction: the only key it touches, or else a unique name.
+	 * @param transactionId A unique name of the transaction, so that two transactions with the same
+	 *        guards and writes are not mistaken for each other.
+	 * @param guards The CHECK operations.
+	 * @param writes The PUT and DELETE operations, applied in order.
+	 * @return The transaction, whose result is COMMITTED or ABORTED.
+	 */
+	public static Operation transaction(String key, String transactionId, List<Operation> guards, List<Operation> writes) {
+		List<Operation> operations = new ArrayList<>(guards.size() + writes.size());
+		operations.addAll(guards);
+		operations.addAll(writes);
+		return new Operation("TXN", key, transactionId, operations);
+	}
+	
+	public String getType() {
+		return type;
+	}
+	
+	public String getKey() {
+		return key;
+	}
+	
+	public String getValue() {
+		return value;
+	}
+	
+	/**
+	 * @return The operations of a batch or a transaction, or null if this is neither.
+	 */
+	public List<Operation> getOperations() {
+		return operations;
+	}
+	
+	/**
+	 * Operations are equal if they have the same effect, so a proposer recognizes its own value after it
+	 * went through serialization. Batches are told apart by their unique key, transactions by their unique ID.
+	 */
+	@Override
+	public boolean equals(Object other) {
+		if (this == other) {
+			return true;
+		}
+		if (!(other instanceof Operation)) {
+			return false;
+		}
+		Operation operation = (Operation) other;
+		return Objects.equals(type, operation.type) && Objects.equals(key, operation.key)
+				&& Objects.equals(value, operation.value) && Objects.equals(operations, operation.operations);
+	}
+	
+	@Override
+	public int hashCode() {
+		return Objects.hash(type, key, value);
+	}
+	
+	/**
+	 * Writes the operation in a compact binary form, used by the write-ahead log.
+	 * @param out The output to write to.
+	 * @throws IOException If the output fails.
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		writeString(out, type);
+		writeString(out, key);
+		writeString(out, value);
+		if (operations == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(operations.size());
+			for (Operation operation : operations) {
+				operation.writeTo(out);
+			}
+		}
+	}
+	
+	/**
+	 * Reads an operation written by {@link #writeTo(DataOutput)}.
+	 * @param in The input to read from.
+	 * @return The operation.
+	 * @throws IOException If the input fails or is malformed.
+	 */
+	public static Operation readFrom(DataInput in) throws IOException {
+		return readFrom(in, null);
+	}
+	
+	/**
+	 * Reads an operation written by {@link #writeTo(DataOutput)} from a frame of the NIO transport. Unlike
+	 * the write-ahead log, a frame comes from the network, so every length in it is checked against the bytes
+	 * left in the frame before anything is allocated for it.
+	 * @param frame The frame, whose available() is the number of bytes left in it.
+	 * @return The operation.
+	 * @throws IOException If the frame is malformed.
+	 */
+	static Operation readFromFrame(DataInputStream frame) throws IOException {
+		return readFrom(frame, frame);
+	}
+	
+	private static Operation readFrom(DataInput in, DataInputStream frame) throws IOException {
+		String type = readString(in, frame);
+		String key = readString(in, frame);
+		String value = readString(in, frame);
+		int size = in.readInt();
+		List<Operation> operations = null;
+		if (size >= 0) {
+			operations = new ArrayList<>(checkLength(size, MIN_ENCODED_SIZE, frame));
+			for (int i = 0; i < size; i++) {
+				operations.add(readFrom(in, frame));
+			}
+		}
+		return new Operation(type, key, value, operations);
+	}
+	
+	static void writeString(DataOutput out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	static String readString(DataInput in) throws IOException {
+		return readString(in, null);
+	}
+	
+	/**
+	 * Reads a string written by {@link #writeString(DataOutput, String)} from a frame of the NIO transport,
+	 * checking its length against the bytes left in the frame.
+	 */
+	static String readStringFromFrame(DataInputStream frame) throws IOException {
+		return readString(frame, frame);
+	}
+	
+	private static String readString(DataInput in, DataInputStream frame) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[checkLength(length, 1, frame)];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * @return The number of elements, if a frame is given and they fit in the bytes left in it.
+	 */
+	private static int checkLength(int length, int minBytesEach, DataInputStream frame) throws IOException {
+		if (frame != null && length > frame.available() / minBytesEach) {
+			throw new IOException("Length " + length + " exceeds the " + frame.available() + " bytes left in the frame");
+		}
+		return length;
+	}
+}
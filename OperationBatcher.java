@@ -0,0 +1,109 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group-commit stage in front of the proposer. Operations arriving within the linger window are collected,
+ * up to a maximum batch size, and agreed on together in a single consensus instance.
+ * @author ZHANG Mao
+ *
+ */
+public class OperationBatcher {
+	
+	/**
+	 * Agrees on a batch of operations and returns the result of each operation, in order,
+	 * or null if the batch could not be committed.
+	 */
+	@FunctionalInterface
+	public interface BatchCommitter {
+		List<String> commit(List<Operation> operations) throws Exception;
+	}
+	
+	private final int maxBatchSize;
+	private final long lingerNanos;
+	private final BatchCommitter committer;
+	private final Executor executor;
+	private final BlockingQueue<PendingOperation> queue = new LinkedBlockingQueue<>();
+	private final Thread flusher;
+	
+	/**
+	 * @param maxBatchSize The maximum number of operations agreed on in one instance.
+	 * @param lingerMillis How long the first operation of a batch waits for others to join it.
+	 * @param committer Runs consensus on a batch.
+	 * @param executor Runs the consensus instances, so that several batches can be in flight.
+	 */
+	public OperationBatcher(int maxBatchSize, int lingerMillis, BatchCommitter committer, Executor executor) {
+		this.maxBatchSize = maxBatchSize;
+		this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+		this.committer = committer;
+		this.executor = executor;
+		this.flusher = new Thread(this::flushLoop, "operation-batcher");
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+	
+	/**
+	 * Queues an operation and waits until the batch containing it was committed.
+	 * @param operation The operation to commit.
+	 * @return The result of the operation, or null if its batch failed.
+	 */
+	public String submit(Operation operation) throws InterruptedException {
+		PendingOperation pending = new PendingOperation(operation);
+		queue.put(pending);
+		try {
+			return pending.result.get();
+		} catch (ExecutionException e) {
+			return null;
+		}
+	}
+	
+	private void flushLoop() {
+		try {
+			while (true) {
+				List<PendingOperation> batch = new ArrayList<>();
+				batch.add(queue.take());
+				long deadline = System.nanoTime() + lingerNanos;
+				while (batch.size() < maxBatchSize) {
+					PendingOperation next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+				}
+				executor.execute(() -> commit(batch));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private void commit(List<PendingOperation> batch) {
+		List<Operation> operations = new ArrayList<>(batch.size());
+		for (PendingOperation pending : batch) {
+			operations.add(pending.operation);
+		}
+		List<String> results = null;
+		try {
+			results = committer.commit(operations);
+		} catch (Exception e) {
+			// the callers see the failure as a null result
+		}
+		for (int i = 0; i < batch.size(); i++) {
+			batch.get(i).result.complete(results == null ? null : results.get(i));
+		}
+	}
+	
+	private static class PendingOperation {
+		final Operation operation;
+		final CompletableFuture<String> result = new CompletableFuture<>();
+		
+		PendingOperation(Operation operation) {
+			this.operation = operation;
+		}
+	}
+}
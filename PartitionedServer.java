@@ -0,0 +1,312 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client-facing side of a node whose keyspace is split into partitions by key hash. Each partition is an
+ * independent consensus group with its own Server on every node: its own ballots, acceptor state, log,
+ * executors and, in Multi-Paxos mode, its own leader. This class holds the node's member of every group
+ * and routes each request to the partition of its key, so writes to different partitions never share a
+ * lock, a thread pool or a log.
+ * Batch calls are split by partition. Each part is atomic, but a batch spanning partitions is not: if one
+ * part fails, the others may still be committed.
+ * @author ZHANG Mao
+ *
+ */
+public class PartitionedServer extends UnicastRemoteObject implements KVStoreInterface, MetricsInterface, BulkLoadInterface, WatchInterface {
+
+	private static final long serialVersionUID = -2961536283771096124L;
+
+	private final Server[] partitions;
+	// Watchers of several partitions wait here, woken by a change in any of them
+	private final Object changeSignal = new Object();
+	private final AtomicInteger watchers = new AtomicInteger();
+
+	/**
+	 * @param partitions The Server of this node in every partition, indexed by partition.
+	 * @throws RemoteException If the object cannot be exported.
+	 */
+	public PartitionedServer(Server[] partitions) throws RemoteException {
+		super();
+		this.partitions = partitions;
+		for (Server partition : partitions) {
+			partition.getChangeLog().setListener(this::signalChange);
+		}
+	}
+
+	/**
+	 * @return The partition of the key. Spread from String.hashCode, whose low bits also pick the lock
+	 *         stripe within a partition.
+	 */
+	public static int partitionOf(String key, int partitionCount) {
+		int h = key.hashCode() * 0x9e3779b9;
+		return (h >>> 16) % partitionCount;
+	}
+
+	private Server partition(String key) {
+		return partitions[partitionOf(key, partitions.length)];
+	}
+
+	public int getPartitionCount() {
+		return partitions.length;
+	}
+
+	@Override
+	public String get(String key) throws RemoteException {
+		return partition(key).get(key);
+	}
+
+	@Override
+	public String linearizableGet(String key) throws RemoteException {
+		return partition(key).linearizableGet(key);
+	}
+
+	@Override
+	public String boundedGet(String key, long maxStalenessMillis) throws RemoteException {
+		return partition(key).boundedGet(key, maxStalenessMillis);
+	}
+
+	@Override
+	public String put(String key, String value) throws RemoteException {
+		return partition(key).put(key, value);
+	}
+
+	@Override
+	public String delete(String key) throws RemoteException {
+		return partition(key).delete(key);
+	}
+
+	@Override
+	public Map<String, String> multiGet(List<String> keys) throws RemoteException {
+		Map<String, String> results = new LinkedHashMap<>();
+		for (String key : keys) {
+			results.put(key, null);
+		}
+		for (int p = 0; p < partitions.length; p++) {
+			List<String> part = keysOf(keys, p);
+			if (!part.isEmpty()) {
+				results.putAll(partitions[p].multiGet(part));
+			}
+		}
+		return results;
+	}
+
+	@Override
+	public Map<String, String> multiPut(Map<String, String> entries) throws RemoteException {
+		Map<String, String> results = new LinkedHashMap<>();
+		for (int p = 0; p < partitions.length; p++) {
+			Map<String, String> part = new LinkedHashMap<>();
+			for (Map.Entry<String, String> entry : entries.entrySet()) {
+				if (partitionOf(entry.getKey(), partitions.length) == p) {
+					part.put(entry.getKey(), entry.getValue());
+				}
+			}
+			if (!part.isEmpty() && !merge(results, partitions[p].multiPut(part))) {
+				return null;
+			}
+		}
+		return inOrder(entries.keySet(), results);
+	}
+
+	@Override
+	public Map<String, String> multiDelete(List<String> keys) throws RemoteException {
+		Map<String, String> results = new LinkedHashMap<>();
+		for (int p = 0; p < partitions.length; p++) {
+			List<String> part = keysOf(keys, p);
+			if (!part.isEmpty() && !merge(results, partitions[p].multiDelete(part))) {
+				return null;
+			}
+		}
+		return inOrder(keys, results);
+	}
+
+	@Override
+	public boolean compareAndSet(String key, String expectedValue, String newValue) throws RemoteException {
+		return partition(key).compareAndSet(key, expectedValue, newValue);
+	}
+
+	/**
+	 * Runs the transaction in the partition of its keys. Transactions are atomic within one consensus
+	 * group only, so all keys must be in the same partition.
+	 */
+	@Override
+	public boolean transact(Map<String, String> guards, Map<String, String> writes) throws RemoteException {
+		int partition = -1;
+		for (String key : concat(guards.keySet(), writes.keySet())) {
+			int p = partitionOf(key, partitions.length);
+			if (partition != -1 && p != partition) {
+				throw new RemoteException("The keys of a transaction must be in the same partition");
+			}
+			partition = p;
+		}
+		return partition == -1 || partitions[partition].transact(guards, writes);
+	}
+
+	private static List<String> concat(Iterable<String> first, Iterable<String> second) {
+		List<String> keys = new ArrayList<>();
+		first.forEach(keys::add);
+		second.forEach(keys::add);
+		return keys;
+	}
+
+	private List<String> keysOf(List<String> keys, int partition) {
+		List<String> part = new ArrayList<>();
+		for (String key : keys) {
+			if (partitionOf(key, partitions.length) == partition) {
+				part.add(key);
+			}
+		}
+		return part;
+	}
+
+	private static boolean merge(Map<String, String> results, Map<String, String> part) {
+		if (part == null) {
+			return false;
+		}
+		results.putAll(part);
+		return true;
+	}
+
+	/**
+	 * @return The results in the order the keys were passed in, like an unpartitioned server returns them.
+	 */
+	private static Map<String, String> inOrder(Iterable<String> keys, Map<String, String> results) {
+		Map<String, String> ordered = new LinkedHashMap<>();
+		for (String key : keys) {
+			ordered.put(key, results.get(key));
+		}
+		return ordered;
+	}
+
+	/**
+	 * Splits the lines by the partition of their key and ingests each part into its partition.
+	 */
+	@Override
+	public int ingest(byte[] lines) throws RemoteException {
+		ByteArrayOutputStream[] parts = new ByteArrayOutputStream[partitions.length];
+		try {
+			BulkLoader.forEachLine(ByteBuffer.wrap(lines), 0, lines.length, (buffer, keyStart, keyEnd, valueStart, valueEnd) -> {
+				int p = partitionOf(BulkLoader.string(buffer, keyStart, keyEnd), partitions.length);
+				if (parts[p] == null) {
+					parts[p] = new ByteArrayOutputStream();
+				}
+				parts[p].write(lines, keyStart, keyEnd - keyStart);
+				parts[p].write('=');
+				parts[p].write(lines, valueStart, valueEnd - valueStart);
+				parts[p].write('\n');
+			});
+		} catch (IOException e) {
+			throw new RemoteException("Bulk ingestion failed", e);
+		}
+		int count = 0;
+		for (int p = 0; p < partitions.length; p++) {
+			if (parts[p] != null) {
+				count += partitions[p].ingest(parts[p].toByteArray());
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public void finishIngest() throws RemoteException {
+		for (Server partition : partitions) {
+			partition.finishIngest();
+		}
+	}
+
+	/**
+	 * Watches the change log of the key's partition, or of every partition for a prefix. The cursor holds
+	 * a position per partition; changes are in order within each partition.
+	 */
+	@Override
+	public ChangeBatch watch(String key, boolean prefix, WatchCursor cursor, int maxChanges, long maxWaitMillis) throws RemoteException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.min(maxWaitMillis, Server.MAX_WATCH_WAIT));
+		int limit = Math.min(maxChanges, Server.MAX_WATCH_BATCH);
+		int keyPartition = prefix ? -1 : partitionOf(key, partitions.length);
+		long[] streamIds = new long[partitions.length];
+		long[] positions = new long[partitions.length];
+		for (int p = 0; p < partitions.length; p++) {
+			ChangeLog log = partitions[p].getChangeLog();
+			if (cursor == null) {
+				streamIds[p] = log.getStreamId();
+				positions[p] = log.getNextPosition();
+			} else if (cursor.size() != partitions.length) {
+				// A cursor of a server with another number of partitions
+				streamIds[p] = ~log.getStreamId();
+			} else {
+				streamIds[p] = cursor.getStreamId(p);
+				positions[p] = cursor.getPosition(p);
+			}
+		}
+		List<Change> changes = new ArrayList<>();
+		boolean missed = false;
+		while (true) {
+			for (int p = 0; p < partitions.length && changes.size() < limit; p++) {
+				if (keyPartition == -1 || keyPartition == p) {
+					ChangeBatch part = partitions[p].getChangeLog().read(key, prefix, streamIds[p], positions[p], limit - changes.size());
+					changes.addAll(part.getChanges());
+					missed |= part.hasMissedChanges();
+					streamIds[p] = part.getCursor().getStreamId(0);
+					positions[p] = part.getCursor().getPosition(0);
+				}
+			}
+			long remaining = deadline - System.nanoTime();
+			if (!changes.isEmpty() || missed || remaining <= 0) {
+				return new ChangeBatch(changes, new WatchCursor(streamIds, positions), missed);
+			}
+			watchers.incrementAndGet();
+			try {
+				synchronized (changeSignal) {
+					if (!hasChangesAfter(positions, keyPartition)) {
+						TimeUnit.NANOSECONDS.timedWait(changeSignal, remaining);
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RemoteException("Interrupted while watching");
+			} finally {
+				watchers.decrementAndGet();
+			}
+		}
+	}
+
+	private boolean hasChangesAfter(long[] positions, int keyPartition) {
+		for (int p = 0; p < partitions.length; p++) {
+			if ((keyPartition == -1 || keyPartition == p) && partitions[p].getChangeLog().getNextPosition() > positions[p]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void signalChange() {
+		// Appliers only take the lock while someone waits
+		if (watchers.get() > 0) {
+			synchronized (changeSignal) {
+				changeSignal.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @return The metrics of every partition, prefixed with "partition<P>.".
+	 */
+	@Override
+	public Map<String, Long> getMetrics() throws RemoteException {
+		Map<String, Long> metrics = new LinkedHashMap<>();
+		for (int p = 0; p < partitions.length; p++) {
+			for (Map.Entry<String, Long> metric : partitions[p].getMetrics().entrySet()) {
+				metrics.put("partition" + p + "." + metric.getKey(), metric.getValue());
+			}
+		}
+		return metrics;
+	}
+}
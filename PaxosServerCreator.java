@@ -1,4 +1,6 @@
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 
@@ -8,51 +10,142 @@ import java.rmi.registry.Registry;
  */
 public class PaxosServerCreator {
 
+  // The NIO transport of a server listens on its RMI port plus this offset
+  static final int NIO_PORT_OFFSET = 100;
+
+  /**
+   * @return The NIO port of the given partition of the server with the given RMI port. Partition 0,
+   *         which also serves clients, is at the usual offset, the next ones are each another offset further.
+   */
+  static int nioPort(int port, int partition) {
+    return port + NIO_PORT_OFFSET * (partition + 1);
+  }
+
   /**
    * The main method to launch the creation and binding process of the Paxos servers.
    *
-   * @param args Command-line arguments (unused in this context).
+   * @param args Command-line arguments: the base port, optionally followed by the mode ("basic" or "multi")
+   *             and options of the form --name=value.
    */
   public static void main(String[] args) {
     try {
     	
       if (args.length < 1) {
-    	System.out.println("Usage: PaxosServerCreator <Base Port>");
+    	System.out.println("Usage: PaxosServerCreator <Base Port> [basic|multi] [--batch-size=N] [--batch-linger-ms=N] [--wal-dir=DIR] [--snapshot-interval-s=N] [--executor=pool|virtual] [--transport=rmi|nio] [--storage=map|offheap|array] [--partitions=N] [--watch-history=N] [--hedge] [--jmx]");
 		return;
 	  }
       
       int numServers = 5; // Total number of servers
       
       int basePort = Integer.parseInt(args[0]); // Starting port number
+      
+      Map<String, String> options = parseOptions(args);
+      boolean multiPaxos = options.getOrDefault("mode", "basic").equalsIgnoreCase("multi");
+      int batchSize = Integer.parseInt(options.getOrDefault("batch-size", "1"));
+      int batchLingerMillis = Integer.parseInt(options.getOrDefault("batch-linger-ms", "2"));
+      String walDirectory = options.get("wal-dir");
+      boolean virtualThreads = options.getOrDefault("executor", "pool").equalsIgnoreCase("virtual");
+      int snapshotIntervalSeconds = Integer.parseInt(options.getOrDefault("snapshot-interval-s", "60"));
+      boolean nioTransport = options.getOrDefault("transport", "rmi").equalsIgnoreCase("nio");
+      String storage = options.getOrDefault("storage", "map");
+      boolean jmx = options.containsKey("jmx");
+      boolean hedge = options.containsKey("hedge");
+      int partitions = Integer.parseInt(options.getOrDefault("partitions", "1"));
+      int watchHistory = Integer.parseInt(options.getOrDefault("watch-history", "65536"));
 
-      Server[] servers = new Server[numServers];
+      Server[][] servers = new Server[partitions][numServers];
 
       // Create and bind servers
       for (int serverId = 0; serverId < numServers; serverId++) {
         int port = basePort + serverId; // Increment port for each server
 
-        // Create server instance
-        servers[serverId] = new Server(serverId, numServers);
+        // Create the server instance of every partition
+        for (int partition = 0; partition < partitions; partition++) {
+          Server server = new Server(serverId, numServers, multiPaxos,
+              partitions > 1 ? "Server_" + serverId + "_P" + partition : "Server_" + serverId);
+          servers[partition][serverId] = server;
+          if (storage.equalsIgnoreCase("offheap") || storage.equalsIgnoreCase("array")) {
+            server.setStorageEngine(new CompactStorageEngine(storage.equalsIgnoreCase("offheap")));
+          }
+          if (virtualThreads) {
+            server.useVirtualThreads();
+          }
+          if (batchSize > 1) {
+            server.setBatching(batchSize, batchLingerMillis);
+          }
+          server.setChangeHistory(watchHistory);
+          if (hedge) {
+            server.enableHedging();
+          }
+          if (walDirectory != null) {
+            server.enableDurability(walDirectory + "/Server_" + serverId + (partitions > 1 ? "/Partition_" + partition : ""),
+                snapshotIntervalSeconds);
+          }
+          if (jmx) {
+            server.registerMetricsMBean();
+          }
+        }
+
+        // Clients reach the server itself, or a router to the partitions of their keys
+        PartitionedServer router = null;
+        if (partitions > 1) {
+          Server[] members = new Server[partitions];
+          for (int partition = 0; partition < partitions; partition++) {
+            members[partition] = servers[partition][serverId];
+          }
+          router = new PartitionedServer(members);
+        }
 
         // Bind the server to the RMI registry
         Registry registry = LocateRegistry.createRegistry(port);
-        registry.rebind("KVServer" + port, servers[serverId]);
+        registry.rebind("KVServer" + port, router != null ? router : servers[0][serverId]);
+
+        System.out.println("Server " + serverId + " is ready at port " + port
+            + (partitions > 1 ? " with " + partitions + " partitions" : ""));
+
+        // Serve Paxos traffic and clients over the binary transport as well, one port per partition
+        if (nioTransport) {
+          for (int partition = 0; partition < partitions; partition++) {
+            int nioPort = nioPort(port, partition);
+            if (router != null) {
+              new NioServer(nioPort, servers[partition][serverId], router);
+            } else {
+              new NioServer(nioPort, servers[partition][serverId]);
+            }
+            System.out.println("Server " + serverId + " accepts NIO connections at port " + nioPort);
+          }
+        }
+      }
 
-        System.out.println("Server " + serverId + " is ready at port " + port);
+      // Set acceptors, learners and proposers for each server of each partition
+      for (int partition = 0; partition < partitions; partition++) {
+        for (int serverId = 0; serverId < numServers; serverId++) {
+          AcceptorInterface[] acceptors = new AcceptorInterface[numServers];
+          LearnerInterface[] learners = new LearnerInterface[numServers];
+          ProposerInterface[] proposers = new ProposerInterface[numServers];
+          for (int i = 0; i < numServers; i++) {
+            if (nioTransport) {
+              NioPeer peer = new NioPeer("localhost", nioPort(basePort + i, partition));
+              acceptors[i] = peer;
+              learners[i] = peer;
+              proposers[i] = peer;
+            } else {
+              acceptors[i] = servers[partition][i];
+              learners[i] = servers[partition][i];
+              proposers[i] = servers[partition][i];
+            }
+          }
+          servers[partition][serverId].setAcceptors(acceptors);
+          servers[partition][serverId].setLearners(learners);
+          servers[partition][serverId].setProposers(proposers);
+        }
       }
 
-      // Set acceptors and learners for each server
-      for (int serverId = 0; serverId < numServers; serverId++) {
-        AcceptorInterface[] acceptors = new AcceptorInterface[numServers];
-        LearnerInterface[] learners = new LearnerInterface[numServers];
-        for (int i = 0; i < numServers; i++) {
-          //if (i != serverId) {
-            acceptors[i] = servers[i];
-            learners[i] = servers[i];
-          //}
+      // Spread the Multi-Paxos leaders of the partitions over the servers
+      if (multiPaxos && partitions > 1) {
+        for (int partition = 0; partition < partitions; partition++) {
+          servers[partition][partition % numServers].lead();
         }
-        servers[serverId].setAcceptors(acceptors);
-        servers[serverId].setLearners(learners);
       }
 
     } catch (Exception e) {
@@ -69,4 +162,24 @@ public class PaxosServerCreator {
 
     System.out.println("Shutting down servers...");
   }
+
+  /**
+   * Parses the arguments following the base port. A bare argument selects the mode,
+   * arguments of the form --name=value set the option name.
+   *
+   * @param args Command-line arguments.
+   * @return The options by name.
+   */
+  private static Map<String, String> parseOptions(String[] args) {
+    Map<String, String> options = new HashMap<>();
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].startsWith("--")) {
+        String[] parts = args[i].substring(2).split("=", 2);
+        options.put(parts[0], parts.length == 2 ? parts[1] : "true");
+      } else {
+        options.put("mode", args[i]);
+      }
+    }
+    return options;
+  }
 }
@@ -0,0 +1,314 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Paxos state of the keys in basic mode. The writes of a key are decided in a sequence of instances
+ * numbered from 0, and every prepare, accept and learn carries the number of its instance. For every key
+ * the table holds the number of instances this server has learned and applied, and the acceptor state
+ * (promised ID, accepted ID, accepted value) of the one instance the acceptor is in. The acceptor moves on
+ * as soon as it sees a message of a later instance, or learns its current one, and drops the state of the
+ * earlier instance; messages of earlier instances are stale and rejected. A value accepted in one instance
+ * is thus never offered again in the next, even by an acceptor that missed the decision.
+ * Instead of an object per key, the instance numbers live in open-addressed tables of parallel arrays.
+ * The acceptor state is held by key only while the current instance has a promise or an accepted value:
+ * once the instance of a key is learned, only the key and its two instance numbers remain, about 100
+ * bytes per key with the key itself (see benchmarks/PaxosStateFootprint.java). Those are kept for as long
+ * as the server runs, since they are what rejects the messages of decided instances of the key.
+ * The table is split into segments. All methods taking a key require the caller to hold the lock of the
+ * key's segment, see {@link #segmentOf(String)}.
+ * @author ZHANG Mao
+ *
+ */
+public class PaxosStateTable {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final Segment[] segments;
+
+	/**
+	 * @param segmentCount The number of segments, which is the number of locks guarding the table.
+	 */
+	public PaxosStateTable(int segmentCount) {
+		this.segments = new Segment[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			segments[i] = new Segment();
+		}
+	}
+
+	/**
+	 * @return The segment holding the key, which is guarded by the caller's lock with the same index.
+	 */
+	public int segmentOf(String key) {
+		return (key.hashCode() & 0x7fffffff) % segments.length;
+	}
+
+	public int getSegmentCount() {
+		return segments.length;
+	}
+
+	/**
+	 * @return The number of instances of the key this server has learned, which is also the number of the
+	 *         next instance it will apply.
+	 */
+	public long getLearned(String key) {
+		Segment segment = segments[segmentOf(key)];
+		int slot = segment.find(key);
+		return slot >= 0 ? segment.learned[slot] : 0;
+	}
+
+	/**
+	 * @return The instance of the key the acceptor is in, never below the learned instances.
+	 */
+	public long getInstance(String key) {
+		Segment segment = segments[segmentOf(key)];
+		int slot = segment.find(key);
+		return slot >= 0 ? segment.instance[slot] : 0;
+	}
+
+	/**
+	 * @return The highest proposal ID promised in the current instance of the key, or -1 if none.
+	 */
+	public long getPromisedId(String key) {
+		Acceptor acceptor = segments[segmentOf(key)].acceptors.get(key);
+		return acceptor != null ? acceptor.promised : -1;
+	}
+
+	/**
+	 * @return The proposal ID of the value accepted in the current instance of the key, or -1 if none.
+	 */
+	public long getAcceptedId(String key) {
+		Acceptor acceptor = segments[segmentOf(key)].acceptors.get(key);
+		return acceptor != null ? acceptor.accepted : -1;
+	}
+
+	public Object getAcceptedValue(String key) {
+		Acceptor acceptor = segments[segmentOf(key)].acceptors.get(key);
+		return acceptor != null ? acceptor.value : null;
+	}
+
+	/**
+	 * Promises a proposal of an instance not before the current one, moving to that instance first.
+	 */
+	public void promise(String key, long instance, long proposalId) {
+		Segment segment = segments[segmentOf(key)];
+		Acceptor acceptor = segment.acceptorOf(segment.enter(segment.findOrInsert(key), instance));
+		acceptor.promised = Math.max(acceptor.promised, proposalId);
+		segment.highestPromised = Math.max(segment.highestPromised, proposalId);
+	}
+
+	/**
+	 * Accepts a value in an instance not before the current one, moving to that instance first. Accepting
+	 * a proposal also promises it.
+	 */
+	public void accept(String key, long instance, long proposalId, Object value) {
+		Segment segment = segments[segmentOf(key)];
+		Acceptor acceptor = segment.acceptorOf(segment.enter(segment.findOrInsert(key), instance));
+		acceptor.promised = Math.max(acceptor.promised, proposalId);
+		acceptor.accepted = proposalId;
+		acceptor.value = value;
+		segment.highestPromised = Math.max(segment.highestPromised, proposalId);
+	}
+
+	/**
+	 * Records that the instances of the key up to the given one are learned and applied. If the acceptor
+	 * is still in one of them, it moves on to the next and drops its state.
+	 * @param key The key.
+	 * @param instance The last instance learned.
+	 */
+	public void learn(String key, long instance) {
+		Segment segment = segments[segmentOf(key)];
+		int slot = segment.findOrInsert(key);
+		segment.learned[slot] = Math.max(segment.learned[slot], instance + 1);
+		segment.enter(slot, instance + 1);
+	}
+
+	/**
+	 * @return The number of keys with Paxos state. Not synchronized, for reporting only.
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			size += segment.size;
+		}
+		return size;
+	}
+
+	/**
+	 * @return The number of keys whose current instance has a promise or an accepted value, which is all
+	 *         the acceptor state held. Not synchronized, for reporting only.
+	 */
+	public int openInstances() {
+		int open = 0;
+		for (Segment segment : segments) {
+			open += segment.acceptors.size();
+		}
+		return open;
+	}
+
+	/**
+	 * @return The highest proposal ID ever promised for any key, including those of learned instances.
+	 *         Not synchronized, for use during recovery.
+	 */
+	public long getHighestPromisedId() {
+		long highest = -1;
+		for (Segment segment : segments) {
+			highest = Math.max(highest, segment.highestPromised);
+		}
+		return highest;
+	}
+
+	/**
+	 * Streams one segment into a snapshot. The caller holds the lock of the segment.
+	 * @param index The segment.
+	 * @param out The snapshot stream.
+	 * @throws IOException If the stream fails.
+	 */
+	public void writeSegment(int index, DataOutputStream out) throws IOException {
+		Segment segment = segments[index];
+		out.writeLong(segment.highestPromised);
+		for (int i = 0; i < segment.keys.length; i++) {
+			if (segment.keys[i] != null) {
+				out.writeBoolean(true);
+				Acceptor acceptor = segment.acceptors.getOrDefault(segment.keys[i], Acceptor.NONE);
+				Operation.writeString(out, segment.keys[i]);
+				out.writeLong(segment.learned[i]);
+				out.writeLong(segment.instance[i]);
+				out.writeLong(acceptor.promised);
+				out.writeLong(acceptor.accepted);
+				out.writeBoolean(acceptor.value != null);
+				if (acceptor.value != null) {
+					((Operation) acceptor.value).writeTo(out);
+				}
+			}
+		}
+		out.writeBoolean(false);
+	}
+
+	/**
+	 * Restores a segment written by {@link #writeSegment(int, DataOutputStream)}.
+	 * @param index The segment.
+	 * @param in The snapshot stream.
+	 * @throws IOException If the stream fails or is malformed.
+	 */
+	public void readSegment(int index, DataInputStream in) throws IOException {
+		Segment segment = segments[index];
+		segment.highestPromised = in.readLong();
+		while (in.readBoolean()) {
+			int slot = segment.findOrInsert(Operation.readString(in));
+			segment.learned[slot] = in.readLong();
+			segment.instance[slot] = in.readLong();
+			long promised = in.readLong();
+			long accepted = in.readLong();
+			Object value = in.readBoolean() ? Operation.readFrom(in) : null;
+			if (promised != -1 || accepted != -1 || value != null) {
+				Acceptor acceptor = segment.acceptorOf(slot);
+				acceptor.promised = promised;
+				acceptor.accepted = accepted;
+				acceptor.value = value;
+			}
+		}
+	}
+
+	/**
+	 * The acceptor state of the current instance of a key.
+	 */
+	private static final class Acceptor {
+		static final Acceptor NONE = new Acceptor();
+
+		long promised = -1;
+		long accepted = -1;
+		Object value;
+	}
+
+	/**
+	 * Open-addressed table of the instance numbers, with linear probing, and the acceptor state of the keys
+	 * that have one by key. Entries of the table are never removed: the instance numbers of a key are needed
+	 * as long as the key can be written.
+	 */
+	private static final class Segment {
+		String[] keys = new String[INITIAL_CAPACITY];
+		long[] learned = new long[INITIAL_CAPACITY];
+		long[] instance = new long[INITIAL_CAPACITY];
+		final HashMap<String, Acceptor> acceptors = new HashMap<>();
+		int size;
+		long highestPromised = -1;
+
+		static int hash(String key) {
+			int h = key.hashCode() * 0x9e3779b9; // spread the bits the segment index was taken from
+			return h ^ (h >>> 16);
+		}
+
+		int find(String key) {
+			int mask = keys.length - 1;
+			for (int slot = hash(key) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+				if (keys[slot].equals(key)) {
+					return slot;
+				}
+			}
+			return -1;
+		}
+
+		int findOrInsert(String key) {
+			int slot = find(key);
+			if (slot >= 0) {
+				return slot;
+			}
+			if ((size + 1) * 4 > keys.length * 3) {
+				resize(keys.length * 2);
+			}
+			int mask = keys.length - 1;
+			slot = hash(key) & mask;
+			while (keys[slot] != null) {
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = key;
+			learned[slot] = 0;
+			instance[slot] = 0;
+			size++;
+			return slot;
+		}
+
+		/**
+		 * Moves the acceptor of the entry to the given instance if it is later than its current one, which
+		 * drops the acceptor state of the earlier instance.
+		 * @return The slot.
+		 */
+		int enter(int slot, long next) {
+			if (next > instance[slot]) {
+				instance[slot] = next;
+				acceptors.remove(keys[slot]);
+			}
+			return slot;
+		}
+
+		/**
+		 * @return The acceptor state of the current instance of the entry, created if there is none.
+		 */
+		Acceptor acceptorOf(int slot) {
+			return acceptors.computeIfAbsent(keys[slot], key -> new Acceptor());
+		}
+
+		private void resize(int capacity) {
+			String[] oldKeys = keys;
+			long[] oldLearned = learned;
+			long[] oldInstance = instance;
+			keys = new String[capacity];
+			learned = new long[capacity];
+			instance = new long[capacity];
+			int mask = capacity - 1;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != null) {
+					int slot = hash(oldKeys[i]) & mask;
+					while (keys[slot] != null) {
+						slot = (slot + 1) & mask;
+					}
+					keys[slot] = oldKeys[i];
+					learned[slot] = oldLearned[i];
+					instance[slot] = oldInstance[i];
+				}
+			}
+		}
+	}
+}
@@ -5,21 +5,59 @@ import java.io.Serializable;
  *
  */
 public class ProposalResponse implements Serializable {
-	private static final long serialVersionUID = -9088065429567096196L;
-	
-	private final int lastAcceptedId;
+    private static final long serialVersionUID = -9088065429567096197L;
+
+    // Values of lastAcceptedId that are not a promise
+    public static final long REJECTED = -2;
+    public static final long FAILED = -3; // the acceptor timed out or failed
+
+    private final long lastAcceptedId;
     private final Object lastAcceptedValue;
+    // On rejection, the higher proposal ID the acceptor has promised
+    private final long promisedId;
+    // In basic mode, the instance of the key the acceptor is in, which is later than the prepared one if
+    // the proposer has not learned every decided instance yet
+    private final long instance;
+
+    public ProposalResponse(long lastAcceptedId, Object lastAcceptedValue) {
+        this(lastAcceptedId, lastAcceptedValue, -1, -1);
+    }
 
-    public ProposalResponse(int lastAcceptedId, Object lastAcceptedValue) {
+    public ProposalResponse(long lastAcceptedId, Object lastAcceptedValue, long promisedId, long instance) {
         this.lastAcceptedId = lastAcceptedId;
         this.lastAcceptedValue = lastAcceptedValue;
+        this.promisedId = promisedId;
+        this.instance = instance;
+    }
+
+    public static ProposalResponse rejected(long promisedId, long instance) {
+        return new ProposalResponse(REJECTED, null, promisedId, instance);
+    }
+
+    public static ProposalResponse failed() {
+        return new ProposalResponse(FAILED, null);
+    }
+
+    /**
+     * @return Whether the acceptor promised, in which case lastAcceptedId is -1 or the ID of its accepted value.
+     */
+    public boolean isPromise() {
+        return lastAcceptedId >= -1;
     }
 
-    public int getLastAcceptedId() {
+    public long getLastAcceptedId() {
         return lastAcceptedId;
     }
 
     public Object getLastAcceptedValue() {
         return lastAcceptedValue;
     }
+
+    public long getPromisedId() {
+        return promisedId;
+    }
+
+    public long getInstance() {
+        return instance;
+    }
 }
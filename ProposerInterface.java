@@ -1,5 +1,6 @@
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 /**
  * The ProposerInterface provides a remote method to initiate a proposal in the Paxos consensus algorithm.
@@ -15,5 +16,36 @@ public interface ProposerInterface extends Remote {
    * @throws RemoteException If a remote invocation error occurs.
    * @return the returned value of operation
    */
-  String propose(String key, int proposalId, Object proposalValue) throws RemoteException;
+  String propose(String key, long proposalId, Object proposalValue) throws RemoteException;
+
+  /**
+   * Appends an operation to the replicated log in Multi-Paxos mode. Followers forward
+   * client writes to the leader through this method.
+   *
+   * @param operation The operation to append.
+   * @throws RemoteException If a remote invocation error occurs.
+   * @return the returned value of operation, or null if it could not be committed
+   */
+  String submit(Operation operation) throws RemoteException;
+
+  /**
+   * Appends a batch of operations to the replicated log in Multi-Paxos mode and returns the result of
+   * each operation. Followers forward batches of client writes to the leader through this method, so they
+   * get the results without waiting until they have applied the batch themselves.
+   *
+   * @param batch The BATCH operation to append.
+   * @throws RemoteException If a remote invocation error occurs.
+   * @return the result of each operation of the batch, or null if it could not be committed
+   */
+  List<String> submitBatch(Operation batch) throws RemoteException;
+
+  /**
+   * Returns the read index of the leader: the highest slot chosen before the call, confirmed by a valid
+   * lease or a quorum heartbeat. A read is linearizable once the reading server has applied the log up
+   * to this slot.
+   *
+   * @throws RemoteException If a remote invocation error occurs.
+   * @return the read index, or ReplicatedLog.NOT_LEADER if this server is not the leader
+   */
+  long readIndex() throws RemoteException;
 }
@@ -0,0 +1,198 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A map of bounded size for a client-side cache, with one of two eviction policies. LRU evicts the entry
+ * used least recently. W-TinyLFU (Einziger, Friedman and Manes, "TinyLFU: A Highly Efficient Cache
+ * Admission Policy") puts new entries into a small LRU window. An entry pushed out of the window only
+ * enters the main segmented LRU if it has been looked up more often than the entry it would displace
+ * there, as estimated by a sketch of recent lookups. A scan over many keys used once thus cannot flush
+ * the keys that are used all the time. Methods are synchronized: each is a few map operations.
+ * @author ZHANG Mao
+ *
+ * @param <V> The type of the values.
+ */
+public class ReadCache<V> {
+
+	/**
+	 * The eviction policy.
+	 */
+	public enum Policy {
+		LRU, TINY_LFU
+	}
+
+	private final int maximumSize;
+	// LRU keeps all entries in the window. W-TinyLFU gives the window 1% of the entries and splits the
+	// rest into entries seen once in the main segment (probation) and entries seen again there (protected)
+	private final LinkedHashMap<String, V> window = new LinkedHashMap<>(16, 0.75f, true);
+	private final LinkedHashMap<String, V> probation = new LinkedHashMap<>(16, 0.75f, true);
+	private final LinkedHashMap<String, V> protectedEntries = new LinkedHashMap<>(16, 0.75f, true);
+	private final int windowSize;
+	private final int protectedSize;
+	private final FrequencySketch sketch;
+	private long evictions;
+
+	/**
+	 * @param maximumSize The maximum number of entries.
+	 * @param policy The eviction policy.
+	 */
+	public ReadCache(int maximumSize, Policy policy) {
+		this.maximumSize = maximumSize;
+		if (policy == Policy.LRU) {
+			this.windowSize = maximumSize;
+			this.protectedSize = 0;
+			this.sketch = null;
+		} else {
+			this.windowSize = Math.max(1, maximumSize / 100);
+			this.protectedSize = (maximumSize - windowSize) * 4 / 5;
+			this.sketch = new FrequencySketch(maximumSize);
+		}
+	}
+
+	/**
+	 * @return The value of the key, or null if it is not cached.
+	 */
+	public synchronized V get(String key) {
+		if (sketch != null) {
+			sketch.increment(key);
+		}
+		V value = window.get(key);
+		if (value != null || sketch == null) {
+			return value;
+		}
+		value = protectedEntries.get(key);
+		if (value != null) {
+			return value;
+		}
+		value = probation.remove(key);
+		if (value != null) {
+			// Seen again in the main segment: protect it, making room by demoting the eldest protected entry
+			protectedEntries.put(key, value);
+			if (protectedEntries.size() > protectedSize) {
+				Map.Entry<String, V> eldest = removeEldest(protectedEntries);
+				probation.put(eldest.getKey(), eldest.getValue());
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Caches a value, evicting an entry if the cache is full.
+	 */
+	public synchronized void put(String key, V value) {
+		if (window.replace(key, value) != null || protectedEntries.replace(key, value) != null
+				|| probation.replace(key, value) != null) {
+			return;
+		}
+		window.put(key, value);
+		if (window.size() <= windowSize) {
+			return;
+		}
+		Map.Entry<String, V> candidate = removeEldest(window);
+		if (sketch == null || maximumSize == windowSize) {
+			evictions++;
+		} else if (probation.size() + protectedEntries.size() < maximumSize - windowSize) {
+			probation.put(candidate.getKey(), candidate.getValue());
+		} else {
+			// The main segment is full: keep whichever of the candidate and its victim is used more often
+			LinkedHashMap<String, V> victims = probation.isEmpty() ? protectedEntries : probation;
+			String victim = victims.keySet().iterator().next();
+			if (sketch.frequency(candidate.getKey()) > sketch.frequency(victim)) {
+				victims.remove(victim);
+				probation.put(candidate.getKey(), candidate.getValue());
+			}
+			evictions++;
+		}
+	}
+
+	private static <V> Map.Entry<String, V> removeEldest(LinkedHashMap<String, V> entries) {
+		Iterator<Map.Entry<String, V>> iterator = entries.entrySet().iterator();
+		Map.Entry<String, V> eldest = iterator.next();
+		Map.Entry<String, V> copy = Map.entry(eldest.getKey(), eldest.getValue());
+		iterator.remove();
+		return copy;
+	}
+
+	/**
+	 * Removes the key from the cache.
+	 */
+	public synchronized void invalidate(String key) {
+		if (window.remove(key) == null && protectedEntries.remove(key) == null) {
+			probation.remove(key);
+		}
+	}
+
+	/**
+	 * Removes every entry. The lookup frequencies are kept.
+	 */
+	public synchronized void clear() {
+		window.clear();
+		probation.clear();
+		protectedEntries.clear();
+	}
+
+	public synchronized int size() {
+		return window.size() + probation.size() + protectedEntries.size();
+	}
+
+	/**
+	 * @return The number of entries evicted, or not admitted, to stay within the maximum size.
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Count-min sketch of how often keys were looked up recently, with four 4-bit counters per key.
+	 * Once it has counted ten lookups per cache entry, all counters are halved, so that keys which
+	 * were popular long ago lose their advantage.
+	 */
+	private static final class FrequencySketch {
+		private static final long[] SEEDS = { 0x9e3779b97f4a7c15L, 0xc2b2ae3d27d4eb4fL, 0x165667b19e3779f9L, 0xd6e8feb86659fd93L };
+		private static final int MAX_COUNT = 15;
+
+		private final byte[][] counts;
+		private final int shift;
+		private final int sampleSize;
+		private int additions;
+
+		FrequencySketch(int maximumSize) {
+			int width = Integer.highestOneBit(Math.max(16, maximumSize - 1) * 2);
+			this.counts = new byte[SEEDS.length][width];
+			this.shift = 64 - Integer.numberOfTrailingZeros(width);
+			this.sampleSize = 10 * Math.max(1, maximumSize);
+		}
+
+		private int index(String key, int row) {
+			return (int) ((key.hashCode() * SEEDS[row]) >>> shift);
+		}
+
+		int frequency(String key) {
+			int frequency = MAX_COUNT;
+			for (int row = 0; row < counts.length; row++) {
+				frequency = Math.min(frequency, counts[row][index(key, row)]);
+			}
+			return frequency;
+		}
+
+		void increment(String key) {
+			boolean added = false;
+			for (int row = 0; row < counts.length; row++) {
+				int i = index(key, row);
+				if (counts[row][i] < MAX_COUNT) {
+					counts[row][i]++;
+					added = true;
+				}
+			}
+			if (added && ++additions == sampleSize) {
+				for (byte[] row : counts) {
+					for (int i = 0; i < row.length; i++) {
+						row[i] >>= 1;
+					}
+				}
+				additions /= 2;
+			}
+		}
+	}
+}
@@ -0,0 +1,479 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+/**
+ * The ordered log of operations replicated by Multi-Paxos on one server.
+ * It keeps the acceptor state shared by all slots, the decided slots waiting to be applied by the learner,
+ * and the leadership held by the local proposer.
+ * A leader holds a lease while a quorum of acceptors has heard from it within LEASE_TIME: those acceptors
+ * promise no other server until the lease runs out, so the leader can serve linearizable reads without
+ * a consensus round.
+ * @author ZHANG Mao
+ *
+ */
+public class ReplicatedLog {
+	public static final long NOT_LEADER = Long.MIN_VALUE;
+	public static final int LEASE_TIME = 1000;
+	// Leaders give up their lease early by this much to tolerate clock drift between servers
+	private static final int LEASE_MARGIN = 100;
+	// Number of applied operations kept to serve learners that missed them
+	private static final int RETAINED_HISTORY = 10_000;
+	
+	// Acceptor: a single promise covers every slot of the log
+	private long promisedBallot = -1;
+	private final ConcurrentSkipListMap<Long, ProposalResponse> acceptedSlots = new ConcurrentSkipListMap<>();
+	private long leaseBallot = -1;
+	private long leaseExpiry;
+	
+	// Learner: decided slots are applied strictly in log order
+	private final Object applyLock = new Object();
+	private final ConcurrentSkipListMap<Long, Operation> decidedSlots = new ConcurrentSkipListMap<>();
+	private final ConcurrentHashMap<Long, CompletableFuture<String>> slotWaiters = new ConcurrentHashMap<>();
+	private volatile long lastAppliedSlot = -1;
+	private final ConcurrentSkipListMap<Long, Operation> appliedHistory = new ConcurrentSkipListMap<>();
+	private final BiFunction<Operation, List<Operation>, String> stateMachine;
+	// The leader's commit index from its latest heartbeat, and when the heartbeat arrived
+	private volatile long knownCommitIndex = -1;
+	private volatile long knownCommitIndexAt;
+	// When this server last had applied everything the leader had committed
+	private volatile long caughtUpAt = Long.MIN_VALUE;
+	
+	// Proposer: the ballot this server leads with, or -1 if it is not the leader
+	private volatile long leaderBallot = -1;
+	private final AtomicLong nextSlot = new AtomicLong(0);
+	private final AtomicLong commitIndex = new AtomicLong(-1);
+	private volatile long leaderLeaseExpiry;
+	// Every slot from the first one of chosenBallot up to chosenThrough was chosen by this server with that
+	// ballot; slots chosen after a gap wait in chosenAhead. Guarded by chosenLock.
+	private final Object chosenLock = new Object();
+	private long chosenBallot = -1;
+	private long chosenThrough = -1;
+	private final TreeSet<Long> chosenAhead = new TreeSet<>();
+	
+	// Promises and accepts are made durable here before they are acted on, and decisions as they are
+	// applied, if set
+	private WriteAheadLog wal;
+	
+	public ReplicatedLog(BiFunction<Operation, List<Operation>, String> stateMachine) {
+		this.stateMachine = stateMachine;
+	}
+	
+	/**
+	 * Handles Phase 1 for all slots at or after the given slot.
+	 * @param ballot The ballot of the prospective leader.
+	 * @param fromSlot The first slot the leader does not know to be applied.
+	 * @return The promise, carrying the accepted slots, or a rejection carrying the ballot already promised.
+	 */
+	public LogPromise prepare(long ballot, long fromSlot) {
+		LogPromise promise;
+		CompletableFuture<Void> durable;
+		synchronized (this) {
+			boolean leased = leaseBallot != -1 && System.nanoTime() - leaseExpiry < 0 && Ballot.node(ballot) != Ballot.node(leaseBallot);
+			if (ballot <= promisedBallot || leased) {
+				return new LogPromise(false, promisedBallot, new TreeMap<>());
+			}
+			promisedBallot = ballot;
+			promise = new LogPromise(true, ballot, new TreeMap<>(acceptedSlots.tailMap(fromSlot)));
+			durable = persist(WriteAheadLog.LOG_PROMISE, out -> out.writeLong(ballot));
+		}
+		durable.join();
+		return promise;
+	}
+	
+	/**
+	 * Handles Phase 2 for a single slot.
+	 * @return Whether the value was accepted.
+	 */
+	public boolean accept(long ballot, long slot, Operation operation) {
+		CompletableFuture<Void> durable;
+		synchronized (this) {
+			if (ballot < promisedBallot) {
+				return false;
+			}
+			promisedBallot = ballot;
+			grantLease(ballot);
+			acceptedSlots.put(slot, new ProposalResponse(ballot, operation));
+			durable = persist(WriteAheadLog.LOG_ACCEPT, out -> {
+				out.writeLong(slot);
+				out.writeLong(ballot);
+				operation.writeTo(out);
+			});
+		}
+		durable.join();
+		return true;
+	}
+	
+	/**
+	 * Handles a heartbeat of the leader: renews its lease and records how far it has committed.
+	 * @param ballot The ballot of the leader.
+	 * @param leaderCommitIndex The slot up to which the leader chose every slot it proposed with the ballot,
+	 *        all of which is chosen.
+	 * @return The ballot promised by this acceptor, which equals the given ballot if the lease was granted.
+	 */
+	public synchronized long heartbeat(long ballot, long leaderCommitIndex) {
+		if (ballot < promisedBallot) {
+			return promisedBallot;
+		}
+		grantLease(ballot);
+		long now = System.nanoTime();
+		if (leaderCommitIndex > knownCommitIndex) {
+			knownCommitIndex = leaderCommitIndex;
+			knownCommitIndexAt = now;
+		}
+		if (lastAppliedSlot >= knownCommitIndex) {
+			caughtUpAt = now;
+		}
+		return ballot;
+	}
+	
+	private void grantLease(long ballot) {
+		leaseBallot = ballot;
+		leaseExpiry = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LEASE_TIME);
+	}
+	
+	public synchronized long getPromisedBallot() {
+		return promisedBallot;
+	}
+	
+	/**
+	 * Records the chosen operation of a slot and applies every decided slot that is next in log order.
+	 * Each applied slot is logged as it took effect, see {@link Server#applyOperation(Operation, List)}, and
+	 * its result is handed out once that record is durable. A decided slot that is not applied yet is not
+	 * logged: after a crash it is fetched from the leader again.
+	 * @param slot The decided slot.
+	 * @param operation The operation chosen for the slot.
+	 */
+	public void decide(long slot, Operation operation) {
+		if (slot <= lastAppliedSlot) {
+			return;
+		}
+		decidedSlots.putIfAbsent(slot, operation);
+		List<CompletableFuture<Void>> logged = new ArrayList<>();
+		synchronized (applyLock) {
+			Operation next;
+			while ((next = decidedSlots.remove(lastAppliedSlot + 1)) != null) {
+				List<Operation> applied = new ArrayList<>(1);
+				String result = stateMachine.apply(next, applied);
+				lastAppliedSlot++;
+				long appliedSlot = lastAppliedSlot;
+				CompletableFuture<Void> durable = persist(WriteAheadLog.LOG_LEARN, out -> {
+					out.writeLong(appliedSlot);
+					applied.get(0).writeTo(out);
+				});
+				logged.add(durable);
+				appliedHistory.put(lastAppliedSlot, next);
+				appliedHistory.remove(lastAppliedSlot - RETAINED_HISTORY);
+				CompletableFuture<String> waiter = slotWaiters.remove(lastAppliedSlot);
+				if (waiter != null) {
+					durable.whenComplete((done, failure) -> {
+						if (failure == null) {
+							waiter.complete(result);
+						} else {
+							waiter.completeExceptionally(failure);
+						}
+					});
+				}
+			}
+			if (lastAppliedSlot >= knownCommitIndex) {
+				caughtUpAt = Math.max(caughtUpAt, knownCommitIndexAt);
+			}
+			applyLock.notifyAll();
+		}
+		for (CompletableFuture<Void> durable : logged) {
+			durable.join();
+		}
+	}
+	
+	/**
+	 * Decides the slots up to the given one that this acceptor accepted with the given ballot. A leader
+	 * proposes a single operation per slot and ballot, so for a slot the leader chose with its ballot, the
+	 * operation accepted with that ballot is the chosen one, and the leader's notice of the slot is not
+	 * needed. A slot the leader only learned, chosen by another leader, may hold a different operation here.
+	 * @param ballot The ballot of the leader.
+	 * @param leaderChosenSlot The slot up to which the leader chose every slot it proposed with the ballot,
+	 *        see {@link #getChosenIndex(long)}.
+	 * @return The number of slots decided.
+	 */
+	public int decideAccepted(long ballot, long leaderChosenSlot) {
+		long from = lastAppliedSlot + 1;
+		if (leaderChosenSlot < from) {
+			return 0;
+		}
+		int decided = 0;
+		for (Map.Entry<Long, ProposalResponse> entry : acceptedSlots.subMap(from, true, leaderChosenSlot, true).entrySet()) {
+			if (entry.getValue().getLastAcceptedId() == ballot && !decidedSlots.containsKey(entry.getKey())) {
+				decide(entry.getKey(), (Operation) entry.getValue().getLastAcceptedValue());
+				decided++;
+			}
+		}
+		return decided;
+	}
+	
+	/**
+	 * Returns the operations this learner applied from the given slot on, for a learner that missed them.
+	 * @param fromSlot The first slot.
+	 * @param maxSlots The maximum number of operations returned.
+	 * @return The operations of consecutive slots starting with fromSlot, or null if fromSlot was applied
+	 *         too long ago to be retained.
+	 */
+	public List<Operation> appliedOperations(long fromSlot, int maxSlots) {
+		List<Operation> operations = new ArrayList<>();
+		for (long slot = fromSlot; operations.size() < maxSlots; slot++) {
+			Operation operation = appliedHistory.get(slot);
+			if (operation == null) {
+				break;
+			}
+			operations.add(operation);
+		}
+		return operations.isEmpty() && fromSlot <= lastAppliedSlot ? null : operations;
+	}
+	
+	/**
+	 * Waits until every slot up to the given one has been applied locally.
+	 * @param slot The slot to wait for.
+	 * @param timeoutMillis How long to wait at most.
+	 * @return Whether the slot was applied in time.
+	 */
+	public boolean awaitAppliedThrough(long slot, long timeoutMillis) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		synchronized (applyLock) {
+			while (lastAppliedSlot < slot) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					return false;
+				}
+				TimeUnit.NANOSECONDS.timedWait(applyLock, remaining);
+			}
+			return true;
+		}
+	}
+	
+	/**
+	 * @return How long ago this server last had applied every slot the leader had committed,
+	 *         which bounds how stale a local read is.
+	 */
+	public long getStalenessMillis() {
+		long since = caughtUpAt;
+		return since == Long.MIN_VALUE ? Long.MAX_VALUE : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - since);
+	}
+	
+	/**
+	 * Returns a future completed with the result of applying the given slot locally.
+	 * Must be called before the slot is decided.
+	 */
+	public CompletableFuture<String> awaitApplied(long slot) {
+		return slotWaiters.computeIfAbsent(slot, s -> new CompletableFuture<>());
+	}
+	
+	public long getLastAppliedSlot() {
+		return lastAppliedSlot;
+	}
+	
+	public boolean isLeader() {
+		return leaderBallot != -1;
+	}
+	
+	public long getLeaderBallot() {
+		return leaderBallot;
+	}
+	
+	/**
+	 * Takes over the log after a successful Phase 1.
+	 * @param ballot The ballot promised by a quorum.
+	 * @param firstFreeSlot The first slot no acceptor of the quorum has accepted a value for. The slots the
+	 *        campaign recovered before it were all chosen with the ballot.
+	 */
+	public void becomeLeader(long ballot, long firstFreeSlot) {
+		nextSlot.set(firstFreeSlot);
+		commitIndex.set(firstFreeSlot - 1);
+		synchronized (chosenLock) {
+			chosenBallot = ballot;
+			chosenThrough = firstFreeSlot - 1;
+			chosenAhead.clear();
+		}
+		leaderLeaseExpiry = System.nanoTime();
+		leaderBallot = ballot;
+	}
+	
+	/**
+	 * Records on the leader that a slot was chosen, which also renews the lease.
+	 * @param slot The chosen slot.
+	 * @param ballot The ballot the slot was chosen with.
+	 * @param roundStart When the accept round started, from System.nanoTime().
+	 */
+	public void recordCommit(long slot, long ballot, long roundStart) {
+		commitIndex.accumulateAndGet(slot, Math::max);
+		synchronized (chosenLock) {
+			if (ballot == chosenBallot && slot > chosenThrough) {
+				chosenAhead.add(slot);
+				while (chosenAhead.remove(chosenThrough + 1)) {
+					chosenThrough++;
+				}
+			}
+		}
+		renewLease(roundStart);
+	}
+	
+	/**
+	 * A slot whose accept round failed leaves a gap that holds the index back for the rest of the ballot:
+	 * a minority of acceptors may have accepted an operation for it that is never chosen.
+	 * @param ballot The ballot of this leader.
+	 * @return The slot up to which every slot this server proposed with the ballot was chosen, or -1 if
+	 *         it did not lead with the ballot. No acceptor holds the ballot for any earlier slot.
+	 */
+	public long getChosenIndex(long ballot) {
+		synchronized (chosenLock) {
+			return ballot == chosenBallot ? chosenThrough : -1;
+		}
+	}
+	
+	/**
+	 * Extends the leader lease after a quorum of acceptors granted it.
+	 * @param roundStart When the round granting the lease started, from System.nanoTime().
+	 */
+	public synchronized void renewLease(long roundStart) {
+		long expiry = roundStart + TimeUnit.MILLISECONDS.toNanos(LEASE_TIME - LEASE_MARGIN);
+		if (expiry - leaderLeaseExpiry > 0) {
+			leaderLeaseExpiry = expiry;
+		}
+	}
+	
+	public boolean hasLease() {
+		return isLeader() && System.nanoTime() - leaderLeaseExpiry < 0;
+	}
+	
+	/**
+	 * @return The highest slot this leader knows to be chosen.
+	 */
+	public long getCommitIndex() {
+		return commitIndex.get();
+	}
+	
+	/**
+	 * Gives up leadership, unless it was already re-acquired with a newer ballot.
+	 * @param ballot The ballot that failed to get a quorum.
+	 */
+	public void stepDown(long ballot) {
+		if (leaderBallot == ballot) {
+			leaderBallot = -1;
+		}
+	}
+	
+	public long nextSlot() {
+		return nextSlot.getAndIncrement();
+	}
+	
+	/**
+	 * Makes every later promise, accept and decision durable in the given log before acting on it.
+	 * @param wal The write-ahead log.
+	 */
+	public void setWriteAheadLog(WriteAheadLog wal) {
+		this.wal = wal;
+	}
+	
+	/**
+	 * Restores the state recorded by a Multi-Paxos record of the write-ahead log.
+	 * @param type The record type.
+	 * @param in The payload of the record.
+	 * @throws IOException If the payload is malformed.
+	 */
+	public void recover(byte type, DataInputStream in) throws IOException {
+		switch (type) {
+			case WriteAheadLog.LOG_PROMISE:
+				promisedBallot = Math.max(promisedBallot, in.readLong());
+				break;
+			case WriteAheadLog.LOG_ACCEPT:
+				long slot = in.readLong();
+				long ballot = in.readLong();
+				promisedBallot = Math.max(promisedBallot, ballot);
+				acceptedSlots.put(slot, new ProposalResponse(ballot, Operation.readFrom(in)));
+				break;
+			case WriteAheadLog.LOG_LEARN:
+				long decidedSlot = in.readLong();
+				Operation applied = Operation.readFrom(in);
+				if (decidedSlot > lastAppliedSlot) {
+					// The outcome logged when the slot was applied replaces the operation a snapshot taken
+					// before may hold for it, whose guards would be checked against a later state
+					decidedSlots.put(decidedSlot, applied);
+				}
+				decide(decidedSlot, applied);
+				break;
+			default:
+				throw new IOException("Unknown record type: " + type);
+		}
+	}
+	
+	/**
+	 * Streams the log state into a snapshot: the promise, the last applied slot, the decided slots
+	 * waiting to be applied, and the accepted slots still needed by servers lagging behind.
+	 * Accepted slots older than that are dropped from memory as well.
+	 * @param out The snapshot stream.
+	 * @param retainedSlots The number of applied slots whose accepted values are kept.
+	 * @throws IOException If the stream fails.
+	 */
+	public void writeSnapshot(DataOutputStream out, long retainedSlots) throws IOException {
+		TreeMap<Long, ProposalResponse> accepted;
+		TreeMap<Long, Operation> decided;
+		long ballot;
+		long applied;
+		synchronized (this) {
+			ballot = promisedBallot;
+			synchronized (applyLock) {
+				applied = lastAppliedSlot;
+				decided = new TreeMap<>(decidedSlots);
+			}
+			acceptedSlots.headMap(applied - retainedSlots).clear();
+			accepted = new TreeMap<>(acceptedSlots);
+		}
+		out.writeLong(ballot);
+		out.writeLong(applied);
+		out.writeInt(accepted.size());
+		for (Map.Entry<Long, ProposalResponse> entry : accepted.entrySet()) {
+			out.writeLong(entry.getKey());
+			out.writeLong(entry.getValue().getLastAcceptedId());
+			((Operation) entry.getValue().getLastAcceptedValue()).writeTo(out);
+		}
+		out.writeInt(decided.size());
+		for (Map.Entry<Long, Operation> entry : decided.entrySet()) {
+			out.writeLong(entry.getKey());
+			entry.getValue().writeTo(out);
+		}
+	}
+	
+	/**
+	 * Restores the log state written by {@link #writeSnapshot(DataOutputStream, long)}.
+	 * @param in The snapshot stream.
+	 * @throws IOException If the stream fails or is malformed.
+	 */
+	public void readSnapshot(DataInputStream in) throws IOException {
+		promisedBallot = in.readLong();
+		lastAppliedSlot = in.readLong();
+		int accepted = in.readInt();
+		for (int i = 0; i < accepted; i++) {
+			long slot = in.readLong();
+			long ballot = in.readLong();
+			acceptedSlots.put(slot, new ProposalResponse(ballot, Operation.readFrom(in)));
+		}
+		int decided = in.readInt();
+		for (int i = 0; i < decided; i++) {
+			long slot = in.readLong();
+			decidedSlots.put(slot, Operation.readFrom(in));
+		}
+	}
+	
+	private CompletableFuture<Void> persist(byte type, WriteAheadLog.RecordWriter payload) {
+		return wal == null ? CompletableFuture.completedFuture(null) : wal.append(type, payload);
+	}
+}
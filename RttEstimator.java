@@ -0,0 +1,73 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates how long calls to one peer take and derives a timeout from it, the way TCP computes its
+ * retransmission timeout (RFC 6298). Each sample moves a smoothed mean by 1/8 of its error and a smoothed
+ * mean deviation by 1/4 of the difference, and the timeout is the mean plus four deviations, within bounds.
+ * A steady peer thus gets a timeout close to its usual latency, while a jittery or loaded one gets more room.
+ * The initial timeout applies until the first sample. Every missed timeout doubles the timeout until the
+ * next sample, so a timeout that has become too short for a loaded peer grows until calls get through.
+ * Only calls that returned in time are sampled: the duration of a call given up on is not known.
+ * @author ZHANG Mao
+ *
+ */
+public class RttEstimator {
+
+	private static final int MEAN_GAIN_SHIFT = 3;
+	private static final int DEVIATION_GAIN_SHIFT = 2;
+	private static final int DEVIATIONS = 4;
+
+	private final long minNanos;
+	private final long maxNanos;
+	private long smoothedNanos = -1;
+	private long deviationNanos;
+	private long timeoutNanos;
+
+	/**
+	 * @param initialMillis The timeout until the first sample.
+	 * @param minMillis The shortest timeout.
+	 * @param maxMillis The longest timeout, also after backing off.
+	 */
+	public RttEstimator(long initialMillis, long minMillis, long maxMillis) {
+		this.minNanos = TimeUnit.MILLISECONDS.toNanos(minMillis);
+		this.maxNanos = TimeUnit.MILLISECONDS.toNanos(maxMillis);
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(initialMillis);
+	}
+
+	/**
+	 * Adds the duration of a call that returned before its timeout.
+	 */
+	public synchronized void record(long rttNanos) {
+		if (smoothedNanos < 0) {
+			smoothedNanos = rttNanos;
+			deviationNanos = rttNanos / 2;
+		} else {
+			long error = rttNanos - smoothedNanos;
+			deviationNanos += (Math.abs(error) - deviationNanos) >> DEVIATION_GAIN_SHIFT;
+			smoothedNanos += error >> MEAN_GAIN_SHIFT;
+		}
+		timeoutNanos = Math.max(minNanos, Math.min(maxNanos, smoothedNanos + DEVIATIONS * deviationNanos));
+	}
+
+	/**
+	 * Doubles the timeout after a call did not return in time.
+	 */
+	public synchronized void backOff() {
+		timeoutNanos = Math.min(maxNanos, timeoutNanos * 2);
+	}
+
+	public synchronized long getTimeoutNanos() {
+		return timeoutNanos;
+	}
+
+	/**
+	 * @return The smoothed duration of a call, or -1 before the first sample.
+	 */
+	public synchronized long getSmoothedNanos() {
+		return smoothedNanos;
+	}
+
+	public synchronized long getDeviationNanos() {
+		return deviationNanos;
+	}
+}
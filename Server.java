@@ -1,31 +1,125 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.*;
+import java.util.function.Predicate;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Implementation of a Server class that represents a node in a Paxos distributed consensus system.
  * This server plays the role of Proposer, Acceptor, and Learner in the Paxos algorithm, and it also handles key-value store operations.
  */
-public class Server extends UnicastRemoteObject implements ProposerInterface, AcceptorInterface, LearnerInterface, KVStoreInterface {
+public class Server extends UnicastRemoteObject implements ProposerInterface, AcceptorInterface, LearnerInterface, KVStoreInterface, MetricsInterface, BulkLoadInterface, WatchInterface {
   
   private static final long serialVersionUID = 6537883049774937470L;
   
-  private ConcurrentHashMap<String, String> kvStore = new ConcurrentHashMap<>();
+  // Storage of the state machine, replaced by setStorageEngine before the server is used
+  private StorageEngine kvStore = new MapStorageEngine();
   private AcceptorInterface[] acceptors;
   private LearnerInterface[] learners;
+  private ProposerInterface[] proposers;
   private int numServers;
   private int serverId;
+  private final String name;
   
-  private AtomicInteger proposalNumber;
+  // Issues the proposal IDs and Multi-Paxos ballots of this server
+  private final Ballot ballots;
   
-  private ConcurrentHashMap<String, PaxosState> paxosStates;
-  private ExecutorService executorService;
+  // Learned instances and acceptor state of every key in basic mode; segment i is guarded by keyLocks[i]
+  private final PaxosStateTable paxosStates;
+  
+  // Multi-Paxos mode: every write is appended to a single replicated log driven by a stable leader
+  private final boolean multiPaxos;
+  private final ReplicatedLog replicatedLog;
+  private final Object campaignLock = new Object();
+  private final int HEARTBEAT_INTERVAL = 200;
+  // Sends the heartbeats in Multi-Paxos mode and re-sends commit notices that did not reach a learner
+  private ScheduledExecutorService heartbeatScheduler;
+  // The leader's chosen index carried by its previous heartbeat; slots up to it still missing a heartbeat
+  // later were lost on the way and are fetched from the leader
+  private volatile long previousHeartbeatSlot = -1;
+  private final AtomicBoolean catchingUp = new AtomicBoolean();
+  private final int CATCH_UP_BATCH = 1000;
+  
+  // Tells the other learners about chosen values without holding up the reply to the client
+  private volatile CommitNotifier commitNotifier;
+  
+  // Group commit: client writes are batched into one consensus instance when a batcher is configured
+  private OperationBatcher batcher;
+  private final AtomicInteger batchNumber = new AtomicInteger(0);
+  private final AtomicLong transactionNumber = new AtomicLong();
+  private final ConcurrentHashMap<String, CompletableFuture<List<String>>> batchWaiters = new ConcurrentHashMap<>();
+  // Runs acceptor and learner tasks, and the outgoing calls to acceptors
+  private volatile ExecutorService executorService;
+  private volatile ExecutorService rpcExecutor;
   
   private Logger logger;
+  // Per-phase latencies and counters, scraped through getMetrics
+  private final ServerMetrics metrics = new ServerMetrics();
+  
+  // Acceptor and learner state is made durable here before replying, if set
+  private WriteAheadLog wal;
+  private SnapshotStore snapshots;
+  private ScheduledExecutorService snapshotScheduler;
+  // Held shared from logging a learned operation until it is applied, and exclusively while the
+  // snapshot boundary is placed, so every operation logged before the boundary is in the snapshot
+  private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+  private final long RETAINED_SLOTS = 10000;
+  // Bulk ingestion writes into kvStore without consensus, until the first agreed write or finishIngest
+  private volatile boolean ingestOpen = true;
+  // The latest writes applied to kvStore, served to watchers
+  private ChangeLog changeLog = new ChangeLog(65536);
+  // Longest wait of a watch call, below the call timeout of NioPeer, and largest batch it returns
+  static final int MAX_WATCH_WAIT = 20000;
+  static final int MAX_WATCH_BATCH = 10000;
   
-  private final float FAILURE_PROBABILITY = 0.4f;
+  private float failureProbability = 0.4f;
+  // The delay of a simulated failure, the fixed waits of the Multi-Paxos path, and the first timeout of a
+  // call before its latency has been measured
   private final int WAIT_TIME = 600;
+  // Calls to acceptors time out after a multiple of their measured latency
+  private final int MIN_TIMEOUT = 10;
+  private final int MAX_TIMEOUT = 5 * WAIT_TIME;
+  // A write that loses a round is retried with randomized exponential backoff until this deadline
+  private final int PROPOSE_DEADLINE = 10 * WAIT_TIME;
+  private final int BACKOFF_BASE = 2;
+  private final int MAX_BACKOFF_DOUBLINGS = 7;
+  private final int LOCK_STRIPES = 256;
+  // Writes of a batch call proposed at the same time in basic mode, each in the instances of its key
+  private final int MULTI_WRITE_PARALLELISM = 32;
+  
+  // Acceptor and learner work on a key is serialized by the stripe the key hashes to,
+  // so requests on unrelated keys can run in parallel.
+  private final Object[] keyLocks = new Object[LOCK_STRIPES];
+  
+  // How long acceptor tasks take here, and calls to each acceptor, indexed by server ID. A local task is
+  // not held to its usual latency, which a busy CPU easily exceeds: it gets at least WAIT_TIME, and more
+  // if tasks here have been slower than that
+  private final RttEstimator serviceTimes = new RttEstimator(WAIT_TIME, WAIT_TIME, MAX_TIMEOUT);
+  private RttEstimator[] acceptorRtts;
+  // Whether proposals go to a quorum of the fastest acceptors first instead of to all of them
+  private volatile boolean hedging;
 
   /**
    * Constructor to create a Server instance.
@@ -34,14 +128,63 @@ public class Server extends UnicastRemoteObject implements ProposerInterface, Ac
    * @throws RemoteException 
    */
   public Server(int serverId, int numServers) throws RemoteException {
+	this(serverId, numServers, false);
+  }
+
+  /**
+   * Constructor to create a Server instance.
+   * @param serverId The unique ID of this server.
+   * @param numServers The total number of servers in the system.
+   * @param multiPaxos Whether writes go through the replicated log of a stable leader instead of one Paxos instance per write.
+   * @throws RemoteException 
+   */
+  public Server(int serverId, int numServers, boolean multiPaxos) throws RemoteException {
+	this(serverId, numServers, multiPaxos, "Server_" + serverId);
+  }
+
+  /**
+   * Constructor to create a Server instance.
+   * @param serverId The unique ID of this server within its consensus group.
+   * @param numServers The total number of servers in the group.
+   * @param multiPaxos Whether writes go through the replicated log of a stable leader instead of one Paxos instance per write.
+   * @param name The name of the server in its log file and MXBean, which tells apart the groups of one node.
+   * @throws RemoteException 
+   */
+  public Server(int serverId, int numServers, boolean multiPaxos, String name) throws RemoteException {
 	super();
+	this.name = name;
+	this.multiPaxos = multiPaxos;
+	this.replicatedLog = new ReplicatedLog(this::applyOperation);
 	this.executorService = Executors.newFixedThreadPool(numServers);
+	this.rpcExecutor = Executors.newCachedThreadPool();
+	for (int i = 0; i < keyLocks.length; i++) {
+		keyLocks[i] = new Object();
+	}
     this.numServers = numServers;
     this.serverId = serverId;
-    this.proposalNumber = new AtomicInteger(0);
-    this.paxosStates = new ConcurrentHashMap<>();
-    this.logger = new Logger("Server_" + Integer.toString(serverId) + ".txt");
-    logger.log("Server_" + Integer.toString(serverId) + " started");
+    this.ballots = new Ballot(serverId);
+    this.paxosStates = new PaxosStateTable(LOCK_STRIPES);
+    this.logger = new Logger(name + ".txt");
+    metrics.gauge("kvstore.size", () -> kvStore.size());
+    metrics.gauge("kvstore.reserved_bytes", () -> kvStore.reservedBytes());
+    metrics.gauge("changelog.position", () -> changeLog.getNextPosition());
+    metrics.gauge("paxos_states.size", paxosStates::size);
+    metrics.gauge("paxos_states.open_instances", paxosStates::openInstances);
+    metrics.gauge("executor.queue_depth", () -> queueDepth(executorService));
+    metrics.gauge("rpc_executor.queue_depth", () -> queueDepth(rpcExecutor));
+    metrics.gauge("commit_notice.pending", () -> commitNotifier == null ? 0 : commitNotifier.getPendingCount());
+    metrics.gauge("service.timeout_us", () -> serviceTimes.getTimeoutNanos() / 1000);
+    this.heartbeatScheduler = Executors.newSingleThreadScheduledExecutor();
+    heartbeatScheduler.scheduleWithFixedDelay(() -> {
+      if (commitNotifier != null) {
+        commitNotifier.retry();
+      }
+    }, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+    if (multiPaxos) {
+      // Keeps the leader lease alive and tells followers how far the log is committed
+      heartbeatScheduler.scheduleWithFixedDelay(this::sendHeartbeats, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+    logger.log(name + " started");
   }
 
   /**
@@ -49,32 +192,512 @@ public class Server extends UnicastRemoteObject implements ProposerInterface, Ac
    * @param acceptors Array of acceptors.
    */
   public void setAcceptors(AcceptorInterface[] acceptors) {
+    RttEstimator[] rtts = new RttEstimator[acceptors.length];
+    for (int i = 0; i < rtts.length; i++) {
+      RttEstimator rtt = new RttEstimator(WAIT_TIME, MIN_TIMEOUT, MAX_TIMEOUT);
+      rtts[i] = rtt;
+      metrics.gauge("acceptor" + i + ".rtt_us", () -> rtt.getSmoothedNanos() < 0 ? -1 : rtt.getSmoothedNanos() / 1000);
+      metrics.gauge("acceptor" + i + ".timeout_us", () -> rtt.getTimeoutNanos() / 1000);
+    }
+    this.acceptorRtts = rtts;
     this.acceptors = acceptors;
   }
 
   /**
-   * Set the learners for this server.
+   * Sends the prepares and accepts of a proposal to the quorum of acceptors that answered fastest so far,
+   * instead of to all of them. Whenever one of them refuses or takes longer than its timeout, the request
+   * is sent to one more acceptor, so a slow or failed acceptor costs one timeout instead of the round.
+   * Heartbeats still go to all acceptors.
+   */
+  public void enableHedging() {
+    this.hedging = true;
+  }
+
+  /**
+   * Set the learners for this server, indexed by server ID.
    * @param learners Array of learners.
    */
   public void setLearners(LearnerInterface[] learners) {
     this.learners = learners;
+    this.commitNotifier = new CommitNotifier(learners, serverId, command -> rpcExecutor.execute(command), metrics, logger);
+  }
+
+  /**
+   * Set the proposers for this server, indexed by server ID. Used to forward writes to the leader.
+   * @param proposers Array of proposers.
+   */
+  public void setProposers(ProposerInterface[] proposers) {
+    this.proposers = proposers;
   }
   
+  /**
+   * Replaces the storage of the key-value state machine. Must be called before the server recovers
+   * its state or serves requests.
+   * @param storageEngine The storage engine, which must be empty.
+   */
+  public void setStorageEngine(StorageEngine storageEngine) {
+    this.kvStore = storageEngine;
+  }
+
+  /**
+   * Sets how many of the latest writes are retained for watchers. Must be called before the server
+   * recovers its state or serves requests.
+   * @param capacity The number of writes retained; a watcher further behind misses changes.
+   */
+  public void setChangeHistory(int capacity) {
+    this.changeLog = new ChangeLog(capacity);
+  }
+
+  ChangeLog getChangeLog() {
+    return changeLog;
+  }
+
+  /**
+   * Enables group commit of client writes. Only in Multi-Paxos mode: in basic mode every key has its own
+   * instances, and a batch of several keys would be ordered against none of them.
+   * @param maxBatchSize The maximum number of writes agreed on in one consensus instance.
+   * @param lingerMillis How long a write waits for others to join its batch.
+   */
+  public void setBatching(int maxBatchSize, int lingerMillis) {
+    if (!multiPaxos) {
+      logger.log(Logger.Level.WARN, "Group commit requires Multi-Paxos mode, writes are not batched");
+      return;
+    }
+    this.batcher = new OperationBatcher(maxBatchSize, lingerMillis, this::commitBatch, command -> rpcExecutor.execute(command));
+  }
+
+  /**
+   * Rebuilds paxosStates, the replicated log and kvStore from the write-ahead log in the given directory,
+   * then makes every later promise, accept and learned operation durable in it before replying.
+   * @param directory The directory of the write-ahead log.
+   * @throws IOException If the log cannot be read or created.
+   */
+  public void enableDurability(String directory) throws IOException {
+    enableDurability(directory, 0);
+  }
+
+  /**
+   * Rebuilds paxosStates, the replicated log and kvStore from the latest snapshot and the tail of the
+   * write-ahead log in the given directory, then makes every later promise, accept and learned operation
+   * durable in it before replying.
+   * @param directory The directory of the write-ahead log and the snapshots.
+   * @param snapshotIntervalSeconds How often a snapshot is taken and the log truncated, 0 for never.
+   * @throws IOException If the log cannot be read or created.
+   */
+  public void enableDurability(String directory, int snapshotIntervalSeconds) throws IOException {
+    long start = System.currentTimeMillis();
+    this.snapshots = new SnapshotStore(Paths.get(directory));
+    long fromSegment = snapshots.loadLatest(this::readSnapshot);
+    this.wal = WriteAheadLog.open(Paths.get(directory), WriteAheadLog.DEFAULT_SEGMENT_SIZE, fromSegment, this::recover);
+    replicatedLog.setWriteAheadLog(wal);
+    // Start a new epoch above every ID promised before, or new proposals would be rejected
+    ballots.startEpochAfter(Math.max(replicatedLog.getPromisedBallot(), paxosStates.getHighestPromisedId()));
+    if (kvStore.size() > 0) {
+      closeIngest();
+    }
+    logger.log("Recovered the Paxos state of " + paxosStates.size() + " keys and " + kvStore.size()
+        + " keys from the write-ahead log in " + (System.currentTimeMillis() - start) + " ms");
+    if (snapshotIntervalSeconds > 0) {
+      snapshotScheduler = Executors.newSingleThreadScheduledExecutor();
+      snapshotScheduler.scheduleWithFixedDelay(this::takeSnapshot, snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Writes a snapshot of kvStore and the acceptor state, then deletes the log segments it covers.
+   * Requests keep being served while the snapshot is streamed; changes made meanwhile are also in
+   * the log after the snapshot boundary and are replayed on top of it.
+   */
+  public void takeSnapshot() {
+    long start = System.currentTimeMillis();
+    try {
+      CompletableFuture<Long> boundary;
+      checkpointLock.writeLock().lock();
+      try {
+        boundary = wal.rollSegment();
+      } finally {
+        checkpointLock.writeLock().unlock();
+      }
+      long segment = boundary.join();
+      snapshots.write(segment, this::writeSnapshot);
+      wal.deleteSegmentsBefore(segment);
+      logger.log("Snapshot of " + kvStore.size() + " keys taken in " + (System.currentTimeMillis() - start) + " ms");
+    } catch (IOException | CompletionException e) {
+      logger.log("Snapshot failed: " + e);
+    }
+  }
+
   @Override
-  public synchronized String get(String key) throws RemoteException {
+  public int ingest(byte[] lines) throws RemoteException {
+	  if (!ingestOpen) {
+		  throw new RemoteException(name + " no longer accepts bulk ingestion, which ends with finishIngest or the first write agreed on through consensus");
+	  }
+	  int[] count = { 0 };
+	  try {
+		  BulkLoader.forEachLine(ByteBuffer.wrap(lines), 0, lines.length, (buffer, keyStart, keyEnd, valueStart, valueEnd) -> {
+			  kvStore.put(BulkLoader.string(buffer, keyStart, keyEnd), BulkLoader.string(buffer, valueStart, valueEnd));
+			  count[0]++;
+		  });
+	  } catch (IOException e) {
+		  throw new RemoteException("Bulk ingestion failed", e);
+	  }
+	  logger.debug(() -> "Ingested " + count[0] + " entries");
+	  return count[0];
+  }
+
+  @Override
+  public void finishIngest() throws RemoteException {
+	  closeIngest();
+	  logger.log("Bulk ingestion finished with " + kvStore.size() + " keys");
+	  if (wal != null) {
+		  // Ingested entries are not in the write-ahead log
+		  takeSnapshot();
+	  }
+  }
+
+  /**
+   * Writes ingested in bulk are not in the change log: watchers only see writes agreed on through consensus.
+   */
+  @Override
+  public ChangeBatch watch(String key, boolean prefix, WatchCursor cursor, int maxChanges, long maxWaitMillis) throws RemoteException {
+	  long streamId = changeLog.getStreamId();
+	  long position = -1;
+	  if (cursor != null && cursor.size() == 1) {
+		  streamId = cursor.getStreamId(0);
+		  position = cursor.getPosition(0);
+	  } else if (cursor != null) {
+		  // A cursor of a partitioned server, not of this log
+		  streamId = ~streamId;
+		  position = 0;
+	  }
+	  try {
+		  return changeLog.watch(key, prefix, streamId, position, Math.min(maxChanges, MAX_WATCH_BATCH), Math.min(maxWaitMillis, MAX_WATCH_WAIT));
+	  } catch (InterruptedException e) {
+		  Thread.currentThread().interrupt();
+		  throw new RemoteException("Interrupted while watching");
+	  }
+  }
+
+  private void closeIngest() {
+	  // Read first, so applying an operation does not write the volatile every time
+	  if (ingestOpen) {
+		  ingestOpen = false;
+	  }
+  }
+
+  /**
+   * Runs acceptor and learner tasks, and the outgoing calls to acceptors, on one virtual thread each instead
+   * of the fixed and cached thread pools. A task waiting for a timeout or a remote reply then holds no
+   * platform thread, so concurrency is no longer capped by the pool size. Requires Java 21; on older
+   * runtimes the pools are kept.
+   * @return Whether virtual threads are used.
+   */
+  public boolean useVirtualThreads() {
+    ExecutorService virtualExecutor = newVirtualThreadExecutor();
+    if (virtualExecutor == null) {
+      logger.log("Virtual threads are not available on Java " + Runtime.version().feature() + ", keeping the thread pools");
+      return false;
+    }
+    ExecutorService oldExecutor = executorService;
+    ExecutorService oldRpcExecutor = rpcExecutor;
+    this.executorService = virtualExecutor;
+    this.rpcExecutor = virtualExecutor;
+    oldExecutor.shutdown();
+    oldRpcExecutor.shutdown();
+    logger.log("Using virtual threads");
+    return true;
+  }
+
+  /**
+   * Looks up Executors.newVirtualThreadPerTaskExecutor, which only exists from Java 21 on.
+   * @return A virtual-thread-per-task executor, or null on older runtimes.
+   */
+  private static ExecutorService newVirtualThreadExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  @Override
+  public Map<String, Long> getMetrics() throws RemoteException {
+	  return metrics.getMetrics();
+  }
+
+  /**
+   * Publishes the metrics of this server over JMX as well.
+   * @return Whether the MXBean was registered.
+   */
+  public boolean registerMetricsMBean() {
+	  boolean registered = metrics.registerMBean(name);
+	  if (!registered) {
+		  logger.log("Failed to register the metrics MXBean");
+	  }
+	  return registered;
+  }
+
+  /**
+   * @return The number of tasks waiting for a thread of the executor, 0 for virtual threads, which never queue.
+   */
+  private static long queueDepth(ExecutorService executor) {
+	  return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getQueue().size() : 0;
+  }
+
+  /**
+   * Set the probability with which a Paxos phase simulates a failure.
+   * @param failureProbability The probability, 0 to disable simulated failures.
+   */
+  public void setFailureProbability(float failureProbability) {
+    this.failureProbability = failureProbability;
+  }
+
+  @Override
+  public String get(String key) throws RemoteException {
 	  String result = kvStore.get(key);
-	  logger.log("Applied GET operation on key: " + key + ", get value: " + result);
+	  logger.debug(() -> "Applied GET operation on key: " + key + ", get value: " + result);
 	  return result;
   }
 
   @Override
-  public synchronized String put(String key, String value) throws RemoteException {
-    return proposeOperation(new Operation("PUT", key, value));
+  public String linearizableGet(String key) throws RemoteException {
+	  if (!multiPaxos) {
+		  // Without a leader the only way to order a read after all writes is a consensus round
+		  return proposeOperation(new Operation("GET", key, null));
+	  }
+	  long index = readIndex();
+	  int leaderId = knownLeader();
+	  if (index == ReplicatedLog.NOT_LEADER && leaderId != -1) {
+		  index = proposers[leaderId].readIndex();
+	  }
+	  if (index == ReplicatedLog.NOT_LEADER && campaign()) {
+		  index = readIndex();
+	  }
+	  if (index == ReplicatedLog.NOT_LEADER) {
+		  throw new RemoteException("No leader available for a linearizable read of key " + key);
+	  }
+	  try {
+		  if (!replicatedLog.awaitAppliedThrough(index, WAIT_TIME)) {
+			  throw new RemoteException("Timed out applying the log up to slot " + index + " for a read of key " + key);
+		  }
+	  } catch (InterruptedException e) {
+		  Thread.currentThread().interrupt();
+		  throw new RemoteException("Interrupted during a read of key " + key, e);
+	  }
+	  String result = kvStore.get(key);
+	  long readSlot = index;
+	  logger.debug(() -> "Applied linearizable GET operation on key: " + key + " at slot " + readSlot + ", get value: " + result);
+	  return result;
+  }
+
+  @Override
+  public String boundedGet(String key, long maxStalenessMillis) throws RemoteException {
+	  if (multiPaxos && replicatedLog.getStalenessMillis() <= maxStalenessMillis) {
+		  String result = kvStore.get(key);
+		  logger.debug(() -> "Applied bounded GET operation on key: " + key + ", get value: " + result);
+		  return result;
+	  }
+	  return linearizableGet(key);
+  }
+
+  @Override
+  public long readIndex() throws RemoteException {
+	  if (!replicatedLog.isLeader()) {
+		  return ReplicatedLog.NOT_LEADER;
+	  }
+	  if (!replicatedLog.hasLease()) {
+		  // The lease ran out: confirm with a quorum that no other server has taken over
+		  sendHeartbeats();
+		  if (!replicatedLog.hasLease()) {
+			  return ReplicatedLog.NOT_LEADER;
+		  }
+	  }
+	  return replicatedLog.getCommitIndex();
+  }
+
+  @Override
+  public String put(String key, String value) throws RemoteException {
+    return submitOperation(new Operation("PUT", key, value));
+  }
+
+  @Override
+  public String delete(String key) throws RemoteException {
+    return submitOperation(new Operation("DELETE", key, null));
+  }
+
+  @Override
+  public Map<String, String> multiGet(List<String> keys) throws RemoteException {
+	  Map<String, String> results = new LinkedHashMap<>();
+	  for (String key : keys) {
+		  results.put(key, kvStore.get(key));
+	  }
+	  logger.debug(() -> "Applied multi GET operation on " + keys.size() + " keys");
+	  return results;
+  }
+
+  @Override
+  public Map<String, String> multiPut(Map<String, String> entries) throws RemoteException {
+	  List<Operation> operations = new ArrayList<>(entries.size());
+	  for (Map.Entry<String, String> entry : entries.entrySet()) {
+		  operations.add(new Operation("PUT", entry.getKey(), entry.getValue()));
+	  }
+	  return commitMulti(operations);
+  }
+
+  @Override
+  public Map<String, String> multiDelete(List<String> keys) throws RemoteException {
+	  List<Operation> operations = new ArrayList<>(keys.size());
+	  for (String key : keys) {
+		  operations.add(new Operation("DELETE", key, null));
+	  }
+	  return commitMulti(operations);
+  }
+
+  @Override
+  public boolean compareAndSet(String key, String expectedValue, String newValue) throws RemoteException {
+	  return transact(Collections.singletonMap(key, expectedValue), Collections.singletonMap(key, newValue));
   }
 
   @Override
-  public synchronized String delete(String key) throws RemoteException {
-    return proposeOperation(new Operation("DELETE", key, null));
+  public boolean transact(Map<String, String> guards, Map<String, String> writes) throws RemoteException {
+	  List<Operation> checks = new ArrayList<>(guards.size());
+	  for (Map.Entry<String, String> guard : guards.entrySet()) {
+		  checks.add(Operation.check(guard.getKey(), guard.getValue()));
+	  }
+	  List<Operation> operations = new ArrayList<>(writes.size());
+	  for (Map.Entry<String, String> write : writes.entrySet()) {
+		  operations.add(new Operation(write.getValue() != null ? "PUT" : "DELETE", write.getKey(), write.getValue()));
+	  }
+	  Set<String> keys = new HashSet<>(guards.keySet());
+	  keys.addAll(writes.keySet());
+	  if (keys.isEmpty()) {
+		  return true;
+	  }
+	  // Basic mode orders the writes of each key in the instances of that key, which leaves no single
+	  // instance a transaction of several keys could be ordered in against all of them
+	  if (!multiPaxos && keys.size() > 1) {
+		  throw new RemoteException("Transactions of several keys require Multi-Paxos mode");
+	  }
+	  String transactionId = "TXN_" + serverId + "_" + transactionNumber.incrementAndGet();
+	  // A transaction of one key is an instance of that key, so it is ordered with the other writes of the key
+	  String key = keys.size() == 1 ? keys.iterator().next() : transactionId;
+	  String result = submitOperation(Operation.transaction(key, transactionId, checks, operations));
+	  if (result == null) {
+		  throw new RemoteException("Transaction " + transactionId + " could not be committed");
+	  }
+	  return Operation.COMMITTED.equals(result);
+  }
+
+  /**
+   * Commit the writes of a batch call, atomically in one log slot in Multi-Paxos mode.
+   * @param operations The writes, one per key.
+   * @return The previous value of every key, or null if the writes could not be committed.
+   * @throws RemoteException If a remote error occurs.
+   */
+  private Map<String, String> commitMulti(List<Operation> operations) throws RemoteException {
+	  if (operations.isEmpty()) {
+		  return new LinkedHashMap<>();
+	  }
+	  List<String> results = multiPaxos ? commitBatch(operations) : commitEach(operations);
+	  if (results == null) {
+		  return null;
+	  }
+	  Map<String, String> previousValues = new LinkedHashMap<>();
+	  for (int i = 0; i < operations.size(); i++) {
+		  previousValues.put(operations.get(i).getKey(), results.get(i));
+	  }
+	  return previousValues;
+  }
+
+  /**
+   * Commit the writes of a batch call in basic mode, each in the instances of its own key, so that it is
+   * ordered with the other writes of that key. Up to MULTI_WRITE_PARALLELISM writes are proposed at a time.
+   * Unlike a batch in the log, the writes are not atomic: when one fails, the others may have been applied.
+   * @param operations The writes, one per key.
+   * @return The result of each write, or null if any of them could not be committed.
+   */
+  private List<String> commitEach(List<Operation> operations) {
+	  String[] results = new String[operations.size()];
+	  AtomicInteger next = new AtomicInteger();
+	  AtomicBoolean failed = new AtomicBoolean();
+	  List<CompletableFuture<Void>> workers = new ArrayList<>();
+	  for (int w = 0; w < Math.min(MULTI_WRITE_PARALLELISM, operations.size()); w++) {
+		  workers.add(CompletableFuture.runAsync(() -> {
+			  for (int i = next.getAndIncrement(); i < operations.size() && !failed.get(); i = next.getAndIncrement()) {
+				  Round round = proposeInInstance(operations.get(i));
+				  if (round == null) {
+					  failed.set(true);
+				  } else {
+					  results[i] = round.result;
+				  }
+			  }
+		  }, rpcExecutor));
+	  }
+	  CompletableFuture.allOf(workers.toArray(new CompletableFuture<?>[0])).join();
+	  return failed.get() ? null : Arrays.asList(results);
+  }
+
+  /**
+   * Commit a client operation, through the batcher if group commit is enabled.
+   * @param operation The operation to commit.
+   * @throws RemoteException If a remote error occurs.
+   */
+  private String submitOperation(Operation operation) throws RemoteException {
+	  if (batcher == null) {
+		  return proposeOperation(operation);
+	  }
+	  try {
+		  return batcher.submit(operation);
+	  } catch (InterruptedException e) {
+		  Thread.currentThread().interrupt();
+		  return null;
+	  }
+  }
+
+  /**
+   * Agree on a batch of operations in a single consensus instance.
+   * @param operations The operations of the batch.
+   * @return The result of each operation, or null if the batch failed.
+   * @throws RemoteException If a remote error occurs.
+   */
+  private List<String> commitBatch(List<Operation> operations) throws RemoteException {
+	  if (operations.size() == 1) {
+		  return Arrays.asList(proposeOperation(operations.get(0)));
+	  }
+	  String batchId = "BATCH_" + serverId + "_" + batchNumber.incrementAndGet();
+	  logger.debug(() -> "Proposing batch " + batchId + " of " + operations.size() + " operations");
+	  Operation batch = Operation.batch(batchId, operations);
+	  if (!replicatedLog.isLeader() && knownLeader() != -1) {
+		  int leaderId = knownLeader();
+		  logger.log("Forwarding batch to leader Server_" + leaderId);
+		  try {
+			  return proposers[leaderId].submitBatch(batch);
+		  } catch (RemoteException e) {
+			  logger.log(e.toString());
+		  }
+	  }
+	  return appendBatch(batch);
+  }
+
+  /**
+   * Commits a batch in the replicated log through this server, which is or becomes the leader.
+   * The results are collected when the batch is applied here, which happens before the append returns.
+   * @param batch The BATCH operation.
+   * @return The result of each operation, or null if the batch failed.
+   */
+  private List<String> appendBatch(Operation batch) throws RemoteException {
+	  CompletableFuture<List<String>> results = new CompletableFuture<>();
+	  batchWaiters.put(batch.getKey(), results);
+	  try {
+		  appendToLog(batch, false);
+		  List<String> applied = results.getNow(null);
+		  if (applied == null) {
+			  logger.log("Batch " + batch.getKey() + " failed");
+		  }
+		  return applied;
+	  } finally {
+		  batchWaiters.remove(batch.getKey());
+	  }
   }
 
   /**
@@ -83,168 +706,1005 @@ public class Server extends UnicastRemoteObject implements ProposerInterface, Ac
    * @throws RemoteException If a remote error occurs.
    */
   private String proposeOperation(Operation operation) throws RemoteException {
-	  String key = operation.getKey();
-	  int proposalId = generateProposalId();
-	  logger.log("Proposing Operation:" + Integer.toString(proposalId));
-      return propose(key, proposalId, operation);
+	  if (multiPaxos) {
+		  return appendToLog(operation, true);
+	  }
+	  Round round = proposeInInstance(operation);
+	  return round != null ? round.result : null;
+  }
+
+  /**
+   * Propose an operation in the basic Paxos instances of its key, with new rounds until it is chosen.
+   * @param operation The operation to be proposed.
+   * @return The round in which the operation was chosen, or null if it was not chosen before the deadline.
+   */
+  private Round proposeInInstance(Operation operation) {
+	  long start = System.nanoTime();
+	  long deadline = start + TimeUnit.MILLISECONDS.toNanos(PROPOSE_DEADLINE);
+	  try {
+		  for (int attempt = 0; ; attempt++) {
+			  String key = operation.getKey();
+			  long instance = learnedInstances(key);
+			  long proposalId = ballots.next();
+			  logger.debug(() -> "Proposing Operation:" + Ballot.toString(proposalId) + " in instance " + instance);
+			  Round round = runProposal(key, instance, proposalId, operation);
+			  if (round.chosen && operation.equals(round.value)) {
+				  return round;
+			  }
+			  // Another value was chosen, this server was behind on the decided instances of the key, or a
+			  // quorum was lost to a competing proposer or to failures. Only the last calls for a backoff.
+			  boolean progressed = round.chosen || (round.latestInstance > instance && catchUp(key));
+			  ballots.observe(round.highestPromisedId);
+			  long backoff = progressed ? 0 : backoffNanos(attempt);
+			  if (System.nanoTime() + backoff >= deadline) {
+				  logger.log("*****************Proposal of " + operation.getType() + " on key " + operation.getKey()
+						  + " failed after " + (attempt + 1) + " rounds.*****************");
+				  return null;
+			  }
+			  metrics.proposeRetries.increment();
+			  TimeUnit.NANOSECONDS.sleep(backoff);
+		  }
+	  } catch (InterruptedException e) {
+		  Thread.currentThread().interrupt();
+		  return null;
+	  } finally {
+		  metrics.proposeLatency.record(System.nanoTime() - start);
+	  }
+  }
+
+  /**
+   * @return A random wait below a bound that doubles with every round lost, so that competing proposers,
+   *         or servers competing for leadership, stop colliding.
+   */
+  private long backoffNanos(int attempt) {
+	  return ThreadLocalRandom.current().nextLong(
+			  TimeUnit.MILLISECONDS.toNanos(BACKOFF_BASE << Math.min(attempt, MAX_BACKOFF_DOUBLINGS)) + 1);
   }
 
   @Override
-  public synchronized ProposalResponse prepare(String key, int proposalId) throws RemoteException {
-	  logger.log("PREPARE started. Proposal ID: " + proposalId);
+  public ProposalResponse prepare(String key, long instance, long proposalId) throws RemoteException {
+	  logger.debug(() -> "PREPARE started. Proposal ID: " + Ballot.toString(proposalId) + ", instance: " + instance);
+	  ballots.observe(proposalId);
 	  Callable<ProposalResponse> prepareTask = () -> {
-		  if (Math.random() < FAILURE_PROBABILITY) {
+		  if (Math.random() < failureProbability) {
 	            logger.log("PREPARE method simulated failure.");
 	            Thread.sleep(WAIT_TIME); // Simulate a delay for the restart
 	      }
-	      PaxosState state = paxosStates.computeIfAbsent(key, k -> new PaxosState());
-	      
-	      if (proposalId > state.getLastPromisedId()) {
-	          state.setLastPromisedId(proposalId);
-	          logger.log("Successfully prepared");
-	          return new ProposalResponse(state.getLastAcceptedId(), state.getLastAcceptedValue());       
-	      }
-	      logger.log("Preparation failed");
-	      return new ProposalResponse(-2, null); // Indicates rejection      
+		  return handlePrepare(key, instance, proposalId);
 	  };
 	  
+	  long start = System.nanoTime();
 	  Future<ProposalResponse> future = executorService.submit(prepareTask);
 	  try {
-	      return future.get(WAIT_TIME, TimeUnit.MILLISECONDS);
+	      ProposalResponse response = future.get(serviceTimes.getTimeoutNanos(), TimeUnit.NANOSECONDS);
+	      serviceTimes.record(System.nanoTime() - start);
+	      return response;
 	  } catch (TimeoutException e) {
+	      serviceTimes.backOff();
+	      metrics.prepareTimeouts.increment();
 	      logger.log("Prepare operation timed out");
-	      return new ProposalResponse(-1, null); // Indicates timeout
+	      return ProposalResponse.failed();
 	  } catch (InterruptedException | ExecutionException e) {
 	      logger.log("Exception in prepare operation: " + e.getMessage());
-	      return new ProposalResponse(-1, null); // or handle exception appropriately
+	      return ProposalResponse.failed();
+	  } finally {
+	      metrics.prepareLatency.record(System.nanoTime() - start);
+	  }
+  }
+
+  /**
+   * Handles a basic Paxos prepare on the calling thread, with no timeout and no simulated failure.
+   * Package-private for the cluster simulator, which runs the acceptors on its virtual clock.
+   */
+  ProposalResponse handlePrepare(String key, long instance, long proposalId) {
+	  ProposalResponse response;
+	  CompletableFuture<Void> durable;
+	  
+	  synchronized (lockFor(key)) {
+		  // A proposal of an earlier instance is stale: that instance of the key is already decided
+		  long current = paxosStates.getInstance(key);
+		  if (instance < current || (instance == current && proposalId <= paxosStates.getPromisedId(key))) {
+			  metrics.prepareRejections.increment();
+			  logger.debug(() -> "Preparation failed");
+			  return ProposalResponse.rejected(instance == current ? paxosStates.getPromisedId(key) : -1, current);
+		  }
+		  paxosStates.promise(key, instance, proposalId);
+		  response = new ProposalResponse(paxosStates.getAcceptedId(key), paxosStates.getAcceptedValue(key), -1, instance);
+		  durable = persist(WriteAheadLog.PROMISE, out -> {
+			  Operation.writeString(out, key);
+			  out.writeLong(instance);
+			  out.writeLong(proposalId);
+		  });
 	  }
+	  durable.join(); // the promise must be on disk before it is sent
+	  logger.debug(() -> "Successfully prepared");
+	  return response;
   }
 
   @Override
-  public synchronized boolean accept(String key, int proposalId, Object proposalValue) throws RemoteException {
-	  logger.log("ACCEPT started. Proposal ID: " + proposalId);
+  public boolean accept(String key, long instance, long proposalId, Object proposalValue) throws RemoteException {
+	  logger.debug(() -> "ACCEPT started. Proposal ID: " + Ballot.toString(proposalId) + ", instance: " + instance);
 	  Callable<Boolean> acceptTask = () -> {
 		  
-		  if (Math.random() < FAILURE_PROBABILITY) {
+		  if (Math.random() < failureProbability) {
 	            logger.log("ACCEPT method simulated failure.");
 	            Thread.sleep(WAIT_TIME); // Simulate a delay for the restart
 	      }
-		  
-		  PaxosState state = paxosStates.computeIfAbsent(key, k -> new PaxosState());
-		  
-		  if (proposalId >= state.getLastPromisedId()) {
-		        state.setLastAcceptedId(proposalId);
-		        state.setLastAcceptedValue(proposalValue);
-		        logger.log("Successfully accepted");
-		        return true;
-		  }
-		  logger.log("Acceptance failed");
-	      return false;
+		  return handleAccept(key, instance, proposalId, proposalValue);
 	  };
 	  
+	  long start = System.nanoTime();
 	  Future<Boolean> future = executorService.submit(acceptTask);
 	  try {
-	      return future.get(WAIT_TIME, TimeUnit.MILLISECONDS);
+	      boolean accepted = future.get(serviceTimes.getTimeoutNanos(), TimeUnit.NANOSECONDS);
+	      serviceTimes.record(System.nanoTime() - start);
+	      return accepted;
 	  } catch (TimeoutException e) {
+	      serviceTimes.backOff();
+	      metrics.acceptTimeouts.increment();
 	      logger.log("Accept operation timed out");
 	      return false; // or handle timeout appropriately
 	  } catch (InterruptedException | ExecutionException e) {
 	      logger.log("Exception in accept operation: " + e.getMessage());
 	      return false; // or handle exception appropriately
+	  } finally {
+	      metrics.acceptLatency.record(System.nanoTime() - start);
 	  }
   }
 
-  @Override
-  public synchronized String propose(String key, int proposalId, Object proposalValue) throws RemoteException {
-	  logger.log("PROPOSE started. Proposal ID: " + proposalId);
-	  int promiseCount = 0;
-	  ProposalResponse highestResponse = new ProposalResponse(-1, null);
-	  for(AcceptorInterface acceptor: acceptors) {
-		  try {
-			  ProposalResponse response = acceptor.prepare(key, proposalId);
-			  if(response.getLastAcceptedId() != -2) {
-				  promiseCount++;
-				  if (response.getLastAcceptedId() > highestResponse.getLastAcceptedId()) {
-					  highestResponse = response;
-				  }
-			  }
-		  } catch (RemoteException e) {
-			  logger.log(e.toString());
+  /**
+   * Handles a basic Paxos accept on the calling thread, with no timeout and no simulated failure.
+   * Package-private for the cluster simulator.
+   */
+  boolean handleAccept(String key, long instance, long proposalId, Object proposalValue) {
+	  CompletableFuture<Void> durable;
+	  
+	  synchronized (lockFor(key)) {
+		  long current = paxosStates.getInstance(key);
+		  if (instance < current || (instance == current && proposalId < paxosStates.getPromisedId(key))) {
+			  metrics.acceptRejections.increment();
+			  logger.debug(() -> "Acceptance failed");
+			  return false;
 		  }
+		  paxosStates.accept(key, instance, proposalId, proposalValue);
+		  durable = persist(WriteAheadLog.ACCEPT, out -> {
+			  Operation.writeString(out, key);
+			  out.writeLong(instance);
+			  out.writeLong(proposalId);
+			  ((Operation) proposalValue).writeTo(out);
+		  });
 	  }
+	  durable.join();
+	  logger.debug(() -> "Successfully accepted");
+	  return true;
+  }
+
+  @Override
+  public String propose(String key, long proposalId, Object proposalValue) throws RemoteException {
+	  logger.debug(() -> "PROPOSE started. Proposal ID: " + Ballot.toString(proposalId));
+	  return runProposal(key, learnedInstances(key), proposalId, proposalValue).result;
+  }
+
+  /**
+   * Outcome of a single round of basic Paxos.
+   */
+  private static final class Round {
+	  // Whether a quorum accepted a value, which is then chosen and sent to the learners
+	  final boolean chosen;
+	  final Object value;
+	  final String result;
+	  // The highest proposal ID promised by an acceptor that rejected the round, or -1
+	  final long highestPromisedId;
+	  // The latest instance of the key an acceptor was in, later than the round's if it was already decided
+	  final long latestInstance;
+
+	  Round(boolean chosen, Object value, String result, long highestPromisedId, long latestInstance) {
+		  this.chosen = chosen;
+		  this.value = value;
+		  this.result = result;
+		  this.highestPromisedId = highestPromisedId;
+		  this.latestInstance = latestInstance;
+	  }
+  }
+
+  /**
+   * Runs both phases of a basic Paxos instance and has the learners apply the chosen value. This server
+   * applies it before the round returns; the other learners are told in the background.
+   * Acceptors that timed out or failed count as refusals.
+   * @param instance The instance of the key, the number of instances this server has learned.
+   */
+  private Round runProposal(String key, long instance, long proposalId, Object proposalValue) {
+	  // Read by this thread only, see collectQuorum
+	  long[] highestPromisedId = { -1 };
+	  long[] latestInstance = { instance };
+	  List<ProposalResponse> promises = collectQuorum(acceptor -> acceptor.prepare(key, instance, proposalId), response -> {
+		  highestPromisedId[0] = Math.max(highestPromisedId[0], response.getPromisedId());
+		  latestInstance[0] = Math.max(latestInstance[0], response.getInstance());
+		  return response.isPromise();
+	  }, true);
 	  
-	  if (promiseCount > numServers / 2) {
-		  Object valueToPropose = highestResponse.getLastAcceptedId() == -1 ? proposalValue : highestResponse.getLastAcceptedValue();
-		  int acceptCount = 0;
-		  for (AcceptorInterface acceptor : acceptors) {
-			  try {
-				  if (acceptor.accept(key, proposalId, valueToPropose)) {
-					  acceptCount++;
-				  }
-			  }  catch (RemoteException e) {
-				  // log
+	  if (promises.size() > numServers / 2) {
+		  metrics.promiseQuorums.increment();
+		  ProposalResponse highestResponse = new ProposalResponse(-1, null);
+		  for (ProposalResponse response : promises) {
+			  if (response.getLastAcceptedId() > highestResponse.getLastAcceptedId()) {
+				  highestResponse = response;
 			  }
 		  }
+		  Object valueToPropose = highestResponse.getLastAcceptedId() == -1 ? proposalValue : highestResponse.getLastAcceptedValue();
+		  List<Boolean> accepts = collectQuorum(acceptor -> acceptor.accept(key, instance, proposalId, valueToPropose),
+				  accepted -> accepted, true);
 		  
 		  String result = null;
-		  if (acceptCount > numServers / 2) {
-			  for (LearnerInterface learner : learners) {
-				  try {
-					  result = learner.learn(key, proposalId, valueToPropose);
-				  } catch (RemoteException e) {
-					  logger.log(e.toString());
-				  }
+		  if (accepts.size() > numServers / 2) {
+			  metrics.acceptQuorums.increment();
+			  try {
+				  result = learn(key, instance, valueToPropose);
+			  } catch (RemoteException e) {
+				  logger.log(e.toString());
 			  }
+			  commitNotifier.notifyLearners(key.hashCode(), learner -> learner.learn(key, instance, valueToPropose));
 		  } else {
+			  metrics.acceptQuorumFailures.increment();
 			  logger.log("*****************Acceptance number is less than a quorum. Proposal failed.*****************");
+			  return new Round(false, valueToPropose, null, highestPromisedId[0], latestInstance[0]);
 		  }
-		  return result;
+		  return new Round(true, valueToPropose, result, highestPromisedId[0], latestInstance[0]);
 	  } else {
+		  metrics.promiseQuorumFailures.increment();
 		  logger.log("*****************Promise number is less than a quorum. proposal failed.*****************");
-		  return null;
+		  return new Round(false, null, null, highestPromisedId[0], latestInstance[0]);
 	  }
   }
 
-  @Override
-  public synchronized String learn(String key, int proposalId, Object acceptedValue) throws RemoteException {
-	  logger.log("LEARN started. Proposal ID: " + proposalId);
+  /**
+   * Sends a request to acceptors concurrently and waits until a majority of them granted it.
+   * Returns early once a quorum is reached or can no longer be reached; stragglers are cancelled.
+   * Each acceptor is waited on as long as its measured round-trip time allows, and the wait ends once every
+   * request still outstanding took longer. With hedging, the request first goes to the quorum of acceptors
+   * with the shortest timeouts, then to one more acceptor for each of them that refused, failed or is late.
+   * @param call The request to send to each acceptor.
+   * @param granted Decides whether a response counts towards the quorum.
+   * @param mayHedge Whether the request may go to a quorum first if hedging is enabled, rather than to all acceptors.
+   * @return The granted responses, which form a quorum if there are more than numServers / 2 of them.
+   */
+  private <T> List<T> collectQuorum(AcceptorCall<T> call, Predicate<T> granted, boolean mayHedge) {
+	  int quorum = numServers / 2 + 1;
+	  int count = acceptors.length;
+	  boolean hedged = mayHedge && hedging;
+	  // The order in which acceptors are asked, the fastest first when hedging
+	  Integer[] order = new Integer[count];
+	  long[] timeouts = new long[count];
+	  for (int i = 0; i < count; i++) {
+		  order[i] = i;
+		  timeouts[i] = acceptorRtts[i].getTimeoutNanos();
+	  }
+	  if (hedged) {
+		  Arrays.sort(order, Comparator.comparingLong(i -> timeouts[i]));
+	  }
 	  
-	  Callable<String> learnTask = () -> {
-		  if (acceptedValue instanceof Operation) {
-		        Operation operation = (Operation) acceptedValue;
-		        logger.log("Finish learning");
-		        return applyOperation(operation);
-		  } else {
-		      logger.log("Failed. Unrecognized operation.");
-			  return null;
+	  CompletionService<T> completionService = new ExecutorCompletionService<>(rpcExecutor);
+	  // The outstanding requests, by the acceptor they were sent to
+	  Map<Future<T>, Integer> requests = new HashMap<>();
+	  long[] sentAt = new long[count];
+	  boolean[] late = new boolean[count];
+	  int sent = 0;
+	  for (int initial = hedged ? Math.min(count, quorum) : count; sent < initial; sent++) {
+		  sendTo(order[sent], call, completionService, requests, sentAt);
+	  }
+	  
+	  List<T> grantedResponses = new ArrayList<>();
+	  int failed = 0;
+	  try {
+		  while (grantedResponses.size() < quorum && failed <= count - quorum) {
+			  long deadline = Long.MAX_VALUE;
+			  for (int acceptor : requests.values()) {
+				  if (!late[acceptor]) {
+					  deadline = Math.min(deadline, sentAt[acceptor] + timeouts[acceptor]);
+				  }
+			  }
+			  if (deadline == Long.MAX_VALUE) {
+				  metrics.quorumTimeouts.increment();
+				  logger.log("Quorum wait timed out");
+				  break;
+			  }
+			  Future<T> future = completionService.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+			  if (future == null) {
+				  // Acceptors past their timeouts are given longer next time, and each is backed up by another
+				  long now = System.nanoTime();
+				  for (int acceptor : new ArrayList<>(requests.values())) {
+					  if (!late[acceptor] && now - sentAt[acceptor] >= timeouts[acceptor]) {
+						  late[acceptor] = true;
+						  acceptorRtts[acceptor].backOff();
+						  metrics.lateAcceptorCalls.increment();
+						  if (hedged && sent < count) {
+							  sendTo(order[sent++], call, completionService, requests, sentAt);
+							  metrics.hedgedAcceptorCalls.increment();
+						  }
+					  }
+				  }
+				  continue;
+			  }
+			  int acceptor = requests.remove(future);
+			  boolean counted = false;
+			  try {
+				  T response = future.get();
+				  if (!late[acceptor]) {
+					  acceptorRtts[acceptor].record(System.nanoTime() - sentAt[acceptor]);
+				  }
+				  if (granted.test(response)) {
+					  grantedResponses.add(response);
+					  counted = true;
+				  } else {
+					  failed++;
+				  }
+			  } catch (ExecutionException e) {
+				  logger.log(e.getCause().toString());
+				  failed++;
+			  }
+			  if (!counted && hedged && sent < count) {
+				  sendTo(order[sent++], call, completionService, requests, sentAt);
+				  metrics.hedgedAcceptorCalls.increment();
+			  }
 		  }
-	  };
+	  } catch (InterruptedException e) {
+		  Thread.currentThread().interrupt();
+	  } finally {
+		  for (Future<T> future : requests.keySet()) {
+			  future.cancel(false);
+		  }
+	  }
+	  return grantedResponses;
+  }
+
+  private <T> void sendTo(int acceptor, AcceptorCall<T> call, CompletionService<T> completionService,
+		  Map<Future<T>, Integer> requests, long[] sentAt) {
+	  sentAt[acceptor] = System.nanoTime();
+	  requests.put(completionService.submit(() -> call.call(acceptors[acceptor])), acceptor);
+  }
+
+  @Override
+  public String learn(String key, long instance, Object acceptedValue) throws RemoteException {
+	  logger.debug(() -> "LEARN started. Instance: " + instance);
+	  
+	  Callable<String> learnTask = () -> handleLearn(key, instance, acceptedValue);
 	  
+	  long start = System.nanoTime();
 	  Future<String> future = executorService.submit(learnTask);
 	  try {
-	      return future.get(WAIT_TIME, TimeUnit.MILLISECONDS);
+	      // The value is already chosen, so giving up early would only lose the result: wait as long as any call
+	      return future.get(MAX_TIMEOUT, TimeUnit.MILLISECONDS);
 	  } catch (TimeoutException e) {
+	      metrics.learnTimeouts.increment();
 	      logger.log("Learn operation timed out");
 	      return null; // or handle timeout appropriately
 	  } catch (InterruptedException | ExecutionException e) {
 	      logger.log("Exception in learn operation: " + e.getMessage());
 	      return null; // or handle exception appropriately
+	  } finally {
+	      metrics.learnLatency.record(System.nanoTime() - start);
 	  }
   }
 
   /**
-   * Generates a unique proposal ID.
-   * @return A unique proposal ID.
+   * Handles a basic Paxos learn on the calling thread, with no timeout. Package-private for the cluster
+   * simulator.
    */
-  private int generateProposalId() {
-    return serverId * 1000000 + proposalNumber.incrementAndGet();
+  String handleLearn(String key, long instance, Object acceptedValue) {
+	  if (!(acceptedValue instanceof Operation)) {
+		  logger.log("Failed. Unrecognized operation.");
+		  return null;
+	  }
+	  Operation operation = (Operation) acceptedValue;
+	  if (instance > learnedInstances(key)) {
+		  // The notices of earlier instances of the key were lost: take the key's state from the
+		  // other learners, which at least the proposer of this instance is ahead of this server with
+		  catchUp(key);
+	  }
+	  checkpointLock.readLock().lock();
+	  try {
+		  CompletableFuture<Void> durable;
+		  String result;
+		  synchronized (lockFor(key)) {
+			  long learned = paxosStates.getLearned(key);
+			  if (instance != learned) {
+				  // A repeated notice, one the catch-up covered, or one still after a gap
+				  logger.debug(() -> "Instance " + instance + " not applied, " + learned + " instances learned");
+				  return null;
+			  }
+			  List<Operation> applied = new ArrayList<>(1);
+			  result = applyOperation(operation, applied);
+			  // Logged as it took effect, in the order the instances of the key are applied
+			  durable = persist(WriteAheadLog.LEARN, out -> {
+				  Operation.writeString(out, key);
+				  out.writeLong(instance);
+				  applied.get(0).writeTo(out);
+			  });
+			  // The instance is decided: the acceptor moves on to the next one
+			  paxosStates.learn(key, instance);
+		  }
+		  durable.join();
+		  logger.debug(() -> "Finish learning");
+		  return result;
+	  } finally {
+		  checkpointLock.readLock().unlock();
+	  }
+  }
+
+  @Override
+  public KeyState learnedState(String key) throws RemoteException {
+	  synchronized (lockFor(key)) {
+		  return new KeyState(paxosStates.getLearned(key), kvStore.get(key));
+	  }
   }
 
   /**
-   * Apply the given operation to the key-value store.
+   * @return The number of instances of the key this server has learned, the instance it proposes in next.
+   *         Package-private for the cluster simulator.
+   */
+  long learnedInstances(String key) {
+	  synchronized (lockFor(key)) {
+		  return paxosStates.getLearned(key);
+	  }
+  }
+
+  /**
+   * Brings a key up to date after this server missed the decisions of some of its instances, with the
+   * state of the other learner that has learned the most instances of the key.
+   * @param key The key.
+   * @return Whether this server learned any instances of the key.
+   */
+  private boolean catchUp(String key) {
+	  if (learners == null) {
+		  return false; // not wired to other learners, as in the cluster simulator, which catches up itself
+	  }
+	  List<CompletableFuture<KeyState>> states = new ArrayList<>();
+	  for (int i = 0; i < learners.length; i++) {
+		  LearnerInterface learner = learners[i];
+		  if (i != serverId) {
+			  states.add(CompletableFuture.supplyAsync(() -> {
+				  try {
+					  return learner.learnedState(key);
+				  } catch (RemoteException e) {
+					  return null;
+				  }
+			  }, rpcExecutor));
+		  }
+	  }
+	  long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_TIME);
+	  KeyState latest = null;
+	  for (CompletableFuture<KeyState> state : states) {
+		  try {
+			  KeyState candidate = state.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			  if (candidate != null && (latest == null || candidate.getLearned() > latest.getLearned())) {
+				  latest = candidate;
+			  }
+		  } catch (TimeoutException | ExecutionException e) {
+			  state.cancel(false);
+		  } catch (InterruptedException e) {
+			  Thread.currentThread().interrupt();
+			  return false;
+		  }
+	  }
+	  return latest != null && install(key, latest);
+  }
+
+  /**
+   * Installs the state of a key at a learner that is ahead of this server. The value is logged and applied
+   * like a write in the last instance that learner applied. Package-private for the cluster simulator.
+   * @param key The key.
+   * @param state The state of the key at the other learner.
+   * @return Whether this server learned any instances of the key.
+   */
+  boolean install(String key, KeyState state) {
+	  long instance = state.getLearned() - 1;
+	  Operation operation = new Operation(state.getValue() != null ? "PUT" : "DELETE", key, state.getValue());
+	  checkpointLock.readLock().lock();
+	  try {
+		  CompletableFuture<Void> durable;
+		  synchronized (lockFor(key)) {
+			  if (instance < paxosStates.getLearned(key)) {
+				  return false;
+			  }
+			  durable = persist(WriteAheadLog.LEARN, out -> {
+				  Operation.writeString(out, key);
+				  out.writeLong(instance);
+				  operation.writeTo(out);
+			  });
+			  applyOperation(operation);
+			  paxosStates.learn(key, instance);
+		  }
+		  durable.join();
+	  } finally {
+		  checkpointLock.readLock().unlock();
+	  }
+	  metrics.keyCatchUps.increment();
+	  logger.log("Caught up on key " + key + " to instance " + instance);
+	  return true;
+  }
+
+  @Override
+  public LogPromise prepareLog(long ballot, long fromSlot) throws RemoteException {
+	  logger.debug(() -> "PREPARE LOG started. Ballot: " + Ballot.toString(ballot) + ", from slot: " + fromSlot);
+	  ballots.observe(ballot);
+	  return callWithTimeout("PREPARE LOG", () -> {
+		  LogPromise promise = replicatedLog.prepare(ballot, fromSlot);
+		  if (!promise.isPromised()) {
+			  metrics.prepareRejections.increment();
+		  }
+		  logger.debug(() -> promise.isPromised() ? "Successfully prepared log" : "Log preparation failed");
+		  return promise;
+	  }, new LogPromise(false, -1, new TreeMap<>()), metrics.prepareLatency, metrics.prepareTimeouts);
+  }
+
+  @Override
+  public boolean acceptSlot(long slot, long ballot, Operation operation, long commitIndex) throws RemoteException {
+	  logger.debug(() -> "ACCEPT SLOT started. Slot: " + slot + ", ballot: " + Ballot.toString(ballot));
+	  boolean accepted = callWithTimeout("ACCEPT SLOT", () -> {
+		  boolean granted = replicatedLog.accept(ballot, slot, operation);
+		  if (!granted) {
+			  metrics.acceptRejections.increment();
+		  }
+		  logger.debug(() -> granted ? "Successfully accepted slot " + slot : "Slot acceptance failed");
+		  return granted;
+	  }, false, metrics.acceptLatency, metrics.acceptTimeouts);
+	  if (accepted) {
+		  decideAccepted(ballot, commitIndex);
+	  }
+	  return accepted;
+  }
+
+  @Override
+  public long heartbeat(long ballot, long commitIndex) throws RemoteException {
+	  long promised = callWithTimeout("HEARTBEAT", () -> replicatedLog.heartbeat(ballot, commitIndex), -1L, null, metrics.heartbeatTimeouts);
+	  if (promised == ballot) {
+		  decideAccepted(ballot, commitIndex);
+		  long missingThrough = Math.min(commitIndex, previousHeartbeatSlot);
+		  previousHeartbeatSlot = commitIndex;
+		  if (missingThrough > replicatedLog.getLastAppliedSlot()) {
+			  catchUp(Ballot.node(ballot), missingThrough);
+		  }
+	  }
+	  return promised;
+  }
+
+  /**
+   * Decides the slots the leader chose with its ballot whose operation the local acceptor accepted from it,
+   * for which the leader's notice has not arrived yet.
+   * @param ballot The ballot of the leader.
+   * @param leaderChosenSlot The slot up to which the leader chose every slot it proposed with the ballot.
+   */
+  private void decideAccepted(long ballot, long leaderChosenSlot) {
+	  if (leaderChosenSlot <= replicatedLog.getLastAppliedSlot()) {
+		  return;
+	  }
+	  checkpointLock.readLock().lock();
+	  try {
+		  metrics.piggybackedCommits.add(replicatedLog.decideAccepted(ballot, leaderChosenSlot));
+	  } finally {
+		  checkpointLock.readLock().unlock();
+	  }
+  }
+
+  /**
+   * Fetches the slots up to the given one that this server has not applied from the leader in the
+   * background, unless a fetch is already running.
+   * @param leaderId The ID of the leader.
+   * @param throughSlot The last slot to fetch.
+   */
+  private void catchUp(int leaderId, long throughSlot) {
+	  if (learners == null || leaderId == serverId || !catchingUp.compareAndSet(false, true)) {
+		  return;
+	  }
+	  rpcExecutor.execute(() -> {
+		  try {
+			  long slot = replicatedLog.getLastAppliedSlot() + 1;
+			  while (slot <= throughSlot) {
+				  List<Operation> operations = learners[leaderId].committedSlots(slot, (int) Math.min(CATCH_UP_BATCH, throughSlot - slot + 1));
+				  if (operations == null || operations.isEmpty()) {
+					  logger.log("Server_" + leaderId + " no longer retains slot " + slot + ", catch-up stopped");
+					  return;
+				  }
+				  for (Operation operation : operations) {
+					  decideSlot(slot++, operation);
+				  }
+				  metrics.catchUpSlots.add(operations.size());
+			  }
+		  } catch (RemoteException e) {
+			  logger.log("Catch-up from Server_" + leaderId + " failed: " + e.getMessage());
+		  } finally {
+			  catchingUp.set(false);
+		  }
+	  });
+  }
+
+  @Override
+  public void learnSlot(long slot, Operation operation) throws RemoteException {
+	  logger.debug(() -> "LEARN SLOT " + slot);
+	  long start = System.nanoTime();
+	  try {
+		  decideSlot(slot, operation);
+	  } finally {
+		  metrics.learnLatency.record(System.nanoTime() - start);
+	  }
+  }
+
+  @Override
+  public List<Operation> committedSlots(long fromSlot, int maxSlots) throws RemoteException {
+	  return replicatedLog.appliedOperations(fromSlot, maxSlots);
+  }
+
+  private void decideSlot(long slot, Operation operation) {
+	  checkpointLock.readLock().lock();
+	  try {
+		  replicatedLog.decide(slot, operation);
+	  } finally {
+		  checkpointLock.readLock().unlock();
+	  }
+  }
+
+  /**
+   * Runs Phase 1 to make this server the leader of its replicated log before any write arrives, so that
+   * the groups of a partitioned keyspace can be led by different servers. Basic Paxos has no leader.
+   * @return Whether this server is the leader.
+   */
+  public boolean lead() {
+	  return multiPaxos && acceptors != null && campaign();
+  }
+
+  @Override
+  public String submit(Operation operation) throws RemoteException {
+	  return appendToLog(operation, false);
+  }
+
+  @Override
+  public List<String> submitBatch(Operation batch) throws RemoteException {
+	  return appendBatch(batch);
+  }
+
+  /**
+   * Commits an operation in the next free slot of the replicated log. A server that is not the leader
+   * forwards the operation to the leader it knows of, or runs Phase 1 to become the leader itself.
+   * Once leading, each operation costs a single accept round. A lost election or accept round is retried
+   * after a randomized exponential backoff, as in basic mode, until PROPOSE_DEADLINE.
+   * @param operation The operation to commit.
+   * @param mayForward Whether the operation may be forwarded to another server.
+   * @return The result of applying the operation, or null if it could not be committed.
+   */
+  private String appendToLog(Operation operation, boolean mayForward) throws RemoteException {
+	  long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PROPOSE_DEADLINE);
+	  try {
+		  for (int attempt = 0; ; attempt++) {
+			  if (!replicatedLog.isLeader() && mayForward && knownLeader() != -1) {
+				  return forwardToLeader(operation);
+			  }
+			  if (replicatedLog.isLeader() || campaign()) {
+				  long ballot = replicatedLog.getLeaderBallot();
+				  if (ballot != -1) {
+					  long slot = replicatedLog.nextSlot();
+					  long roundStart = System.nanoTime();
+					  if (acceptInSlot(slot, ballot, operation, roundStart)) {
+						  return awaitSlot(slot, operation, roundStart);
+					  }
+				  }
+			  }
+			  long backoff = backoffNanos(attempt);
+			  if (System.nanoTime() + backoff >= deadline) {
+				  logger.log("*****************Append of " + operation.getType() + " failed after " + (attempt + 1)
+						  + " rounds.*****************");
+				  return null;
+			  }
+			  metrics.proposeRetries.increment();
+			  TimeUnit.NANOSECONDS.sleep(backoff);
+		  }
+	  } catch (InterruptedException e) {
+		  Thread.currentThread().interrupt();
+		  return null;
+	  }
+  }
+
+  /**
+   * Runs the accept round of an operation in a slot as the leader with the given ballot. If a quorum is
+   * not reached, the leader steps down: the next campaign fills the slot with whatever a quorum accepted,
+   * or a no-op.
+   * @param roundStart When the round started.
+   * @return Whether a quorum accepted the operation.
+   */
+  private boolean acceptInSlot(long slot, long ballot, Operation operation, long roundStart) {
+	  logger.debug(() -> "Proposing Operation in slot " + slot + " with ballot " + Ballot.toString(ballot));
+	  long chosenSlot = replicatedLog.getChosenIndex(ballot);
+	  List<Boolean> accepts = collectQuorum(acceptor -> acceptor.acceptSlot(slot, ballot, operation, chosenSlot),
+			  accepted -> accepted, true);
+	  if (accepts.size() <= numServers / 2) {
+		  metrics.acceptQuorumFailures.increment();
+		  metrics.proposeLatency.record(System.nanoTime() - roundStart);
+		  replicatedLog.stepDown(ballot);
+		  logger.log("*****************Acceptance number is less than a quorum. Leader stepped down.*****************");
+		  return false;
+	  }
+	  metrics.acceptQuorums.increment();
+	  replicatedLog.recordCommit(slot, ballot, roundStart);
+	  return true;
+  }
+
+  /**
+   * Decides a slot chosen by this leader, sends it to the other learners, and waits until it is applied here.
+   * @param roundStart When the accept round of the slot started.
+   * @return The result of applying the operation, or null if that did not happen in time.
+   */
+  private String awaitSlot(long slot, Operation operation, long roundStart) {
+	  CompletableFuture<String> applied = replicatedLog.awaitApplied(slot);
+	  broadcastSlot(slot, operation);
+	  try {
+		  return applied.get(WAIT_TIME, TimeUnit.MILLISECONDS);
+	  } catch (TimeoutException e) {
+		  logger.log("Applying slot " + slot + " timed out");
+		  return null;
+	  } catch (InterruptedException | ExecutionException e) {
+		  logger.log("Exception while applying slot " + slot + ": " + e.getMessage());
+		  return null;
+	  } finally {
+		  metrics.proposeLatency.record(System.nanoTime() - roundStart);
+	  }
+  }
+
+  /**
+   * Runs Phase 1 once for all slots not applied locally. Values accepted by the quorum are re-proposed with
+   * the new ballot and gaps are filled with no-ops, after which this server is the leader.
+   * @return Whether this server is the leader.
+   */
+  private boolean campaign() {
+	  synchronized (campaignLock) {
+		  if (replicatedLog.isLeader()) {
+			  return true;
+		  }
+		  long ballot = ballots.next();
+		  long fromSlot = replicatedLog.getLastAppliedSlot() + 1;
+		  logger.log("Campaigning for leadership with ballot " + Ballot.toString(ballot) + " from slot " + fromSlot);
+		  // A rejection names the ballot promised instead, the next campaign jumps ahead of it
+		  List<LogPromise> promises = collectQuorum(acceptor -> acceptor.prepareLog(ballot, fromSlot), promise -> {
+			  ballots.observe(promise.getPromisedBallot());
+			  return promise.isPromised();
+		  }, true);
+		  if (promises.size() <= numServers / 2) {
+			  metrics.promiseQuorumFailures.increment();
+			  logger.log("*****************Promise number is less than a quorum. Election failed.*****************");
+			  return false;
+		  }
+		  metrics.promiseQuorums.increment();
+		  
+		  TreeMap<Long, ProposalResponse> recovered = new TreeMap<>();
+		  for (LogPromise promise : promises) {
+			  promise.getAcceptedSlots().forEach((slot, response) -> recovered.merge(slot, response,
+					  (a, b) -> a.getLastAcceptedId() >= b.getLastAcceptedId() ? a : b));
+		  }
+		  long firstFreeSlot = recovered.isEmpty() ? fromSlot : Math.max(fromSlot, recovered.lastKey() + 1);
+		  for (long slot = fromSlot; slot < firstFreeSlot; slot++) {
+			  ProposalResponse response = recovered.get(slot);
+			  Operation operation = response == null ? Operation.noop() : (Operation) response.getLastAcceptedValue();
+			  long recoveredSlot = slot;
+			  // The slots recovered before this one were chosen with the ballot, and none before fromSlot has it
+			  List<Boolean> accepts = collectQuorum(acceptor -> acceptor.acceptSlot(recoveredSlot, ballot, operation, recoveredSlot - 1),
+					  accepted -> accepted, true);
+			  if (accepts.size() <= numServers / 2) {
+				  metrics.acceptQuorumFailures.increment();
+				  logger.log("*****************Failed to recover slot " + slot + ". Election failed.*****************");
+				  return false;
+			  }
+			  broadcastSlot(slot, operation);
+		  }
+		  replicatedLog.becomeLeader(ballot, firstFreeSlot);
+		  logger.log("Became leader with ballot " + Ballot.toString(ballot));
+		  return true;
+	  }
+  }
+
+  /**
+   * Sends a heartbeat to all acceptors if this server is the leader. A quorum of grants renews the lease;
+   * finding that another server was promised a higher ballot ends the leadership.
+   */
+  private void sendHeartbeats() {
+	  long ballot = replicatedLog.getLeaderBallot();
+	  if (ballot == -1 || acceptors == null) {
+		  return;
+	  }
+	  long chosenSlot = replicatedLog.getChosenIndex(ballot);
+	  long roundStart = System.nanoTime();
+	  List<Long> grants = collectQuorum(acceptor -> acceptor.heartbeat(ballot, chosenSlot), promised -> promised == ballot, false);
+	  if (grants.size() > numServers / 2) {
+		  replicatedLog.renewLease(roundStart);
+	  } else if (replicatedLog.getPromisedBallot() > ballot) {
+		  replicatedLog.stepDown(ballot);
+		  ballots.observe(replicatedLog.getPromisedBallot());
+		  logger.log("Leader with ballot " + Ballot.toString(ballot) + " was superseded");
+	  }
+  }
+
+  /**
+   * Decides a chosen slot locally and sends it to the other learners in the background. Followers that
+   * accepted the slot from this leader also decide it once the leader's chosen index, carried by its next
+   * accept or heartbeat, reaches it.
+   */
+  private void broadcastSlot(long slot, Operation operation) {
+	  decideSlot(slot, operation);
+	  commitNotifier.notifyLearners((int) slot, learner -> learner.learnSlot(slot, operation));
+  }
+
+  /**
+   * @return The ID of the server owning the highest ballot promised by the local acceptor, or -1 if there is none.
+   */
+  private int knownLeader() {
+	  long ballot = replicatedLog.getPromisedBallot();
+	  int leaderId = ballot == -1 ? -1 : Ballot.node(ballot);
+	  return leaderId == serverId || proposers == null ? -1 : leaderId;
+  }
+
+  private String forwardToLeader(Operation operation) throws RemoteException {
+	  int leaderId = knownLeader();
+	  logger.log("Forwarding operation to leader Server_" + leaderId);
+	  try {
+		  return proposers[leaderId].submit(operation);
+	  } catch (RemoteException e) {
+		  logger.log(e.toString());
+		  return campaign() ? appendToLog(operation, false) : null;
+	  }
+  }
+
+  /**
+   * Runs an acceptor task on the executor, simulating random failures and giving up once it took longer
+   * than WAIT_TIME, or than acceptor tasks recently took here if that is longer.
+   * @param phase The name of the phase, used in log messages.
+   * @param task The task to run.
+   * @param onFailure The response returned if the task timed out or failed.
+   * @param latency Records how long the call took, or null.
+   * @param timeouts Counts the calls that timed out.
+   * @return The response of the task, or onFailure.
+   */
+  private <T> T callWithTimeout(String phase, Callable<T> task, T onFailure, LatencyHistogram latency, LongAdder timeouts) {
+	  long start = System.nanoTime();
+	  Future<T> future = executorService.submit(() -> {
+		  if (Math.random() < failureProbability) {
+			  logger.log(phase + " method simulated failure.");
+			  Thread.sleep(WAIT_TIME); // Simulate a delay for the restart
+		  }
+		  return task.call();
+	  });
+	  try {
+		  T response = future.get(serviceTimes.getTimeoutNanos(), TimeUnit.NANOSECONDS);
+		  serviceTimes.record(System.nanoTime() - start);
+		  return response;
+	  } catch (TimeoutException e) {
+		  serviceTimes.backOff();
+		  timeouts.increment();
+		  logger.log(phase + " operation timed out");
+		  return onFailure;
+	  } catch (InterruptedException | ExecutionException e) {
+		  logger.log("Exception in " + phase + " operation: " + e.getMessage());
+		  return onFailure;
+	  } finally {
+		  if (latency != null) {
+			  latency.record(System.nanoTime() - start);
+		  }
+	  }
+  }
+
+  /**
+   * Queues a record in the write-ahead log.
+   * @return A future completed once the record is durable, or a completed future if durability is off.
+   */
+  private CompletableFuture<Void> persist(byte type, WriteAheadLog.RecordWriter payload) {
+	  return wal == null ? CompletableFuture.completedFuture(null) : wal.append(type, payload);
+  }
+
+  /**
+   * Restores the state recorded by a record of the write-ahead log during startup.
+   * @param type The record type.
+   * @param in The payload of the record.
+   * @throws IOException If the payload is malformed.
+   */
+  private void recover(byte type, DataInputStream in) throws IOException {
+	  switch (type) {
+	  	case WriteAheadLog.PROMISE: {
+	  		String key = Operation.readString(in);
+	  		long instance = in.readLong();
+	  		long proposalId = in.readLong();
+	  		if (instance >= paxosStates.getInstance(key)) {
+	  			paxosStates.promise(key, instance, proposalId);
+	  		}
+	  		break;
+	  	}
+	  	case WriteAheadLog.ACCEPT: {
+	  		String key = Operation.readString(in);
+	  		long instance = in.readLong();
+	  		long proposalId = in.readLong();
+	  		Operation operation = Operation.readFrom(in);
+	  		if (instance >= paxosStates.getInstance(key)) {
+	  			paxosStates.accept(key, instance, proposalId, operation);
+	  		}
+	  		break;
+	  	}
+	  	case WriteAheadLog.LEARN: {
+	  		// Instances the snapshot already covers are skipped
+	  		String key = Operation.readString(in);
+	  		long instance = in.readLong();
+	  		Operation operation = Operation.readFrom(in);
+	  		if (instance >= paxosStates.getLearned(key)) {
+	  			applyOperation(operation);
+	  			paxosStates.learn(key, instance);
+	  		}
+	  		break;
+	  	}
+	  	default:
+	  		replicatedLog.recover(type, in);
+	  }
+  }
+
+  /**
+   * Streams the replicated log state, paxosStates and kvStore into a snapshot, in that order:
+   * kvStore then reflects at least every slot the snapshot marks as applied.
+   * @param out The snapshot stream.
+   * @throws IOException If the stream fails.
+   */
+  private void writeSnapshot(DataOutputStream out) throws IOException {
+	  replicatedLog.writeSnapshot(out, RETAINED_SLOTS);
+	  for (int segment = 0; segment < paxosStates.getSegmentCount(); segment++) {
+		  synchronized (keyLocks[segment]) {
+			  paxosStates.writeSegment(segment, out);
+		  }
+	  }
+	  kvStore.forEach((key, value) -> {
+		  out.writeBoolean(true);
+		  Operation.writeString(out, key);
+		  Operation.writeString(out, value);
+	  });
+	  out.writeBoolean(false);
+  }
+
+  /**
+   * Restores the state written by {@link #writeSnapshot(DataOutputStream)}.
+   * @param in The snapshot stream.
+   * @throws IOException If the stream fails or is malformed.
+   */
+  private void readSnapshot(DataInputStream in) throws IOException {
+	  replicatedLog.readSnapshot(in);
+	  for (int segment = 0; segment < paxosStates.getSegmentCount(); segment++) {
+		  paxosStates.readSegment(segment, in);
+	  }
+	  while (in.readBoolean()) {
+		  kvStore.put(Operation.readString(in), Operation.readString(in));
+	  }
+  }
+
+  private int stripeOf(String key) {
+	  return paxosStates.segmentOf(key);
+  }
+
+  /**
+   * Returns the lock guarding the Paxos state and the stored value of the given key.
+   * @param key The key to look up.
+   * @return The lock stripe the key hashes to.
+   */
+  private Object lockFor(String key) {
+    return keyLocks[stripeOf(key)];
+  }
+
+  /**
+   * Apply the given operation to the key-value store. Package-private for the JMH benchmarks.
+   * @param operation The operation to apply.
+   */
+  String applyOperation(Operation operation) {
+	  return applyOperation(operation, null);
+  }
+
+  /**
+   * Apply the given operation to the key-value store, and add it as it took effect to the given list:
+   * a transaction whose guards held without its guards, and one that aborted as a no-op. The write-ahead
+   * log records this outcome, so replaying it over a snapshot that already holds some later writes does
+   * not check the guards again against those.
    * @param operation The operation to apply.
+   * @param applied The list to add the applied operation to, or null.
    */
-  private String applyOperation(Operation operation) {
+  String applyOperation(Operation operation, List<Operation> applied) {
 	  if (operation == null) {
 	        return null; // No operation to apply
 	    }
@@ -252,53 +1712,118 @@ public class Server extends UnicastRemoteObject implements ProposerInterface, Ac
 	    String key = operation.getKey();
 	    String result = null;
 	    switch (operation.getType()) {
+	        case "NOOP":
+	            break;
+	        case "GET":
+	            result = kvStore.get(key);
+	            break;
+	        case "BATCH":
+	            List<String> results = new ArrayList<>(operation.getOperations().size());
+	            List<Operation> appliedBatch = applied == null ? null : new ArrayList<>(operation.getOperations().size());
+	            for (Operation batched : operation.getOperations()) {
+	                results.add(applyOperation(batched, appliedBatch));
+	            }
+	            if (applied != null) {
+	                applied.add(Operation.batch(key, appliedBatch));
+	            }
+	            logger.debug(() -> "Applied BATCH " + key + " of " + results.size() + " operations");
+	            CompletableFuture<List<String>> waiter = batchWaiters.get(key);
+	            if (waiter != null) {
+	                waiter.complete(results);
+	            }
+	            break;
+	        case "TXN":
+	            // Nothing is applied between the guards and the writes: in basic mode the single key of the
+	            // transaction is locked, in Multi-Paxos mode the slots of the log are applied one at a time
+	            boolean guardsHold = guardsHold(operation);
+	            if (guardsHold) {
+	                List<Operation> writes = new ArrayList<>(operation.getOperations().size());
+	                for (Operation write : operation.getOperations()) {
+	                    if (!write.getType().equals("CHECK")) {
+	                        applyOperation(write);
+	                        writes.add(write);
+	                    }
+	                }
+	                if (applied != null) {
+	                    applied.add(Operation.transaction(key, operation.getValue(), Collections.emptyList(), writes));
+	                }
+	                metrics.transactionsCommitted.increment();
+	            } else {
+	                if (applied != null) {
+	                    applied.add(Operation.noop());
+	                }
+	                metrics.transactionsAborted.increment();
+	            }
+	            result = guardsHold ? Operation.COMMITTED : Operation.ABORTED;
+	            logger.debug(() -> "Applied TXN " + operation.getValue() + (guardsHold ? "" : ", aborted"));
+	            break;
 	        case "PUT":
+	            closeIngest();
 	            String valueToPut = operation.getValue();
 	            result = kvStore.put(key, valueToPut);
-	            logger.log("Applied PUT operation on key: " + key + " with value: " + valueToPut);
+	            changeLog.append(operation);
+	            logger.debug(() -> "Applied PUT operation on key: " + key + " with value: " + valueToPut);
 	            break;
 	        case "DELETE":
+	            closeIngest();
 	            result = kvStore.remove(key);
-	            logger.log("Applied DELETE operation on key: " + key);
+	            changeLog.append(operation);
+	            logger.debug(() -> "Applied DELETE operation on key: " + key);
 	            break;
 	        default:
 	        	logger.log("Unknown operation type: " + operation.getType());
 	            // Optionally handle unknown operation types
 	            break;
 	    }
+	    if (applied != null && operation.getOperations() == null) {
+	        applied.add(operation); // batches and transactions added theirs above
+	    }
 	    return result;
   }
   
+  /**
+   * @return Whether every guard of the transaction holds.
+   */
+  private boolean guardsHold(Operation transaction) {
+	  for (Operation guard : transaction.getOperations()) {
+		  if (guard.getType().equals("CHECK") && !Objects.equals(kvStore.get(guard.getKey()), guard.getValue())) {
+			  return false;
+		  }
+	  }
+	  return true;
+  }
+  
   public void shutdown() {
       logger.log("Server is shutting down.");
       System.exit(0); // This will terminate the JVM running the server
   }
 
   /**
-   * Static class representing an operation on the key-value store.
+   * Stops the threads of this server without exiting the JVM, for servers embedded in another program.
    */
-  private static class Operation {
-    String type;
-    String key;
-    String value;
-
-    Operation(String type, String key, String value) {
-      this.type = type;
-      this.key = key;
-      this.value = value;
-    }
-    
-    public String getType() {
-    	return type;
-    }
-
-	public String getKey() {
-		return key;
-	}
+  public void close() {
+	  executorService.shutdownNow();
+	  rpcExecutor.shutdownNow();
+	  if (heartbeatScheduler != null) {
+		  heartbeatScheduler.shutdownNow();
+	  }
+	  if (snapshotScheduler != null) {
+		  snapshotScheduler.shutdownNow();
+	  }
+	  try {
+		  UnicastRemoteObject.unexportObject(this, true);
+	  } catch (NoSuchObjectException e) {
+		  // Already unexported
+	  }
+	  logger.close();
+  }
 
-	public String getValue() {
-		return value;
-	}
+  /**
+   * A single request sent to one acceptor during a Paxos phase.
+   */
+  @FunctionalInterface
+  private interface AcceptorCall<T> {
+    T call(AcceptorInterface acceptor) throws RemoteException;
   }
 
   // Other methods as needed
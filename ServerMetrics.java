@@ -0,0 +1,129 @@
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of one server. Counters are LongAdders, which stripe concurrent
+ * increments over cells instead of contending on one word, and histograms record with a single atomic
+ * increment, so instrumenting a hot path costs a few nanoseconds and never blocks. Gauges such as queue
+ * depth and table sizes are read only when a snapshot is taken.
+ * A snapshot is a flat map from metric name to value, with latencies in microseconds; it is served
+ * remotely through {@link MetricsInterface} and can be registered as an MXBean.
+ * @author ZHANG Mao
+ *
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+
+	// Latencies as seen by the acceptor or learner handling a request, including the wait for a worker thread
+	final LatencyHistogram prepareLatency = new LatencyHistogram();
+	final LatencyHistogram acceptLatency = new LatencyHistogram();
+	final LatencyHistogram learnLatency = new LatencyHistogram();
+	// Latency of a write on the proposer, from the first prepare or accept until it is learned, retries included
+	final LatencyHistogram proposeLatency = new LatencyHistogram();
+
+	final LongAdder promiseQuorums = new LongAdder();
+	final LongAdder promiseQuorumFailures = new LongAdder();
+	final LongAdder acceptQuorums = new LongAdder();
+	final LongAdder acceptQuorumFailures = new LongAdder();
+	final LongAdder prepareRejections = new LongAdder();
+	final LongAdder acceptRejections = new LongAdder();
+	final LongAdder prepareTimeouts = new LongAdder();
+	final LongAdder acceptTimeouts = new LongAdder();
+	final LongAdder learnTimeouts = new LongAdder();
+	final LongAdder heartbeatTimeouts = new LongAdder();
+	final LongAdder quorumTimeouts = new LongAdder();
+	// Calls to acceptors that took longer than their timeout, and the extra acceptors asked in their place
+	final LongAdder lateAcceptorCalls = new LongAdder();
+	final LongAdder hedgedAcceptorCalls = new LongAdder();
+	final LongAdder proposeRetries = new LongAdder();
+	// Notices of chosen values that did not reach a learner, and those dropped before a retry got through
+	final LongAdder commitNoticeFailures = new LongAdder();
+	final LongAdder commitNoticesDropped = new LongAdder();
+	// Slots a follower decided from the applied slot carried by the leader's accepts and heartbeats,
+	// and slots it fetched from the leader after missing them
+	final LongAdder piggybackedCommits = new LongAdder();
+	final LongAdder catchUpSlots = new LongAdder();
+	// Keys a server brought up to date in basic mode after missing decided instances of them
+	final LongAdder keyCatchUps = new LongAdder();
+	// Transactions applied by this server, by outcome
+	final LongAdder transactionsCommitted = new LongAdder();
+	final LongAdder transactionsAborted = new LongAdder();
+
+	private final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+
+	/**
+	 * Adds a value read at snapshot time. Gauges are registered while the server is set up.
+	 */
+	synchronized void gauge(String name, LongSupplier value) {
+		gauges.put(name, value);
+	}
+
+	/**
+	 * @return Every counter, gauge and histogram summary by name. Safe to call while the server is under load.
+	 */
+	@Override
+	public synchronized Map<String, Long> getMetrics() {
+		Map<String, Long> metrics = new LinkedHashMap<>();
+		metrics.put("promise.quorums", promiseQuorums.sum());
+		metrics.put("promise.quorum_failures", promiseQuorumFailures.sum());
+		metrics.put("accept.quorums", acceptQuorums.sum());
+		metrics.put("accept.quorum_failures", acceptQuorumFailures.sum());
+		metrics.put("prepare.rejections", prepareRejections.sum());
+		metrics.put("accept.rejections", acceptRejections.sum());
+		metrics.put("prepare.timeouts", prepareTimeouts.sum());
+		metrics.put("accept.timeouts", acceptTimeouts.sum());
+		metrics.put("learn.timeouts", learnTimeouts.sum());
+		metrics.put("heartbeat.timeouts", heartbeatTimeouts.sum());
+		metrics.put("quorum.timeouts", quorumTimeouts.sum());
+		metrics.put("acceptor.late_calls", lateAcceptorCalls.sum());
+		metrics.put("acceptor.hedged_calls", hedgedAcceptorCalls.sum());
+		metrics.put("propose.retries", proposeRetries.sum());
+		metrics.put("commit_notice.failures", commitNoticeFailures.sum());
+		metrics.put("commit_notice.dropped", commitNoticesDropped.sum());
+		metrics.put("commit.piggybacked", piggybackedCommits.sum());
+		metrics.put("commit.caught_up", catchUpSlots.sum());
+		metrics.put("commit.caught_up_keys", keyCatchUps.sum());
+		metrics.put("transaction.committed", transactionsCommitted.sum());
+		metrics.put("transaction.aborted", transactionsAborted.sum());
+		for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+			metrics.put(gauge.getKey(), gauge.getValue().getAsLong());
+		}
+		summarize(metrics, "prepare", prepareLatency);
+		summarize(metrics, "accept", acceptLatency);
+		summarize(metrics, "learn", learnLatency);
+		summarize(metrics, "propose", proposeLatency);
+		return metrics;
+	}
+
+	private static void summarize(Map<String, Long> metrics, String phase, LatencyHistogram histogram) {
+		// Copied first so that all figures of a phase describe the same recordings
+		LatencyHistogram latency = histogram.copy();
+		metrics.put(phase + ".count", latency.getTotalCount());
+		metrics.put(phase + ".mean_us", (long) latency.getMean() / 1000);
+		metrics.put(phase + ".p50_us", latency.getValueAtPercentile(50) / 1000);
+		metrics.put(phase + ".p99_us", latency.getValueAtPercentile(99) / 1000);
+		metrics.put(phase + ".p99.9_us", latency.getValueAtPercentile(99.9) / 1000);
+		metrics.put(phase + ".max_us", latency.getMax() / 1000);
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server under kvstore:type=Server,name=NAME,
+	 * where jconsole, VisualVM or a JMX exporter can read them.
+	 * @param name The name of the server, e.g. Server_N.
+	 * @return Whether the registration succeeded.
+	 */
+	public boolean registerMBean(String name) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					new ObjectName("kvstore:type=Server,name=" + name));
+			return true;
+		} catch (JMException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,14 @@
+import java.util.Map;
+
+/**
+ * JMX view of {@link ServerMetrics}.
+ * @author ZHANG Mao
+ *
+ */
+public interface ServerMetricsMXBean {
+
+	/**
+	 * @return Every metric of the server by name, latencies in microseconds.
+	 */
+	Map<String, Long> getMetrics();
+}
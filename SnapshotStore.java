@@ -0,0 +1,105 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Stores snapshots of a server's state next to its write-ahead log. Each snapshot is named after the
+ * first log segment it does not cover, so recovery loads the latest snapshot and replays only the
+ * segments from that one on. Snapshots are streamed in a compact binary format, written to a temporary
+ * file and renamed once complete, so a crash never leaves a partial snapshot behind.
+ * @author ZHANG Mao
+ *
+ */
+public class SnapshotStore {
+
+	private static final int MAGIC = 0x50534e50; // "PSNP"
+	private static final int VERSION = 4;
+
+	/**
+	 * Streams the state into a snapshot.
+	 */
+	@FunctionalInterface
+	public interface StateWriter {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	/**
+	 * Restores the state from a snapshot.
+	 */
+	@FunctionalInterface
+	public interface StateReader {
+		void read(DataInputStream in) throws IOException;
+	}
+
+	private final Path directory;
+
+	public SnapshotStore(Path directory) throws IOException {
+		this.directory = directory;
+		Files.createDirectories(directory);
+	}
+
+	/**
+	 * Restores the latest snapshot, if there is one.
+	 * @param reader Restores the state from the snapshot.
+	 * @return The first log segment not covered by the snapshot, or 0 if there is no snapshot.
+	 * @throws IOException If the snapshot cannot be read.
+	 */
+	public long loadLatest(StateReader reader) throws IOException {
+		List<Path> snapshots = listSnapshots();
+		if (snapshots.isEmpty()) {
+			return 0;
+		}
+		Path latest = snapshots.get(snapshots.size() - 1);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(latest), 1 << 16))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not a snapshot: " + latest);
+			}
+			long segment = in.readLong();
+			reader.read(in);
+			return segment;
+		}
+	}
+
+	/**
+	 * Writes a snapshot and deletes the older ones.
+	 * @param segment The first log segment the snapshot does not cover.
+	 * @param writer Streams the state into the snapshot.
+	 * @throws IOException If the snapshot cannot be written.
+	 */
+	public void write(long segment, StateWriter writer) throws IOException {
+		Path snapshot = directory.resolve(String.format("snapshot-%020d.snap", segment));
+		Path temporary = directory.resolve(snapshot.getFileName() + ".tmp");
+		FileOutputStream file = new FileOutputStream(temporary.toFile());
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(segment);
+			writer.write(out);
+			out.flush();
+			file.getFD().sync(); // the log segments covered by the snapshot are deleted next
+		}
+		Files.move(temporary, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		for (Path older : listSnapshots()) {
+			if (!older.equals(snapshot)) {
+				Files.delete(older);
+			}
+		}
+	}
+
+	private List<Path> listSnapshots() throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.filter(path -> path.getFileName().toString().matches("snapshot-\\d+\\.snap"))
+					.sorted()
+					.collect(Collectors.toList());
+		}
+	}
+}
@@ -0,0 +1,52 @@
+import java.io.IOException;
+
+/**
+ * The StorageEngine represents the storage of the key-value state
+ * machine. Server.applyOperation writes to it and the local reads
+ * are served from it. Implementations are safe for concurrent use.
+ * Values are never null.
+ */
+public interface StorageEngine {
+  /**
+   * @param key The key.
+   * @return The value of the key, or null if it has none.
+   */
+  String get(String key);
+
+  /**
+   * @param key The key.
+   * @param value The new value.
+   * @return The previous value of the key, or null if it had none.
+   */
+  String put(String key, String value);
+
+  /**
+   * @param key The key.
+   * @return The removed value, or null if the key had none.
+   */
+  String remove(String key);
+
+  /**
+   * @return The number of keys. May be approximate while writes are in progress.
+   */
+  int size();
+
+  /**
+   * @return The bytes of memory the engine reserved for keys and values, or -1 if it stores them as
+   *         ordinary objects and does not track their footprint.
+   */
+  long reservedBytes();
+
+  /**
+   * Visits every entry, e.g. to write a snapshot. Entries written concurrently may or may not be visited.
+   *
+   * @param visitor Called once per entry.
+   * @throws IOException If the visitor fails.
+   */
+  void forEach(EntryVisitor visitor) throws IOException;
+
+  @FunctionalInterface
+  interface EntryVisitor {
+    void visit(String key, String value) throws IOException;
+  }
+}
@@ -0,0 +1,50 @@
+import java.io.Serializable;
+
+/**
+ * Position of a subscriber in the change logs of a server: for every partition, the ID of the log and
+ * the position of the next change to deliver. Returned with every {@link ChangeBatch} and passed back to
+ * resume the stream after it, e.g. after a disconnect.
+ * @author ZHANG Mao
+ *
+ */
+public class WatchCursor implements Serializable {
+	private static final long serialVersionUID = -6722160302563215470L;
+	
+	private final long[] streamIds;
+	private final long[] positions;
+	
+	public WatchCursor(long[] streamIds, long[] positions) {
+		this.streamIds = streamIds;
+		this.positions = positions;
+	}
+	
+	/**
+	 * @return The number of change logs, one per partition.
+	 */
+	public int size() {
+		return positions.length;
+	}
+	
+	/**
+	 * @return The ID of the change log of the partition, which is new whenever the server restarts.
+	 */
+	public long getStreamId(int partition) {
+		return streamIds[partition];
+	}
+	
+	/**
+	 * @return The position of the next change to deliver from the partition.
+	 */
+	public long getPosition(int partition) {
+		return positions[partition];
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < positions.length; i++) {
+			text.append(i == 0 ? "" : ",").append(Long.toHexString(streamIds[i])).append(':').append(positions[i]);
+		}
+		return text.toString();
+	}
+}
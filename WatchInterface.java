@@ -0,0 +1,25 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * The WatchInterface represents a remote interface through which
+ * a client follows the writes applied to a server, instead of polling
+ * the keys it is interested in. Each call is a long poll: it returns as
+ * soon as matching changes are available, or once the wait is over.
+ * The subscriber holds its position, so the server keeps no state per
+ * subscriber and a slow subscriber never holds up consensus.
+ */
+public interface WatchInterface extends Remote {
+  /**
+   * Returns the next changes of a key, of the keys with a prefix, or of the whole store.
+   *
+   * @param key The key, or the prefix; "" with prefix set watches the whole store.
+   * @param prefix Whether key is a prefix.
+   * @param cursor The cursor of the previous batch, or null to start with the next write.
+   * @param maxChanges The maximum number of changes returned.
+   * @param maxWaitMillis How long to wait for a matching change, capped by the server.
+   * @throws RemoteException If a remote invocation error occurs.
+   * @return The changes, possibly none, and the cursor to resume after them.
+   */
+  ChangeBatch watch(String key, boolean prefix, WatchCursor cursor, int maxChanges, long maxWaitMillis) throws RemoteException;
+}
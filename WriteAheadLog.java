@@ -0,0 +1,343 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log of the acceptor and learner state of a server.
+ * Records are appended by a single writer thread that flushes everything queued since the previous
+ * flush with one fsync (group commit), so concurrent promises share a disk flush. The log is split into
+ * zero-filled, preallocated segment files; a record is a length, a CRC32 and a payload, and the first
+ * zero length marks the end of a segment. Segments older than the latest snapshot are deleted.
+ * @author ZHANG Mao
+ *
+ */
+public class WriteAheadLog {
+
+	// Record types. The payload layout of each type is given next to it.
+	public static final byte PROMISE = 1;     // key, instance, proposal ID
+	public static final byte ACCEPT = 2;      // key, instance, proposal ID, operation
+	public static final byte LEARN = 3;       // key, instance, operation as applied
+	public static final byte LOG_PROMISE = 4; // ballot
+	public static final byte LOG_ACCEPT = 5;  // slot, ballot, operation
+	public static final byte LOG_LEARN = 6;   // slot, operation as applied
+
+	/**
+	 * Writes the payload of a record.
+	 */
+	@FunctionalInterface
+	public interface RecordWriter {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	/**
+	 * Handles a record read back during recovery.
+	 */
+	@FunctionalInterface
+	public interface RecordHandler {
+		void handle(byte type, DataInputStream in) throws IOException;
+	}
+
+	public static final long DEFAULT_SEGMENT_SIZE = 64L << 20;
+	private static final int HEADER_SIZE = 8;
+	private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+	private final Path directory;
+	private final long segmentSize;
+	private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+	private FileChannel segment;
+	private long segmentNumber;
+	private long segmentCapacity;
+	private long position;
+
+	private final LinkedBlockingQueue<PendingRecord> queue = new LinkedBlockingQueue<>();
+	private final Thread writer;
+	private final AtomicLong recordCount = new AtomicLong();
+	private final AtomicLong syncCount = new AtomicLong();
+
+	private WriteAheadLog(Path directory, long segmentSize) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.writer = new Thread(this::writeLoop, "wal-" + directory.getFileName());
+		this.writer.setDaemon(true);
+	}
+
+	/**
+	 * Opens the log in the given directory, replaying every intact record to the handler in order.
+	 * @param directory The directory holding the segment files. It is created if missing.
+	 * @param handler Receives the records found in the log.
+	 * @return The log, ready for appending after the last intact record.
+	 * @throws IOException If the log cannot be read or created.
+	 */
+	public static WriteAheadLog open(Path directory, RecordHandler handler) throws IOException {
+		return open(directory, DEFAULT_SEGMENT_SIZE, 0, handler);
+	}
+
+	/**
+	 * Opens the log in the given directory, replaying the records from the given segment on.
+	 * @param directory The directory holding the segment files. It is created if missing.
+	 * @param segmentSize The size new segment files are preallocated with.
+	 * @param fromSegment The first segment not covered by a snapshot. Older segments are deleted.
+	 * @param handler Receives the records found in the log.
+	 * @return The log, ready for appending after the last intact record.
+	 * @throws IOException If the log cannot be read or created.
+	 */
+	public static WriteAheadLog open(Path directory, long segmentSize, long fromSegment, RecordHandler handler) throws IOException {
+		Files.createDirectories(directory);
+		WriteAheadLog wal = new WriteAheadLog(directory, segmentSize);
+		wal.deleteSegmentsBefore(fromSegment);
+		wal.segmentNumber = Math.max(0, fromSegment - 1);
+		wal.recover(handler);
+		wal.writer.start();
+		return wal;
+	}
+
+	/**
+	 * Queues a record for the next group commit.
+	 * @param type The record type.
+	 * @param payload Writes the payload of the record.
+	 * @return A future completed once the record is on disk.
+	 */
+	public CompletableFuture<Void> append(byte type, RecordWriter payload) {
+		PendingRecord record = new PendingRecord();
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(type);
+			payload.write(out);
+			record.payload = bytes.toByteArray();
+		} catch (IOException e) {
+			record.durable.completeExceptionally(e);
+			return record.durable;
+		}
+		queue.add(record);
+		return record.durable;
+	}
+
+	/**
+	 * Queues a switch to a new segment. Records appended before this call stay in older segments,
+	 * records appended after it go to the new segment or later ones.
+	 * @return A future completed with the number of the new segment once it was created.
+	 */
+	public CompletableFuture<Long> rollSegment() {
+		PendingRecord marker = new PendingRecord();
+		queue.add(marker);
+		return marker.durable.thenApply(done -> marker.segment);
+	}
+
+	/**
+	 * Deletes all segments older than the given one, once a snapshot covers them.
+	 * @param segment The oldest segment to keep.
+	 * @throws IOException If a segment cannot be deleted.
+	 */
+	public void deleteSegmentsBefore(long segment) throws IOException {
+		for (Path path : listSegments()) {
+			if (segmentNumber(path) < segment) {
+				Files.delete(path);
+			}
+		}
+	}
+
+	public long getRecordCount() {
+		return recordCount.get();
+	}
+
+	/**
+	 * @return The number of fsyncs so far. Records per fsync shows how well group commit batches.
+	 */
+	public long getSyncCount() {
+		return syncCount.get();
+	}
+
+	public void close() throws IOException {
+		writer.interrupt();
+		synchronized (this) {
+			segment.close();
+		}
+	}
+
+	private void writeLoop() {
+		List<PendingRecord> batch = new ArrayList<>();
+		try {
+			while (true) {
+				batch.add(queue.take());
+				queue.drainTo(batch);
+				try {
+					synchronized (this) {
+						for (PendingRecord record : batch) {
+							if (record.payload == null) {
+								flushWriteBuffer();
+								roll(0);
+								record.segment = segmentNumber;
+							} else {
+								write(record.payload);
+							}
+						}
+						flushWriteBuffer();
+						segment.force(false);
+					}
+					syncCount.incrementAndGet();
+					recordCount.addAndGet(batch.size());
+					for (PendingRecord record : batch) {
+						record.durable.complete(null);
+					}
+				} catch (IOException e) {
+					for (PendingRecord record : batch) {
+						record.durable.completeExceptionally(e);
+					}
+				}
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void write(byte[] payload) throws IOException {
+		int size = HEADER_SIZE + payload.length;
+		if (position + writeBuffer.position() + size > segmentCapacity) {
+			flushWriteBuffer();
+			roll(size);
+		}
+		if (writeBuffer.remaining() < size) {
+			flushWriteBuffer();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		if (size > writeBuffer.capacity()) {
+			ByteBuffer record = ByteBuffer.allocate(size);
+			record.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+			while (record.hasRemaining()) {
+				position += segment.write(record, position);
+			}
+			return;
+		}
+		writeBuffer.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+	}
+
+	private void flushWriteBuffer() throws IOException {
+		writeBuffer.flip();
+		while (writeBuffer.hasRemaining()) {
+			position += segment.write(writeBuffer, position);
+		}
+		writeBuffer.clear();
+	}
+
+	/**
+	 * Closes the current segment and starts a new, zero-filled one.
+	 * @param minSize The size of the record which must fit into the new segment.
+	 */
+	private void roll(long minSize) throws IOException {
+		if (segment != null) {
+			segment.force(false);
+			segment.close();
+		}
+		segmentNumber++;
+		segmentCapacity = Math.max(segmentSize, minSize + HEADER_SIZE);
+		Path path = segmentPath(segmentNumber);
+		try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+			// Write the zeros rather than only setting the length, so appends never allocate blocks
+			byte[] zeros = new byte[WRITE_BUFFER_SIZE];
+			for (long written = 0; written < segmentCapacity; written += zeros.length) {
+				file.write(zeros, 0, (int) Math.min(zeros.length, segmentCapacity - written));
+			}
+			file.getFD().sync();
+		}
+		segment = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		position = 0;
+	}
+
+	private void recover(RecordHandler handler) throws IOException {
+		List<Path> segments = listSegments();
+		for (Path path : segments) {
+			segmentNumber = segmentNumber(path);
+			segment = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			segmentCapacity = segment.size();
+			boolean intact = replaySegment(handler);
+			if (!intact) {
+				// A torn write: clear it so it cannot be mistaken for records appended later
+				ByteBuffer zeros = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+				for (long offset = position; offset < segmentCapacity; offset += WRITE_BUFFER_SIZE) {
+					zeros.clear().limit((int) Math.min(WRITE_BUFFER_SIZE, segmentCapacity - offset));
+					segment.write(zeros, offset);
+				}
+				segment.force(false);
+			}
+			if (path != segments.get(segments.size() - 1)) {
+				segment.close();
+			}
+		}
+		if (segment == null) {
+			roll(0);
+		}
+	}
+
+	/**
+	 * Replays the current segment and leaves position after its last intact record.
+	 * @return false if the segment ends with a corrupt or partially written record.
+	 */
+	private boolean replaySegment(RecordHandler handler) throws IOException {
+		MappedByteBuffer buffer = segment.map(FileChannel.MapMode.READ_ONLY, 0, segmentCapacity);
+		CRC32 crc = new CRC32();
+		position = 0;
+		while (buffer.remaining() >= HEADER_SIZE) {
+			int length = buffer.getInt();
+			if (length == 0) {
+				return true;
+			}
+			int checksum = buffer.getInt();
+			if (length < 0 || length > buffer.remaining()) {
+				return false;
+			}
+			byte[] payload = new byte[length];
+			buffer.get(payload);
+			crc.reset();
+			crc.update(payload);
+			if ((int) crc.getValue() != checksum) {
+				return false;
+			}
+			handler.handle(payload[0], new DataInputStream(new ByteArrayInputStream(payload, 1, length - 1)));
+			position = buffer.position();
+		}
+		return true;
+	}
+
+	private List<Path> listSegments() throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.filter(path -> path.getFileName().toString().matches("segment-\\d+\\.wal"))
+					.sorted()
+					.collect(Collectors.toList());
+		}
+	}
+
+	private Path segmentPath(long number) {
+		return directory.resolve(String.format("segment-%020d.wal", number));
+	}
+
+	private static long segmentNumber(Path path) {
+		String name = path.getFileName().toString();
+		return Long.parseLong(name.substring("segment-".length(), name.length() - ".wal".length()));
+	}
+
+	private static class PendingRecord {
+		byte[] payload; // null for a segment switch
+		long segment;
+		final CompletableFuture<Void> durable = new CompletableFuture<>();
+	}
+}
@@ -0,0 +1,78 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures writes per second of an in-process 5 server cluster for different batch sizes.
+ * Simulated failures are disabled so that the numbers reflect the consensus cost only. Group commit needs
+ * Multi-Paxos mode, so in basic mode every batch size measures unbatched writes. Each client overwrites a
+ * key of its own, written once before the measurement, so a write that returns no previous value failed:
+ * failed writes are reported separately and not counted as throughput.
+ * Usage: java BatchingBenchmark [multi|basic] [clients] [seconds]
+ */
+public class BatchingBenchmark {
+	
+	private static final int NUM_SERVERS = 5;
+	private static final int[] BATCH_SIZES = { 1, 4, 16, 64, 256 };
+	private static final int LINGER_MILLIS = 2;
+	
+	public static void main(String[] args) throws Exception {
+		boolean multiPaxos = args.length == 0 || !args[0].equalsIgnoreCase("basic");
+		int clients = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		System.setProperty("logger.stdout", "false");
+		System.setProperty("logger.level", "INFO");
+		
+		System.out.println("batchSize,writesPerSecond,failed");
+		for (int batchSize : BATCH_SIZES) {
+			Server[] servers = createCluster(multiPaxos, batchSize);
+			AtomicLong failed = new AtomicLong();
+			double writesPerSecond = run(servers, clients, seconds, failed);
+			System.out.println(batchSize + "," + String.format("%.1f", writesPerSecond) + "," + failed.get());
+			for (Server server : servers) {
+				server.close();
+			}
+		}
+		System.exit(0);
+	}
+	
+	private static Server[] createCluster(boolean multiPaxos, int batchSize) throws Exception {
+		Server[] servers = BenchmarkCluster.create(NUM_SERVERS, multiPaxos);
+		if (batchSize > 1) {
+			for (Server server : servers) {
+				server.setBatching(batchSize, LINGER_MILLIS);
+			}
+		}
+		BenchmarkCluster.connect(servers, servers);
+		return servers;
+	}
+	
+	private static double run(Server[] servers, int clients, int seconds, AtomicLong failed) throws Exception {
+		for (int c = 0; c < clients; c++) {
+			servers[c % servers.length].put("key-" + c, "value");
+		}
+		AtomicLong writes = new AtomicLong();
+		long end = System.nanoTime() + seconds * 1_000_000_000L;
+		CountDownLatch done = new CountDownLatch(clients);
+		for (int c = 0; c < clients; c++) {
+			int client = c;
+			new Thread(() -> {
+				Server server = servers[client % servers.length];
+				try {
+					while (System.nanoTime() < end) {
+						if (server.put("key-" + client, "value") != null) {
+							writes.incrementAndGet();
+						} else {
+							failed.incrementAndGet();
+						}
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				} finally {
+					done.countDown();
+				}
+			}).start();
+		}
+		done.await();
+		return writes.get() / (double) seconds;
+	}
+}
@@ -0,0 +1,54 @@
+import java.rmi.RemoteException;
+
+/**
+ * Builds the in-process clusters of the benchmarks and tests: the servers call each other directly instead
+ * of through RMI, and simulated failures are disabled. Benchmarks that configure the servers before they
+ * take requests, or hand them wrapped learners, create and connect them in two steps.
+ * @author ZHANG Mao
+ *
+ */
+public class BenchmarkCluster {
+
+	private BenchmarkCluster() {
+	}
+
+	/**
+	 * @return A started cluster of the given size, every server an acceptor, learner and proposer of all.
+	 */
+	static Server[] start(int numServers, boolean multiPaxos) throws RemoteException {
+		Server[] servers = create(numServers, multiPaxos);
+		connect(servers, servers);
+		return servers;
+	}
+
+	/**
+	 * @return Servers named as PaxosServerCreator names them, not yet connected to each other.
+	 */
+	static Server[] create(int numServers, boolean multiPaxos) throws RemoteException {
+		return create(numServers, multiPaxos, "");
+	}
+
+	/**
+	 * @param nameSuffix Appended to the server names, to tell apart the servers of several clusters.
+	 * @return Servers not yet connected to each other.
+	 */
+	static Server[] create(int numServers, boolean multiPaxos, String nameSuffix) throws RemoteException {
+		Server[] servers = new Server[numServers];
+		for (int i = 0; i < numServers; i++) {
+			servers[i] = new Server(i, numServers, multiPaxos, "Server_" + i + nameSuffix);
+			servers[i].setFailureProbability(0);
+		}
+		return servers;
+	}
+
+	/**
+	 * Makes every server an acceptor and proposer of all the servers, and hands each the same learners.
+	 */
+	static void connect(Server[] servers, LearnerInterface[] learners) {
+		for (Server server : servers) {
+			server.setAcceptors(servers);
+			server.setLearners(learners);
+			server.setProposers(servers);
+		}
+	}
+}
@@ -0,0 +1,95 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput on disjoint keys for a growing number of threads, against an in-process 5 server cluster with
+ * simulated failures disabled. Each thread works on keys no other thread touches, so with per-key locking
+ * the only shared state is the lock stripes, and throughput should grow with the threads up to the number
+ * of cores. Two workloads are measured: prepare and accept on a single acceptor, which isolates the
+ * acceptor's locking, and full puts through basic Paxos, with gets of the written keys.
+ * Usage: java DisjointKeyThroughput [maxThreads] [seconds]
+ */
+public class DisjointKeyThroughput {
+
+	private static final int NUM_SERVERS = 5;
+
+	/**
+	 * One operation of a thread on its own n-th key.
+	 */
+	@FunctionalInterface
+	private interface Workload {
+		void run(int thread, long n) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 2 * Runtime.getRuntime().availableProcessors();
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		System.setProperty("logger.stdout", "false");
+		System.setProperty("logger.level", "INFO");
+
+		Server[] servers = BenchmarkCluster.start(NUM_SERVERS, false);
+
+		System.out.println("cores," + Runtime.getRuntime().availableProcessors());
+		System.out.println("workload,threads,opsPerSecond,speedup,failed");
+		Server acceptor = servers[0];
+		run("acceptor", maxThreads, seconds, (thread, n) -> {
+			String key = "acceptor-" + thread + "-" + n;
+			if (!acceptor.prepare(key, 0, 1).isPromise() || !acceptor.accept(key, 0, 1, new Operation("PUT", key, "value"))) {
+				throw new IllegalStateException("Rejected proposal on a fresh key");
+			}
+		});
+		run("put", maxThreads, seconds, (thread, n) -> {
+			String key = "put-" + thread + "-" + n;
+			Server server = servers[thread % NUM_SERVERS];
+			server.put(key, "value");
+			if (server.get(key) == null) {
+				throw new IllegalStateException("Write of " + key + " was not applied");
+			}
+		});
+		for (Server server : servers) {
+			server.close();
+		}
+		System.exit(0);
+	}
+
+	private static void run(String name, int maxThreads, int seconds, Workload workload) throws InterruptedException {
+		double single = 0;
+		// Each round uses new keys, so no round finds the state another round left behind
+		long[] round = { 0 };
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			round[0]++;
+			AtomicLong operations = new AtomicLong();
+			AtomicLong failed = new AtomicLong();
+			CountDownLatch done = new CountDownLatch(threads);
+			long start = System.nanoTime();
+			long end = start + seconds * 1_000_000_000L;
+			for (int t = 0; t < threads; t++) {
+				int thread = (int) (round[0] * 1000 + t);
+				Thread worker = new Thread(() -> {
+					long n = 0;
+					try {
+						while (System.nanoTime() < end) {
+							try {
+								workload.run(thread, n++);
+								operations.incrementAndGet();
+							} catch (Exception e) {
+								failed.incrementAndGet();
+							}
+						}
+					} finally {
+						done.countDown();
+					}
+				}, name + "-" + t);
+				worker.setDaemon(true);
+				worker.start();
+			}
+			done.await();
+			double opsPerSecond = operations.get() / ((System.nanoTime() - start) / 1e9);
+			if (threads == 1) {
+				single = opsPerSecond;
+			}
+			System.out.println(name + "," + threads + "," + String.format("%.1f", opsPerSecond) + ","
+					+ String.format("%.2f", opsPerSecond / single) + "," + failed.get());
+		}
+	}
+}
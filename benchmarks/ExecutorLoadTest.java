@@ -0,0 +1,92 @@
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test comparing the thread-pool execution model with the virtual-thread one. Thousands of concurrent
+ * clients issue puts against an in-process 5 server cluster; throughput, latency percentiles and failed
+ * writes (quorum timeouts) are reported for each mode. The virtual-thread mode needs Java 21.
+ * Usage: java ExecutorLoadTest [basic|multi] [clients] [seconds]
+ */
+public class ExecutorLoadTest {
+	
+	private static final int NUM_SERVERS = 5;
+	private static final int MAX_SAMPLES_PER_CLIENT = 100_000;
+	
+	public static void main(String[] args) throws Exception {
+		boolean multiPaxos = args.length > 0 && args[0].equalsIgnoreCase("multi");
+		int clients = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		System.setProperty("logger.stdout", "false");
+		System.setProperty("logger.level", "INFO");
+		
+		System.out.println("executor,clients,writesPerSecond,failed,p50Millis,p99Millis,maxMillis");
+		for (boolean virtualThreads : new boolean[] { false, true }) {
+			Server[] servers = BenchmarkCluster.create(NUM_SERVERS, multiPaxos);
+			boolean usingVirtualThreads = false;
+			if (virtualThreads) {
+				for (Server server : servers) {
+					usingVirtualThreads = server.useVirtualThreads();
+				}
+			}
+			BenchmarkCluster.connect(servers, servers);
+			if (virtualThreads && !usingVirtualThreads) {
+				System.out.println("virtual,unavailable on Java " + Runtime.version().feature());
+				continue;
+			}
+			run(virtualThreads ? "virtual" : "pool", servers, clients, seconds);
+		}
+		System.exit(0);
+	}
+	
+	private static void run(String mode, Server[] servers, int clients, int seconds) throws InterruptedException {
+		long[][] latencies = new long[clients][];
+		int[] counts = new int[clients];
+		AtomicLong failed = new AtomicLong();
+		long end = System.nanoTime() + seconds * 1_000_000_000L;
+		CountDownLatch done = new CountDownLatch(clients);
+		for (int c = 0; c < clients; c++) {
+			int client = c;
+			latencies[c] = new long[MAX_SAMPLES_PER_CLIENT];
+			Thread thread = new Thread(() -> {
+				Server server = servers[client % servers.length];
+				try {
+					while (System.nanoTime() < end && counts[client] < MAX_SAMPLES_PER_CLIENT) {
+						long start = System.nanoTime();
+						server.put("key-" + client + "-" + counts[client], "value");
+						latencies[client][counts[client]++] = System.nanoTime() - start;
+						if (server.get("key-" + client + "-" + (counts[client] - 1)) == null) {
+							failed.incrementAndGet();
+						}
+					}
+				} catch (Exception e) {
+					failed.incrementAndGet();
+				} finally {
+					done.countDown();
+				}
+			}, "client-" + c);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		done.await();
+		
+		int total = Arrays.stream(counts).sum();
+		long[] all = new long[total];
+		int offset = 0;
+		for (int c = 0; c < clients; c++) {
+			System.arraycopy(latencies[c], 0, all, offset, counts[c]);
+			offset += counts[c];
+		}
+		Arrays.sort(all);
+		System.out.println(mode + "," + clients + "," + String.format("%.1f", total / (double) seconds) + "," + failed.get()
+				+ "," + millis(all, 0.50) + "," + millis(all, 0.99) + "," + millis(all, 1.0));
+	}
+	
+	private static String millis(long[] sorted, double quantile) {
+		if (sorted.length == 0) {
+			return "-";
+		}
+		int index = (int) Math.min(sorted.length - 1, Math.ceil(quantile * sorted.length) - 1);
+		return String.format("%.2f", sorted[Math.max(0, index)] / 1e6);
+	}
+}
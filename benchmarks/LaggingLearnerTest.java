@@ -0,0 +1,116 @@
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Test of a learner that falls behind in basic mode, against an in-process 3 server cluster with simulated
+ * failures disabled. The notices of decided instances to server 2 are silently dropped while it is cut off,
+ * as a notifier that gave up on them would, so server 2 misses instances of the key. Two ways back are
+ * checked: proposing for the key itself, where an acceptor in a later instance tells it that it is behind,
+ * and receiving the notice of a later instance, which shows the gap. Either way server 2 must take the
+ * key's state from the other learners, report the right previous values, and never revert the key.
+ * Usage: java LaggingLearnerTest
+ */
+public class LaggingLearnerTest {
+
+	private static final int NUM_SERVERS = 3;
+	private static final int LAGGING = 2;
+	private static final long WAIT_MILLIS = 5000;
+
+	private static int failures;
+
+	public static void main(String[] args) throws Exception {
+		System.setProperty("logger.stdout", "false");
+		System.setProperty("logger.level", "INFO");
+
+		Server[] servers = BenchmarkCluster.create(NUM_SERVERS, false);
+		AtomicBoolean cutOff = new AtomicBoolean();
+		LearnerInterface[] learners = Arrays.copyOf(servers, NUM_SERVERS, LearnerInterface[].class);
+		learners[LAGGING] = (LearnerInterface) Proxy.newProxyInstance(LearnerInterface.class.getClassLoader(),
+				new Class<?>[] { LearnerInterface.class }, (proxy, method, methodArgs) -> {
+					if (method.getName().equals("learn") && cutOff.get()) {
+						return null;
+					}
+					try {
+						return method.invoke(servers[LAGGING], methodArgs);
+					} catch (InvocationTargetException e) {
+						throw e.getCause();
+					}
+				});
+		BenchmarkCluster.connect(servers, learners);
+		Server lagging = servers[LAGGING];
+
+		// The lagging server proposes for a key it missed two writes of
+		cutOff.set(true);
+		servers[0].put("proposed", "1");
+		servers[1].put("proposed", "2");
+		check("missed writes are not applied", lagging.get("proposed") == null);
+		cutOff.set(false);
+		check("write after the gap returns the latest value", "2".equals(lagging.put("proposed", "3")));
+		for (int i = 0; i < NUM_SERVERS; i++) {
+			check("server " + i + " has the write after the gap", awaitValue(servers[i], "proposed", "3"));
+		}
+		check("next write returns the previous value", "3".equals(servers[0].put("proposed", "4")));
+		check("lagging server applies the next write", awaitValue(lagging, "proposed", "4"));
+
+		// The lagging server hears of a later instance of a key it missed writes of
+		cutOff.set(true);
+		servers[0].put("notified", "1");
+		servers[1].put("notified", "2");
+		cutOff.set(false);
+		servers[0].put("notified", "3");
+		check("notice after the gap catches the learner up", awaitValue(lagging, "notified", "3"));
+		check("deleting returns the latest value", "3".equals(lagging.delete("notified")));
+		for (int i = 0; i < NUM_SERVERS; i++) {
+			check("server " + i + " has the delete", awaitValue(servers[i], "notified", null));
+		}
+		check("lagging server counted its catch-ups", awaitCatchUps(lagging, 2));
+
+		for (Server server : servers) {
+			server.close();
+		}
+		System.out.println(failures == 0 ? "All checks passed" : failures + " checks failed");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	/**
+	 * @return Whether the server has the value (null for absent) within the wait time. Other learners are
+	 *         notified in the background, so their state trails the proposer's by a little.
+	 */
+	private static boolean awaitValue(Server server, String key, String value) throws Exception {
+		long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+		while (true) {
+			String current = server.get(key);
+			if (value == null ? current == null : value.equals(current)) {
+				return true;
+			}
+			if (System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * @return Whether the server counted the number of catch-ups within the wait time. The counter is
+	 *         raised once the installed state is durable, after it became visible.
+	 */
+	private static boolean awaitCatchUps(Server server, long catchUps) throws Exception {
+		long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+		while (server.getMetrics().get("commit.caught_up_keys") < catchUps) {
+			if (System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			Thread.sleep(10);
+		}
+		return true;
+	}
+
+	private static void check(String name, boolean passed) {
+		System.out.println((passed ? "PASS " : "FAIL ") + name);
+		if (!passed) {
+			failures++;
+		}
+	}
+}
@@ -0,0 +1,56 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares operations per second of the Server request path when every log line is written synchronously
+ * (opening and closing the log file per line, as the logger used to) and when lines go through the
+ * asynchronous ring buffer. Simulated failures and stdout echo are disabled for both runs.
+ * Usage: java LoggerBenchmark [basic|multi] [clients] [seconds]
+ */
+public class LoggerBenchmark {
+	
+	private static final int NUM_SERVERS = 5;
+	
+	public static void main(String[] args) throws Exception {
+		boolean multiPaxos = args.length > 0 && args[0].equalsIgnoreCase("multi");
+		int clients = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		System.setProperty("logger.stdout", "false");
+		
+		System.out.println("logger,opsPerSecond");
+		for (String async : new String[] { "false", "true" }) {
+			System.setProperty("logger.async", async);
+			Server[] servers = BenchmarkCluster.start(NUM_SERVERS, multiPaxos);
+			double opsPerSecond = run(servers, clients, seconds);
+			System.out.println((async.equals("true") ? "async" : "sync") + "," + String.format("%.1f", opsPerSecond));
+		}
+		System.exit(0);
+	}
+	
+	private static double run(Server[] servers, int clients, int seconds) throws InterruptedException {
+		AtomicLong operations = new AtomicLong();
+		long end = System.nanoTime() + seconds * 1_000_000_000L;
+		CountDownLatch done = new CountDownLatch(clients);
+		for (int c = 0; c < clients; c++) {
+			int client = c;
+			new Thread(() -> {
+				Server server = servers[client % servers.length];
+				long i = 0;
+				try {
+					while (System.nanoTime() < end) {
+						String key = "key-" + client + "-" + (i++ % 1000);
+						server.put(key, "value");
+						server.get(key);
+						operations.addAndGet(2);
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				} finally {
+					done.countDown();
+				}
+			}).start();
+		}
+		done.await();
+		return operations.get() / (double) seconds;
+	}
+}
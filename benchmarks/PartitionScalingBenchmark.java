@@ -0,0 +1,80 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures writes per second of an in-process 5 server cluster whose keyspace is split into a growing
+ * number of partitions, each an independent consensus group. Clients write random keys through the
+ * router of one server each. Simulated failures are disabled.
+ * Usage: java PartitionScalingBenchmark [basic|multi] [clients] [seconds] [partition counts, e.g. 1,2,4,8]
+ */
+public class PartitionScalingBenchmark {
+
+	private static final int NUM_SERVERS = 5;
+
+	public static void main(String[] args) throws Exception {
+		boolean multiPaxos = args.length > 0 && args[0].equalsIgnoreCase("multi");
+		int clients = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		String[] partitionCounts = (args.length > 3 ? args[3] : "1,2,4,8").split(",");
+		System.setProperty("logger.stdout", "false");
+		System.setProperty("logger.level", "WARN");
+
+		System.out.println("partitions,writesPerSecond");
+		for (String partitionCount : partitionCounts) {
+			int partitions = Integer.parseInt(partitionCount);
+			Server[][] servers = createCluster(multiPaxos, partitions);
+			PartitionedServer[] routers = new PartitionedServer[NUM_SERVERS];
+			for (int i = 0; i < NUM_SERVERS; i++) {
+				Server[] members = new Server[partitions];
+				for (int partition = 0; partition < partitions; partition++) {
+					members[partition] = servers[partition][i];
+				}
+				routers[i] = new PartitionedServer(members);
+			}
+			double writesPerSecond = run(routers, clients, seconds);
+			System.out.println(partitions + "," + String.format("%.1f", writesPerSecond));
+			for (Server[] group : servers) {
+				for (Server server : group) {
+					server.close();
+				}
+			}
+		}
+		System.exit(0);
+	}
+
+	private static Server[][] createCluster(boolean multiPaxos, int partitions) throws Exception {
+		Server[][] servers = new Server[partitions][];
+		for (int partition = 0; partition < partitions; partition++) {
+			servers[partition] = BenchmarkCluster.create(NUM_SERVERS, multiPaxos, "_P" + partition);
+			BenchmarkCluster.connect(servers[partition], servers[partition]);
+			servers[partition][partition % NUM_SERVERS].lead();
+		}
+		return servers;
+	}
+
+	private static double run(PartitionedServer[] routers, int clients, int seconds) throws InterruptedException {
+		AtomicLong writes = new AtomicLong();
+		long end = System.nanoTime() + seconds * 1_000_000_000L;
+		CountDownLatch done = new CountDownLatch(clients);
+		for (int c = 0; c < clients; c++) {
+			int client = c;
+			new Thread(() -> {
+				PartitionedServer router = routers[client % routers.length];
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				try {
+					while (System.nanoTime() < end) {
+						router.put("key-" + random.nextInt(1_000_000), "value");
+						writes.incrementAndGet();
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				} finally {
+					done.countDown();
+				}
+			}).start();
+		}
+		done.await();
+		return writes.get() / (double) seconds;
+	}
+}
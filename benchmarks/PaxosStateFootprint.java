@@ -0,0 +1,64 @@
+/**
+ * Measures the heap held per key by the basic Paxos state of a server. First every key gets a promise
+ * and an accepted value in its first instance but no decision, then every instance is learned, then every
+ * key is written a second time, in its second instance. Heap use is sampled after a full collection at each step and divided by the
+ * number of keys. The store_only row is a server that applied the same writes without Paxos: the Paxos
+ * state of a learned key is what the later rows add to it. Simulated failures are disabled.
+ * Usage: java -Xmx2g PaxosStateFootprint [keys]
+ */
+public class PaxosStateFootprint {
+
+	public static void main(String[] args) throws Exception {
+		int keys = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+		System.setProperty("logger.stdout", "false");
+		System.setProperty("logger.level", "WARN");
+
+		System.out.println("step,keys,bytesPerKey");
+		Server store = BenchmarkCluster.create(1, false)[0];
+		long baseline = usedHeap();
+		for (int i = 0; i < keys; i++) {
+			String key = "key" + i;
+			store.applyOperation(new Operation("PUT", key, "value" + i));
+		}
+		report("store_only", keys, baseline);
+		store.close();
+		store = null;
+
+		Server server = BenchmarkCluster.create(1, false)[0];
+		baseline = usedHeap();
+		for (int i = 0; i < keys; i++) {
+			String key = "key" + i;
+			server.prepare(key, 0, 1);
+			server.accept(key, 0, 1, new Operation("PUT", key, "value" + i));
+		}
+		report("accepted", keys, baseline);
+
+		for (int i = 0; i < keys; i++) {
+			String key = "key" + i;
+			server.learn(key, 0, new Operation("PUT", key, "value" + i));
+		}
+		report("learned", keys, baseline);
+
+		for (int i = 0; i < keys; i++) {
+			String key = "key" + i;
+			server.prepare(key, 1, 2);
+			server.accept(key, 1, 2, new Operation("PUT", key, "value" + i));
+			server.learn(key, 1, new Operation("PUT", key, "value" + i));
+		}
+		report("rewritten", keys, baseline);
+		System.exit(0);
+	}
+
+	private static void report(String step, int keys, long baseline) throws InterruptedException {
+		System.out.println(step + "," + keys + "," + (usedHeap() - baseline) / keys);
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,150 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Compares the storage engines behind the key-value state machine. Each engine is loaded with the given
+ * number of keys, then the heap used per entry is sampled after a full collection, next to the memory the
+ * engine reserved outside the heap. Then several threads overwrite, delete and read random keys for a fixed
+ * time, with value lengths varying so that records move, while every stop-the-world collection is recorded.
+ * For exact heap figures run one engine per JVM.
+ * Usage: java -Xmx8g StorageEngineBenchmark [map|array|offheap|all] [keys] [valueBytes] [churnSeconds] [threads]
+ */
+public class StorageEngineBenchmark {
+
+	private static final LongAdder pauses = new LongAdder();
+	private static final LongAdder pauseMillis = new LongAdder();
+	private static final AtomicLong maxPauseMillis = new AtomicLong();
+
+	public static void main(String[] args) throws Exception {
+		String engines = args.length > 0 ? args[0] : "all";
+		int keys = args.length > 1 ? Integer.parseInt(args[1]) : 2_000_000;
+		int valueBytes = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		int churnSeconds = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+		int threads = args.length > 4 ? Integer.parseInt(args[4]) : 4;
+		listenForPauses();
+
+		System.out.println("engine,keys,valueBytes,heapBytesPerEntry,offHeapBytesPerEntry,churnOpsPerSec,gcPauses,gcPauseMs,maxGcPauseMs,heapBytesPerEntryAfterChurn,offHeapBytesPerEntryAfterChurn");
+		for (String engine : engines.equals("all") ? new String[] { "map", "array", "offheap" } : new String[] { engines }) {
+			run(engine, keys, valueBytes, churnSeconds, threads);
+		}
+	}
+
+	private static StorageEngine create(String engine) {
+		switch (engine) {
+			case "map":
+				return new MapStorageEngine();
+			case "array":
+				return new CompactStorageEngine(false);
+			case "offheap":
+				return new CompactStorageEngine(true);
+			default:
+				throw new IllegalArgumentException("Unknown engine: " + engine);
+		}
+	}
+
+	private static void run(String name, int keys, int valueBytes, int churnSeconds, int threads) throws Exception {
+		long baseline = usedHeap();
+		StorageEngine engine = create(name);
+		for (int i = 0; i < keys; i++) {
+			engine.put("key" + i, value(valueBytes));
+		}
+		long heapPerEntry = (usedHeap() - baseline) / keys;
+		long offHeapPerEntry = offHeapBytes(engine, name) / keys;
+
+		pauses.reset();
+		pauseMillis.reset();
+		maxPauseMillis.set(0);
+		LongAdder operations = new LongAdder();
+		long deadline = System.nanoTime() + churnSeconds * 1_000_000_000L;
+		List<Thread> workers = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			Thread worker = new Thread(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				while (System.nanoTime() < deadline) {
+					for (int i = 0; i < 1000; i++) {
+						String key = "key" + random.nextInt(keys);
+						int dice = random.nextInt(10);
+						if (dice < 5) {
+							engine.get(key);
+						} else if (dice < 9) {
+							engine.put(key, value(valueBytes / 2 + random.nextInt(valueBytes + 1)));
+						} else if (engine.remove(key) != null) {
+							engine.put(key, value(valueBytes));
+						}
+					}
+					operations.add(1000);
+				}
+			});
+			workers.add(worker);
+			worker.start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		long churnPauses = pauses.sum();
+		long churnPauseMillis = pauseMillis.sum();
+		long churnMaxPauseMillis = maxPauseMillis.get();
+
+		long heapPerEntryAfterChurn = (usedHeap() - baseline) / keys;
+		System.out.println(name + "," + keys + "," + valueBytes + "," + heapPerEntry + "," + offHeapPerEntry + ","
+				+ operations.sum() / churnSeconds + "," + churnPauses + "," + churnPauseMillis + "," + churnMaxPauseMillis
+				+ "," + heapPerEntryAfterChurn + "," + offHeapBytes(engine, name) / keys);
+	}
+
+	/**
+	 * @return The bytes of the direct pages of the engine. Array pages are counted in the heap.
+	 */
+	private static long offHeapBytes(StorageEngine engine, String name) {
+		return name.equals("offheap") ? engine.reservedBytes() : 0;
+	}
+
+	private static String value(int length) {
+		char[] chars = new char[length];
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (int i = 0; i < length; i++) {
+			chars[i] = (char) ('a' + random.nextInt(26));
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Records the duration of every collection that stops the application. Cycles of a concurrent
+	 * collector run alongside it and are left out.
+	 */
+	private static void listenForPauses() {
+		for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+			((NotificationEmitter) collector).addNotificationListener((notification, handback) -> {
+				if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+					return;
+				}
+				GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+				if (info.getGcName().contains("Concurrent") || info.getGcCause().equals("System.gc()")) {
+					return;
+				}
+				long duration = info.getGcInfo().getDuration();
+				pauses.increment();
+				pauseMillis.add(duration);
+				maxPauseMillis.accumulateAndGet(duration, Math::max);
+			}, null, null);
+		}
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
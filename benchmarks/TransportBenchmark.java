@@ -0,0 +1,100 @@
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Loopback benchmark comparing Java RMI with the binary NIO transport. Concurrent callers send acceptor
+ * prepare requests and key-value gets to one server over each transport; messages per second and latency
+ * percentiles are reported per transport and method.
+ * Usage: java TransportBenchmark [callers] [seconds] [port]
+ */
+public class TransportBenchmark {
+
+	private static final int MAX_SAMPLES_PER_CALLER = 200_000;
+
+	@FunctionalInterface
+	private interface Call {
+		void invoke(int caller, long sequence) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int callers = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		int port = args.length > 2 ? Integer.parseInt(args[2]) : 16000;
+		System.setProperty("logger.stdout", "false");
+		System.setProperty("logger.level", "WARN");
+
+		Server server = BenchmarkCluster.start(1, false)[0];
+		server.put("key", "value");
+		Registry registry = LocateRegistry.createRegistry(port);
+		registry.rebind("KVServer" + port, server);
+		NioServer nioServer = new NioServer(port + PaxosServerCreator.NIO_PORT_OFFSET, server);
+
+		Registry client = LocateRegistry.getRegistry("localhost", port);
+		AcceptorInterface rmiAcceptor = (AcceptorInterface) client.lookup("KVServer" + port);
+		KVStoreInterface rmiStore = (KVStoreInterface) client.lookup("KVServer" + port);
+		NioPeer nioPeer = new NioPeer("localhost", port + PaxosServerCreator.NIO_PORT_OFFSET);
+
+		System.out.println("transport,method,callers,messagesPerSecond,p50Micros,p99Micros,maxMicros");
+		for (int round = 0; round < 2; round++) {
+			boolean report = round == 1; // the first round warms up both transports
+			int duration = report ? seconds : 1;
+			run("rmi", "prepare", callers, duration, report,
+					(caller, sequence) -> rmiAcceptor.prepare("k" + caller, 0, sequence));
+			run("nio", "prepare", callers, duration, report,
+					(caller, sequence) -> nioPeer.prepare("k" + caller, 0, sequence));
+			run("rmi", "get", callers, duration, report, (caller, sequence) -> rmiStore.get("key"));
+			run("nio", "get", callers, duration, report, (caller, sequence) -> nioPeer.get("key"));
+		}
+		nioPeer.close();
+		nioServer.close();
+		System.exit(0);
+	}
+
+	private static void run(String transport, String method, int callers, int seconds, boolean report, Call call)
+			throws InterruptedException {
+		long[][] latencies = new long[callers][MAX_SAMPLES_PER_CALLER];
+		int[] counts = new int[callers];
+		long end = System.nanoTime() + seconds * 1_000_000_000L;
+		CountDownLatch done = new CountDownLatch(callers);
+		for (int c = 0; c < callers; c++) {
+			int caller = c;
+			Thread thread = new Thread(() -> {
+				try {
+					long sequence = 1;
+					while (System.nanoTime() < end && counts[caller] < MAX_SAMPLES_PER_CALLER) {
+						long start = System.nanoTime();
+						call.invoke(caller, sequence++);
+						latencies[caller][counts[caller]++] = System.nanoTime() - start;
+					}
+				} catch (Exception e) {
+					System.err.println(transport + " " + method + " failed: " + e);
+				} finally {
+					done.countDown();
+				}
+			});
+			thread.start();
+		}
+		done.await();
+		if (!report) {
+			return;
+		}
+
+		int total = Arrays.stream(counts).sum();
+		long[] all = new long[total];
+		int offset = 0;
+		for (int c = 0; c < callers; c++) {
+			System.arraycopy(latencies[c], 0, all, offset, counts[c]);
+			offset += counts[c];
+		}
+		Arrays.sort(all);
+		System.out.println(transport + "," + method + "," + callers + "," + (total / seconds) + ","
+				+ percentile(all, 0.50) / 1000 + "," + percentile(all, 0.99) / 1000 + ","
+				+ (total == 0 ? 0 : all[total - 1] / 1000));
+	}
+
+	private static long percentile(long[] sorted, double fraction) {
+		return sorted.length == 0 ? 0 : sorted[(int) Math.min(sorted.length - 1, Math.round(fraction * sorted.length))];
+	}
+}
@@ -0,0 +1,75 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Measures group commit and recovery of the write-ahead log. Writers append accept records concurrently,
+ * each waiting for its record to be durable as an acceptor does, for several writer counts. The log of the
+ * last run is then reopened and replayed to measure recovery time.
+ * Usage: java WriteAheadLogBenchmark [directory] [records]
+ */
+public class WriteAheadLogBenchmark {
+	
+	private static final int[] WRITER_COUNTS = { 1, 16, 256 };
+	
+	public static void main(String[] args) throws Exception {
+		Path directory = Paths.get(args.length > 0 ? args[0] : "wal-benchmark");
+		int records = args.length > 1 ? Integer.parseInt(args[1]) : 2_000_000;
+		Operation operation = new Operation("PUT", "key-0000000000", "value-0123456789");
+		
+		System.out.println("writers,records,recordsPerSecond,recordsPerFsync");
+		for (int writers : WRITER_COUNTS) {
+			deleteDirectory(directory);
+			WriteAheadLog wal = WriteAheadLog.open(directory, (type, in) -> { });
+			long start = System.nanoTime();
+			CountDownLatch done = new CountDownLatch(writers);
+			for (int w = 0; w < writers; w++) {
+				int writer = w;
+				new Thread(() -> {
+					for (long i = writer; i < records; i += writers) {
+						long slot = i;
+						CompletableFuture<Void> durable = wal.append(WriteAheadLog.LOG_ACCEPT, out -> {
+							out.writeLong(slot);
+							out.writeLong(1); // ballot
+							operation.writeTo(out);
+						});
+						durable.join();
+					}
+					done.countDown();
+				}).start();
+			}
+			done.await();
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.println(writers + "," + records + "," + String.format("%.0f", records / seconds) + ","
+					+ String.format("%.1f", wal.getRecordCount() / (double) wal.getSyncCount()));
+			wal.close();
+		}
+		
+		AtomicLong replayed = new AtomicLong();
+		long start = System.nanoTime();
+		WriteAheadLog wal = WriteAheadLog.open(directory, (type, in) -> {
+			in.readLong();
+			in.readLong();
+			Operation.readFrom(in);
+			replayed.incrementAndGet();
+		});
+		System.out.println("recovery: " + replayed.get() + " records in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+		wal.close();
+		deleteDirectory(directory);
+	}
+	
+	private static void deleteDirectory(Path directory) throws IOException {
+		if (!Files.exists(directory)) {
+			return;
+		}
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+}
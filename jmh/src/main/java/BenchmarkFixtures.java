@@ -0,0 +1,158 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.rmi.RemoteException;
+import java.util.function.IntFunction;
+
+/**
+ * Sets up the code under test for the JMH benchmarks in kvstore.jmh. JMH only accepts benchmarks in a
+ * named package, which cannot refer to the classes of the default package, so each fixture is handed to
+ * the benchmarks as a plain IntFunction: the argument is the invocation number, the result is consumed.
+ * Fixtures are also AutoCloseable and stop the servers they started when closed.
+ * Simulated failures are disabled and the servers only log warnings, to keep both out of the numbers.
+ * @author ZHANG Mao
+ *
+ */
+public class BenchmarkFixtures {
+
+	private static final int NUM_SERVERS = 5;
+	private static final int KEYS = 1024; // a power of two, keys are picked with a mask
+
+	@FunctionalInterface
+	private interface Invocation {
+		Object invoke(int n) throws Exception;
+	}
+
+	/**
+	 * @param name The name of a fixture method of this class.
+	 * @return The fixture.
+	 */
+	public static IntFunction<Object> create(String name) throws Exception {
+		System.setProperty("logger.stdout", "false");
+		System.setProperty("logger.level", "WARN");
+		// Every fixture method returns a Fixture, which casts without an unchecked conversion
+		return (Fixture) BenchmarkFixtures.class.getDeclaredMethod(name).invoke(null);
+	}
+
+	private static IntFunction<Object> fixture(Invocation invocation, Server... servers) {
+		return new Fixture(invocation, servers);
+	}
+
+	private static class Fixture implements IntFunction<Object>, AutoCloseable {
+		private final Invocation invocation;
+		private final Server[] servers;
+
+		Fixture(Invocation invocation, Server[] servers) {
+			this.invocation = invocation;
+			this.servers = servers;
+		}
+
+		@Override
+		public Object apply(int n) {
+			try {
+				return invocation.invoke(n);
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		@Override
+		public void close() {
+			for (Server server : servers) {
+				server.close();
+			}
+		}
+	}
+
+	private static Server createServer() throws RemoteException {
+		return BenchmarkCluster.start(1, false)[0];
+	}
+
+	private static String[] keys() {
+		String[] keys = new String[KEYS];
+		for (int i = 0; i < KEYS; i++) {
+			keys[i] = "key" + i;
+		}
+		return keys;
+	}
+
+	private static Operation[] puts(String[] keys) {
+		Operation[] operations = new Operation[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			operations[i] = new Operation("PUT", keys[i], "value" + i);
+		}
+		return operations;
+	}
+
+	static IntFunction<Object> applyOperation() throws RemoteException {
+		Server server = createServer();
+		Operation[] operations = puts(keys());
+		return fixture(n -> server.applyOperation(operations[n & (KEYS - 1)]), server);
+	}
+
+	static IntFunction<Object> prepare() throws RemoteException {
+		Server server = createServer();
+		String[] keys = keys();
+		// Proposal IDs of the first instance grow with the invocation number, so every prepare is granted
+		return fixture(n -> server.prepare(keys[n & (KEYS - 1)], 0, n + 1), server);
+	}
+
+	static IntFunction<Object> accept() throws RemoteException {
+		Server server = createServer();
+		String[] keys = keys();
+		Operation[] operations = puts(keys);
+		return fixture(n -> server.accept(keys[n & (KEYS - 1)], 0, n + 1, operations[n & (KEYS - 1)]), server);
+	}
+
+	/**
+	 * A full prepare, accept and learn round of one server of a cluster of 5, wired as PaxosServerCreator does.
+	 */
+	static IntFunction<Object> propose() throws RemoteException {
+		Server[] servers = BenchmarkCluster.start(NUM_SERVERS, false);
+		String[] keys = keys();
+		return fixture(n -> servers[0].put(keys[n & (KEYS - 1)], "value" + n), servers);
+	}
+
+	static IntFunction<Object> log() throws IOException {
+		Logger logger = new Logger(Files.createTempFile("logger-benchmark", ".log").toString(),
+				Logger.Level.INFO, false, true, 8192, Logger.OverflowPolicy.BLOCK);
+		return fixture(n -> {
+			logger.log("Successfully prepared key" + (n & (KEYS - 1)));
+			return null;
+		});
+	}
+
+	/**
+	 * Round trip of a promise through Java serialization, as RMI sends it.
+	 */
+	static IntFunction<Object> serializeProposalResponse() {
+		ProposalResponse response = new ProposalResponse(4000042, new Operation("PUT", "key42", "value42"));
+		return fixture(n -> {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+			try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+				out.writeObject(response);
+			}
+			try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+				return in.readObject();
+			}
+		});
+	}
+
+	/**
+	 * Round trip of a promise through the binary encoding of the NIO transport.
+	 */
+	static IntFunction<Object> encodeProposalResponse() {
+		ProposalResponse response = new ProposalResponse(4000042, new Operation("PUT", "key42", "value42"));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		return fixture(n -> {
+			bytes.reset();
+			NioCodec.writeValue(new DataOutputStream(bytes), response);
+			return NioCodec.readValue(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		});
+	}
+}
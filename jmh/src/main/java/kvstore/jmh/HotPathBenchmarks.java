@@ -0,0 +1,156 @@
+package kvstore.jmh;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the consensus and storage hot paths: applying an operation, a single acceptor prepare
+ * and accept, a full propose across 5 in-process servers, Logger.log and the serialization of a
+ * ProposalResponse. The code under test is set up by BenchmarkFixtures in the default package.
+ * Run with: java -jar jmh/target/benchmarks.jar -rf json -rff results.json
+ * @author ZHANG Mao
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HotPathBenchmarks {
+
+	/**
+	 * Loads a fixture of BenchmarkFixtures, which is out of reach of this package at compile time.
+	 */
+	@SuppressWarnings("unchecked")
+	static IntFunction<Object> load(String name) throws Exception {
+		Class<?> fixtures = Class.forName("BenchmarkFixtures");
+		return (IntFunction<Object>) fixtures.getMethod("create", String.class).invoke(null, name);
+	}
+
+	public abstract static class Fixture {
+		private IntFunction<Object> fixture;
+		private int invocation;
+
+		void load(String name) throws Exception {
+			fixture = HotPathBenchmarks.load(name);
+		}
+
+		Object invoke() {
+			return fixture.apply(invocation++);
+		}
+
+		@TearDown
+		public void tearDown() throws Exception {
+			((AutoCloseable) fixture).close();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class ApplyOperation extends Fixture {
+		@Setup
+		public void setUp() throws Exception {
+			load("applyOperation");
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Prepare extends Fixture {
+		@Setup
+		public void setUp() throws Exception {
+			load("prepare");
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Accept extends Fixture {
+		@Setup
+		public void setUp() throws Exception {
+			load("accept");
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Propose extends Fixture {
+		@Setup
+		public void setUp() throws Exception {
+			load("propose");
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Log extends Fixture {
+		@Setup
+		public void setUp() throws Exception {
+			load("log");
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class SerializeProposalResponse extends Fixture {
+		@Setup
+		public void setUp() throws Exception {
+			load("serializeProposalResponse");
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class EncodeProposalResponse extends Fixture {
+		@Setup
+		public void setUp() throws Exception {
+			load("encodeProposalResponse");
+		}
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public Object applyOperation(ApplyOperation fixture) {
+		return fixture.invoke();
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public Object prepare(Prepare fixture) {
+		return fixture.invoke();
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public Object accept(Accept fixture) {
+		return fixture.invoke();
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public Object propose(Propose fixture) {
+		return fixture.invoke();
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public Object loggerLog(Log fixture) {
+		return fixture.invoke();
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public Object proposalResponseJavaSerialization(SerializeProposalResponse fixture) {
+		return fixture.invoke();
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public Object proposalResponseBinaryEncoding(EncodeProposalResponse fixture) {
+		return fixture.invoke();
+	}
+}